@@ -0,0 +1,290 @@
+package io.github.linkedfactory.core.kvin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.github.linkedfactory.core.kvin.util.AggregatingIterator;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.commons.iterator.WrappedIterator;
+import net.enilink.komma.core.URI;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A {@link Kvin} decorator that caches the values of time series in chunks of a fixed duration.
+ * <p>
+ * Range queries for a single item and property are split into aligned chunks. Cached chunks are reused and
+ * consecutive missing chunks are loaded with one request from the delegate. The chunks are evicted by an LRU policy
+ * based on their estimated size in bytes and are invalidated by writes through this decorator and by the
+ * {@link KvinListener#valueAdded} notifications of the delegate. If the delegate does not support listeners (e.g.
+ * remote stores) then the chunks expire after a fixed time.
+ * <p>
+ * Aggregates are computed from the cached values. Queries with a limit, without property or spanning more than
+ * {@link #MAX_CHUNKS_PER_QUERY} chunks are forwarded to the delegate. Off-heap storage of chunks is not supported.
+ */
+public class CachingKvin extends DelegatingKvin {
+	public static final long DEFAULT_CHUNK_DURATION = 3600_000L; // 1 hour
+	public static final long DEFAULT_MAX_WEIGHT = 64 * 1048576L; // 64 MB
+	// expiry of chunks if the delegate does not notify about changes
+	public static final long DEFAULT_EXPIRY = 60_000L; // 1 minute
+	// number of version counters that are shared by the series
+	static final int VERSION_STRIPES = 1024;
+	// maximum number of chunks of a query, larger queries are forwarded to the delegate
+	static final int MAX_CHUNKS_PER_QUERY = 1000;
+
+	final long chunkDuration;
+	final Cache<ChunkKey, List<KvinTuple>> chunks;
+	// incremented for each invalidation of a series to detect chunks that have been changed while being loaded
+	final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+	// incremented for invalidations that affect multiple series
+	final AtomicLong modifications = new AtomicLong();
+	// true if the delegate notifies the invalidation listener about changes
+	final boolean observed;
+	final KvinListener invalidationListener = new KvinListener() {
+		@Override
+		public void entityCreated(URI item) {
+		}
+
+		@Override
+		public void valueAdded(URI item, URI property, URI context, long time, long seqNr, Object value) {
+			invalidate(item, property, context, time);
+		}
+	};
+
+	public CachingKvin(Kvin delegate) {
+		this(delegate, DEFAULT_MAX_WEIGHT, DEFAULT_CHUNK_DURATION);
+	}
+
+	/**
+	 * Creates a caching decorator for the given store.
+	 *
+	 * @param maxWeight     The maximum estimated size of all cached chunks in bytes.
+	 * @param chunkDuration The duration of a chunk in milliseconds.
+	 */
+	public CachingKvin(Kvin delegate, long maxWeight, long chunkDuration) {
+		this(delegate, maxWeight, chunkDuration, DEFAULT_EXPIRY);
+	}
+
+	/**
+	 * Creates a caching decorator for the given store.
+	 *
+	 * @param maxWeight     The maximum estimated size of all cached chunks in bytes.
+	 * @param chunkDuration The duration of a chunk in milliseconds.
+	 * @param expiry        The time in milliseconds after which chunks are loaded again if the store does not
+	 *                      notify about changes.
+	 */
+	public CachingKvin(Kvin delegate, long maxWeight, long chunkDuration, long expiry) {
+		super(() -> delegate);
+		this.chunkDuration = chunkDuration;
+		CacheBuilder<ChunkKey, List<KvinTuple>> builder = CacheBuilder.newBuilder()
+				.maximumWeight(maxWeight)
+				.weigher((key, tuples) -> KvinTuples.weigh(tuples));
+		this.observed = delegate.addListener(invalidationListener);
+		if (!observed) {
+			// changes of the store are not observed
+			builder.expireAfterWrite(expiry, TimeUnit.MILLISECONDS);
+		}
+		this.chunks = builder.build();
+	}
+
+	@Override
+	public void put(KvinTuple... tuples) {
+		this.put(Arrays.asList(tuples));
+	}
+
+	@Override
+	public void put(Iterable<KvinTuple> tuples) {
+		if (observed) {
+			// the chunks are invalidated by the notifications of the delegate
+			super.put(tuples);
+			return;
+		}
+		List<KvinTuple> written = new ArrayList<>();
+		super.put(() -> WrappedIterator.create(tuples.iterator()).mapWith(t -> {
+			written.add(t);
+			return t;
+		}));
+		for (KvinTuple tuple : written) {
+			invalidate(tuple.item, tuple.property, tuple.context, tuple.time);
+		}
+	}
+
+	@Override
+	public IExtendedIterator<KvinTuple> fetch(URI item, URI property, URI context, long end, long begin, long limit,
+	                                          long interval, String op) {
+		if (property == null || limit != 0 || end < begin || end - begin > chunkDuration * MAX_CHUNKS_PER_QUERY) {
+			return super.fetch(item, property, context, end, begin, limit, interval, op);
+		}
+		if (op != null) {
+			// aggregate the cached values
+			return new AggregatingIterator<>(fetchCached(item, property, context, end, begin),
+					interval == 0 ? end - begin : interval, op.trim().toLowerCase(), limit) {
+				@Override
+				protected KvinTuple createElement(URI item, URI property, URI context, long time, int seqNr, Object value) {
+					return new KvinTuple(item, property, context, time, seqNr, value);
+				}
+			};
+		}
+		return fetchCached(item, property, context, end, begin);
+	}
+
+	IExtendedIterator<KvinTuple> fetchCached(URI item, URI property, URI context, long end, long begin) {
+		URI ctx = context == null ? Kvin.DEFAULT_CONTEXT : context;
+		long firstChunk = chunkStart(begin), lastChunk = chunkStart(end);
+		// chunks in descending order as values are returned with descending time
+		List<List<KvinTuple>> result = new ArrayList<>();
+		long missingEnd = -1;
+		for (long chunk = lastChunk; chunk >= firstChunk; chunk -= chunkDuration) {
+			List<KvinTuple> cached = chunks.getIfPresent(new ChunkKey(item, property, ctx, chunk));
+			if (cached == null) {
+				if (missingEnd < 0) {
+					missingEnd = chunk + chunkDuration - 1;
+				}
+				result.add(null);
+			} else {
+				if (missingEnd >= 0) {
+					load(item, property, ctx, missingEnd, chunk + chunkDuration, result);
+					missingEnd = -1;
+				}
+				result.add(cached);
+			}
+		}
+		if (missingEnd >= 0) {
+			load(item, property, ctx, missingEnd, firstChunk, result);
+		}
+		List<KvinTuple> tuples = new ArrayList<>();
+		for (List<KvinTuple> chunk : result) {
+			for (KvinTuple tuple : chunk) {
+				if (tuple.time >= begin && tuple.time <= end) {
+					tuples.add(tuple);
+				}
+			}
+		}
+		return WrappedIterator.create(tuples.iterator());
+	}
+
+	/**
+	 * Loads the chunks within [begin, end] with one request and replaces the placeholders at the end of the result.
+	 */
+	private void load(URI item, URI property, URI context, long end, long begin, List<List<KvinTuple>> result) {
+		int stripe = versionStripe(item, property, context);
+		long version = versions.get(stripe);
+		long modificationCount = modifications.get();
+		Map<Long, List<KvinTuple>> loaded = new HashMap<>();
+		IExtendedIterator<KvinTuple> it = getDelegate().fetch(item, property, context, end, begin, 0, 0, null);
+		try {
+			while (it.hasNext()) {
+				KvinTuple tuple = it.next();
+				loaded.computeIfAbsent(chunkStart(tuple.time), k -> new ArrayList<>()).add(tuple);
+			}
+		} finally {
+			it.close();
+		}
+		boolean cache = isUnchanged(stripe, version, modificationCount);
+		int index = result.size() - 1;
+		for (long chunk = chunkStart(begin); chunk <= end; chunk += chunkDuration) {
+			List<KvinTuple> tuples = loaded.getOrDefault(chunk, Collections.emptyList());
+			if (cache) {
+				ChunkKey key = new ChunkKey(item, property, context, chunk);
+				chunks.put(key, tuples);
+				// an invalidation between the check and the put may have missed the chunk
+				if (!isUnchanged(stripe, version, modificationCount)) {
+					chunks.asMap().remove(key, tuples);
+					cache = false;
+				}
+			}
+			result.set(index--, tuples);
+		}
+	}
+
+	private boolean isUnchanged(int stripe, long version, long modificationCount) {
+		return versions.get(stripe) == version && modifications.get() == modificationCount;
+	}
+
+	long chunkStart(long time) {
+		return time - Math.floorMod(time, chunkDuration);
+	}
+
+	static int versionStripe(URI item, URI property, URI context) {
+		return Math.floorMod(Objects.hash(item, property, context), VERSION_STRIPES);
+	}
+
+	/**
+	 * Removes the chunk that contains the given time from the cache.
+	 */
+	public void invalidate(URI item, URI property, URI context, long time) {
+		URI ctx = context == null ? Kvin.DEFAULT_CONTEXT : context;
+		versions.incrementAndGet(versionStripe(item, property, ctx));
+		chunks.invalidate(new ChunkKey(item, property, ctx, chunkStart(time)));
+	}
+
+	/**
+	 * Removes all cached chunks.
+	 */
+	public void invalidateAll() {
+		modifications.incrementAndGet();
+		chunks.invalidateAll();
+	}
+
+	@Override
+	public long delete(URI item, URI property, URI context, long end, long begin) {
+		try {
+			return super.delete(item, property, context, end, begin);
+		} finally {
+			URI ctx = context == null ? Kvin.DEFAULT_CONTEXT : context;
+			versions.incrementAndGet(versionStripe(item, property, ctx));
+			chunks.asMap().keySet().removeIf(k -> k.item.equals(item) && k.property.equals(property) &&
+					k.context.equals(ctx));
+		}
+	}
+
+	@Override
+	public boolean delete(URI item, URI context) {
+		try {
+			return super.delete(item, context);
+		} finally {
+			URI ctx = context == null ? Kvin.DEFAULT_CONTEXT : context;
+			modifications.incrementAndGet();
+			chunks.asMap().keySet().removeIf(k -> k.item.equals(item) && k.context.equals(ctx));
+		}
+	}
+
+	@Override
+	public void close() {
+		getDelegate().removeListener(invalidationListener);
+		chunks.invalidateAll();
+		super.close();
+	}
+
+	static final class ChunkKey {
+		final URI item, property, context;
+		final long start;
+
+		ChunkKey(URI item, URI property, URI context, long start) {
+			this.item = item;
+			this.property = property;
+			this.context = context;
+			this.start = start;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof ChunkKey)) {
+				return false;
+			}
+			ChunkKey other = (ChunkKey) o;
+			return start == other.start && item.equals(other.item) && property.equals(other.property) &&
+					context.equals(other.context);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(item, property, context, start);
+		}
+	}
+}
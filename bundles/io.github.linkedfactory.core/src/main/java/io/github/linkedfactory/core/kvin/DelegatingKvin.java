@@ -67,6 +67,11 @@ public class DelegatingKvin implements Kvin {
         return getDelegate().properties(item, context);
     }
 
+    @Override
+    public long estimateCount(URI item, URI property, URI context, long end, long begin) {
+        return getDelegate().estimateCount(item, property, context, end, begin);
+    }
+
     @Override
     public void close() {
         getDelegate().close();
@@ -198,6 +198,22 @@ public interface Kvin extends Closeable {
 	 */
 	IExtendedIterator<URI> properties(URI item, URI context);
 
+	/**
+	 * Estimates the number of values of a given item and property within the time interval [begin, end].
+	 * <p>
+	 * The estimate is used for planning queries and hence should be cheap to compute.
+	 *
+	 * @param item     The item URI.
+	 * @param property The property URI or <code>null</code> for all properties of the item.
+	 * @param context  The context URI.
+	 * @param end      The end of the time interval.
+	 * @param begin    The beginning of the time interval.
+	 * @return The estimated number of values or <code>-1</code> if no estimate is available.
+	 */
+	default long estimateCount(URI item, URI property, URI context, long end, long begin) {
+		return -1;
+	}
+
 	/**
 	 * Closes the store and frees resources.
 	 */
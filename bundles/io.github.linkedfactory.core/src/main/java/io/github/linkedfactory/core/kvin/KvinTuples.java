@@ -0,0 +1,40 @@
+package io.github.linkedfactory.core.kvin;
+
+import java.util.List;
+
+/**
+ * Estimates of the memory that is used by tuples, e.g. for bounding caches and buffers.
+ */
+public final class KvinTuples {
+	private KvinTuples() {
+	}
+
+	/**
+	 * Returns the estimated size of a tuple on the heap in bytes.
+	 */
+	public static long estimateSize(KvinTuple tuple) {
+		long size = 64;
+		Object value = tuple.value;
+		if (value instanceof String) {
+			size += 40 + 2L * ((String) value).length();
+		} else if (value instanceof Record) {
+			size += 64L * ((Record) value).size();
+		} else if (value instanceof Object[]) {
+			size += 32L * ((Object[]) value).length;
+		} else {
+			size += 16;
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the estimated size of a list of tuples in bytes as weight for a {@link com.google.common.cache.Cache}.
+	 */
+	public static int weigh(List<KvinTuple> tuples) {
+		long weight = 64;
+		for (KvinTuple tuple : tuples) {
+			weight += estimateSize(tuple);
+		}
+		return (int) Math.min(Integer.MAX_VALUE, weight);
+	}
+}
@@ -0,0 +1,123 @@
+package io.github.linkedfactory.core.kvin;
+
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.komma.core.URI;
+import net.enilink.komma.core.URIs;
+
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Rules for the maximum age of values per context and item prefix.
+ * <p>
+ * If multiple rules match an item then the rule with the longest item prefix is used. Values of items without a
+ * matching rule are kept forever.
+ */
+public class RetentionPolicy {
+	final List<Rule> rules = new ArrayList<>();
+
+	/**
+	 * Adds a rule for the items of a context whose URI starts with the given prefix.
+	 *
+	 * @param context    The context or <code>null</code> for the default context
+	 * @param itemPrefix The prefix of the item URIs or <code>null</code> for all items
+	 * @param maxAge     The maximum age of the values
+	 */
+	public RetentionPolicy addRule(URI context, String itemPrefix, Duration maxAge) {
+		rules.add(new Rule(context == null ? Kvin.DEFAULT_CONTEXT : context, itemPrefix == null ? "" : itemPrefix,
+				maxAge.toMillis()));
+		return this;
+	}
+
+	public List<Rule> getRules() {
+		return Collections.unmodifiableList(rules);
+	}
+
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	/**
+	 * Returns the time before which the values of the given item expire or {@link Long#MIN_VALUE} if no rule matches.
+	 */
+	public long cutoff(String item, URI context, long now) {
+		if (context == null) {
+			context = Kvin.DEFAULT_CONTEXT;
+		}
+		Rule match = null;
+		for (Rule rule : rules) {
+			if (rule.context.equals(context) && item.startsWith(rule.itemPrefix) &&
+					(match == null || rule.itemPrefix.length() > match.itemPrefix.length())) {
+				match = rule;
+			}
+		}
+		return match == null ? Long.MIN_VALUE : now - match.maxAge;
+	}
+
+	/**
+	 * Deletes the expired values from a store by using range deletes for each item and property.
+	 *
+	 * @return The number of deleted values
+	 */
+	public long apply(Kvin store, long now) {
+		long deleted = 0;
+		Set<Map.Entry<URI, URI>> seen = new HashSet<>();
+		for (Rule rule : rules) {
+			List<URI> items;
+			IExtendedIterator<URI> it = store.descendants(URIs.createURI(rule.itemPrefix), rule.context);
+			try {
+				items = it.toList();
+			} finally {
+				it.close();
+			}
+			for (URI item : items) {
+				if (!seen.add(new AbstractMap.SimpleImmutableEntry<>(item, rule.context))) {
+					continue;
+				}
+				// a rule with a longer prefix may override this rule
+				long cutoff = cutoff(item.toString(), rule.context, now);
+				if (cutoff <= 0) {
+					continue;
+				}
+				List<URI> properties;
+				IExtendedIterator<URI> propertiesIt = store.properties(item, rule.context);
+				try {
+					properties = propertiesIt.toList();
+				} finally {
+					propertiesIt.close();
+				}
+				for (URI property : properties) {
+					deleted += store.delete(item, property, rule.context, cutoff - 1, 0);
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * A retention rule for the items of a context.
+	 */
+	public static class Rule {
+		final URI context;
+		final String itemPrefix;
+		final long maxAge;
+
+		Rule(URI context, String itemPrefix, long maxAge) {
+			this.context = context;
+			this.itemPrefix = itemPrefix;
+			this.maxAge = maxAge;
+		}
+
+		public URI getContext() {
+			return context;
+		}
+
+		public String getItemPrefix() {
+			return itemPrefix;
+		}
+
+		public long getMaxAge() {
+			return maxAge;
+		}
+	}
+}
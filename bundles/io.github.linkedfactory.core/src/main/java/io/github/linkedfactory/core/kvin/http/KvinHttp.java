@@ -43,7 +43,6 @@ public class KvinHttp implements Kvin {
     private static Logger logger = LoggerFactory.getLogger(KvinHttp.class);
     private static int MAX_GET_URL_LENGTH = 6000; // the absolute maximum should be 8192 (8kb)
     String hostEndpoint;
-    ArrayList<KvinListener> listeners = new ArrayList<>();
     ObjectMapper mapper = new ObjectMapper();
     CloseableHttpClient httpClient;
     JsonFactory jsonFactory = new JsonFactory();
@@ -59,22 +58,13 @@ public class KvinHttp implements Kvin {
 
     @Override
     public boolean addListener(KvinListener listener) {
-        try {
-            listeners.add(listener);
-            return true;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        // changes of the remote store are not observed
+        return false;
     }
 
     @Override
     public boolean removeListener(KvinListener listener) {
-        try {
-            listeners.remove(listener);
-            return true;
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return false;
     }
 
     @Override
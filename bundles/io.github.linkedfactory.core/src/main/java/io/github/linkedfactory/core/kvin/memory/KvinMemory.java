@@ -0,0 +1,520 @@
+package io.github.linkedfactory.core.kvin.memory;
+
+import com.google.common.util.concurrent.Striped;
+import io.github.linkedfactory.core.kvin.Kvin;
+import io.github.linkedfactory.core.kvin.KvinListener;
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import io.github.linkedfactory.core.kvin.util.AggregatingIterator;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.commons.iterator.NiceIterator;
+import net.enilink.commons.iterator.WrappedIterator;
+import net.enilink.komma.core.URI;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * An in-memory {@link Kvin} store that keeps the most recent values of each time series.
+ * <p>
+ * Each series (item, property, context) is stored in a ring buffer of primitive arrays that holds up to a
+ * configurable number of values. If a buffer is full then the oldest value is dropped. Series with only long or only
+ * double values are stored without boxing, other values are stored as objects.
+ */
+public class KvinMemory implements Kvin {
+	public static final int DEFAULT_CAPACITY = 10_000;
+
+	final int capacity;
+	final Striped<ReadWriteLock> locks = Striped.readWriteLock(64);
+	final Set<KvinListener> listeners = new CopyOnWriteArraySet<>();
+
+	// interned URIs of items, properties and contexts
+	final Map<URI, Integer> uriToId = new ConcurrentHashMap<>();
+	final Map<Integer, URI> idToUri = new ConcurrentHashMap<>();
+	final AtomicInteger nextId = new AtomicInteger();
+
+	// the series of each item and context
+	final Map<Long, Map<Integer, Series>> series = new ConcurrentHashMap<>();
+	// the items of each context sorted by their URIs
+	final Map<Integer, ConcurrentSkipListMap<String, URI>> items = new ConcurrentHashMap<>();
+
+	public KvinMemory() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an in-memory store.
+	 *
+	 * @param capacity The maximum number of values per series.
+	 */
+	public KvinMemory(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	@Override
+	public boolean addListener(KvinListener listener) {
+		return listeners.add(listener);
+	}
+
+	@Override
+	public boolean removeListener(KvinListener listener) {
+		return listeners.remove(listener);
+	}
+
+	int intern(URI uri) {
+		Integer id = uriToId.get(uri);
+		if (id == null) {
+			id = uriToId.computeIfAbsent(uri, u -> {
+				int newId = nextId.incrementAndGet();
+				idToUri.put(newId, u);
+				return newId;
+			});
+		}
+		return id;
+	}
+
+	int idOf(URI uri) {
+		Integer id = uriToId.get(uri);
+		return id == null ? 0 : id;
+	}
+
+	static long key(int itemId, int contextId) {
+		return ((long) itemId << 32) | (contextId & 0xFFFFFFFFL);
+	}
+
+	static URI contextOrDefault(URI context) {
+		return context == null ? Kvin.DEFAULT_CONTEXT : context;
+	}
+
+	@Override
+	public void put(KvinTuple... tuples) {
+		put(Arrays.asList(tuples));
+	}
+
+	@Override
+	public void put(Iterable<KvinTuple> tuples) {
+		List<KvinTuple> added = listeners.isEmpty() ? null : new ArrayList<>();
+		for (KvinTuple tuple : tuples) {
+			URI context = contextOrDefault(tuple.context);
+			int itemId = intern(tuple.item), contextId = intern(context), propertyId = intern(tuple.property);
+			Lock lock = locks.get(tuple.item).writeLock();
+			lock.lock();
+			try {
+				Map<Integer, Series> properties = series.computeIfAbsent(key(itemId, contextId), k -> {
+					items.computeIfAbsent(contextId, c -> new ConcurrentSkipListMap<>())
+							.put(tuple.item.toString(), tuple.item);
+					return new ConcurrentHashMap<>();
+				});
+				properties.computeIfAbsent(propertyId, p -> new Series(capacity))
+						.add(tuple.time, tuple.seqNr, tuple.value);
+			} finally {
+				lock.unlock();
+			}
+			if (added != null) {
+				added.add(tuple);
+			}
+		}
+		if (added != null) {
+			for (KvinTuple tuple : added) {
+				for (KvinListener listener : listeners) {
+					listener.valueAdded(tuple.item, tuple.property, tuple.context, tuple.time, tuple.seqNr, tuple.value);
+				}
+			}
+		}
+	}
+
+	@Override
+	public IExtendedIterator<KvinTuple> fetch(URI item, URI property, URI context, long limit) {
+		return fetch(item, property, context, KvinTuple.TIME_MAX_VALUE, 0, limit, 0, null);
+	}
+
+	@Override
+	public IExtendedIterator<KvinTuple> fetch(URI item, URI property, URI context, long end, long begin, long limit,
+	                                          long interval, String op) {
+		IExtendedIterator<KvinTuple> results = fetchInternal(item, property, context, end, begin,
+				op == null ? limit : 0, op == null ? interval : 0);
+		if (op != null) {
+			results = new AggregatingIterator<>(results, interval, op.trim().toLowerCase(), limit) {
+				@Override
+				protected KvinTuple createElement(URI item, URI property, URI context, long time, int seqNr, Object value) {
+					return new KvinTuple(item, property, context, time, seqNr, value);
+				}
+			};
+		}
+		return results;
+	}
+
+	IExtendedIterator<KvinTuple> fetchInternal(URI item, URI property, URI context, long end, long begin, long limit,
+	                                           long interval) {
+		URI currentContext = contextOrDefault(context);
+		Map<Integer, Series> properties = series.get(key(idOf(item), idOf(currentContext)));
+		if (properties == null || end < begin) {
+			return NiceIterator.emptyIterator();
+		}
+		List<KvinTuple> result = new ArrayList<>();
+		Lock lock = locks.get(item).readLock();
+		lock.lock();
+		try {
+			int intervalSeq = 0;
+			Map<Integer, Series> selected = property == null ? properties :
+					properties.containsKey(idOf(property)) ?
+							Collections.singletonMap(idOf(property), properties.get(idOf(property))) :
+							Collections.emptyMap();
+			for (Map.Entry<Integer, Series> entry : selected.entrySet()) {
+				URI currentProperty = idToUri.get(entry.getKey());
+				Series s = entry.getValue();
+				int count = 0;
+				long nextTime = end;
+				for (int i = s.upperBound(end) - 1; i >= 0 && (limit == 0 || count < limit); i--) {
+					long time = s.timeAt(i);
+					if (time < begin) {
+						break;
+					}
+					if (time > nextTime) {
+						continue;
+					}
+					count++;
+					if (interval > 0) {
+						// use the most recent value of each interval
+						long intervalStart = time - (time % interval);
+						nextTime = intervalStart - 1;
+						result.add(new KvinTuple(item, currentProperty, currentContext, intervalStart, ++intervalSeq,
+								s.valueAt(i)));
+					} else {
+						result.add(new KvinTuple(item, currentProperty, currentContext, time, s.seqNrAt(i), s.valueAt(i)));
+					}
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return WrappedIterator.create(result.iterator());
+	}
+
+	@Override
+	public long delete(URI item, URI property, URI context, long end, long begin) {
+		int contextId = idOf(contextOrDefault(context));
+		long key = key(idOf(item), contextId);
+		Lock lock = locks.get(item).writeLock();
+		lock.lock();
+		try {
+			Map<Integer, Series> properties = series.get(key);
+			Series s = properties == null ? null : properties.get(idOf(property));
+			if (s == null) {
+				return 0;
+			}
+			long count = s.remove(end, begin);
+			if (s.size == 0) {
+				properties.remove(idOf(property));
+				if (properties.isEmpty()) {
+					removeItem(item, key, contextId);
+				}
+			}
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean delete(URI item, URI context) {
+		int contextId = idOf(contextOrDefault(context));
+		long key = key(idOf(item), contextId);
+		Lock lock = locks.get(item).writeLock();
+		lock.lock();
+		try {
+			return removeItem(item, key, contextId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean removeItem(URI item, long key, int contextId) {
+		Map<String, URI> contextItems = items.get(contextId);
+		if (contextItems != null) {
+			contextItems.remove(item.toString());
+		}
+		return series.remove(key) != null;
+	}
+
+	@Override
+	public IExtendedIterator<URI> descendants(URI item, URI context) {
+		return descendants(item, context, Long.MAX_VALUE);
+	}
+
+	@Override
+	public IExtendedIterator<URI> descendants(URI item, URI context, long limit) {
+		ConcurrentSkipListMap<String, URI> contextItems = items.get(idOf(contextOrDefault(context)));
+		if (contextItems == null) {
+			return NiceIterator.emptyIterator();
+		}
+		String prefix = item.toString();
+		List<URI> result = new ArrayList<>();
+		for (Map.Entry<String, URI> entry : contextItems.tailMap(prefix).entrySet()) {
+			if (result.size() >= limit || !entry.getKey().startsWith(prefix)) {
+				break;
+			}
+			result.add(entry.getValue());
+		}
+		return WrappedIterator.create(result.iterator());
+	}
+
+	@Override
+	public IExtendedIterator<URI> properties(URI item, URI context) {
+		Map<Integer, Series> properties = series.get(key(idOf(item), idOf(contextOrDefault(context))));
+		if (properties == null) {
+			return NiceIterator.emptyIterator();
+		}
+		List<URI> result = new ArrayList<>();
+		for (Integer id : properties.keySet()) {
+			result.add(idToUri.get(id));
+		}
+		return WrappedIterator.create(result.iterator());
+	}
+
+	@Override
+	public long estimateCount(URI item, URI property, URI context, long end, long begin) {
+		Map<Integer, Series> properties = series.get(key(idOf(item), idOf(contextOrDefault(context))));
+		if (properties == null || end < begin) {
+			return 0;
+		}
+		long count = 0;
+		Lock lock = locks.get(item).readLock();
+		lock.lock();
+		try {
+			for (Map.Entry<Integer, Series> entry : properties.entrySet()) {
+				if (property == null || entry.getKey() == idOf(property)) {
+					Series s = entry.getValue();
+					count += Math.max(0, s.upperBound(end) - s.lowerBound(begin, Integer.MIN_VALUE));
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		return count;
+	}
+
+	@Override
+	public void close() {
+		series.clear();
+		items.clear();
+	}
+
+	/**
+	 * A ring buffer with the values of a series sorted by time and sequence number.
+	 */
+	static final class Series {
+		static final byte NONE = 0, LONG = 1, DOUBLE = 2, OBJECT = 3;
+
+		final int capacity;
+		long[] times;
+		int[] seqNrs;
+		long[] longs;
+		double[] doubles;
+		Object[] objects;
+		byte type = NONE;
+		int start, size;
+
+		Series(int capacity) {
+			this.capacity = capacity;
+			int length = Math.min(capacity, 16);
+			times = new long[length];
+			seqNrs = new int[length];
+		}
+
+		int index(int i) {
+			int index = start + i;
+			return index >= times.length ? index - times.length : index;
+		}
+
+		long timeAt(int i) {
+			return times[index(i)];
+		}
+
+		int seqNrAt(int i) {
+			return seqNrs[index(i)];
+		}
+
+		Object valueAt(int i) {
+			int index = index(i);
+			switch (type) {
+				case LONG:
+					return longs[index];
+				case DOUBLE:
+					return doubles[index];
+				default:
+					return objects[index];
+			}
+		}
+
+		/**
+		 * Returns the position of the first value that is not less than the given time and sequence number.
+		 */
+		int lowerBound(long time, int seqNr) {
+			int low = 0, high = size;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int index = index(mid);
+				if (times[index] < time || times[index] == time && seqNrs[index] < seqNr) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Returns the position of the first value that is newer than the given time.
+		 */
+		int upperBound(long time) {
+			return time == Long.MAX_VALUE ? size : lowerBound(time + 1, Integer.MIN_VALUE);
+		}
+
+		void add(long time, int seqNr, Object value) {
+			int pos = lowerBound(time, seqNr);
+			if (pos < size && timeAt(pos) == time && seqNrAt(pos) == seqNr) {
+				setValue(index(pos), value);
+				return;
+			}
+			if (size == capacity) {
+				if (pos == 0) {
+					// the value is older than all values of the full buffer
+					return;
+				}
+				// drop the oldest value
+				setValue(start, null);
+				start = index(1);
+				size--;
+				pos--;
+			} else if (size == times.length) {
+				grow();
+			}
+			for (int i = size; i > pos; i--) {
+				move(index(i - 1), index(i));
+			}
+			int index = index(pos);
+			times[index] = time;
+			seqNrs[index] = seqNr;
+			setValue(index, value);
+			size++;
+		}
+
+		/**
+		 * Removes the values within the time interval [begin, end].
+		 */
+		int remove(long end, long begin) {
+			int from = lowerBound(begin, Integer.MIN_VALUE);
+			int to = upperBound(end);
+			int count = to - from;
+			if (count <= 0) {
+				return 0;
+			}
+			for (int i = to; i < size; i++) {
+				move(index(i), index(i - count));
+			}
+			for (int i = size - count; i < size; i++) {
+				setValue(index(i), null);
+			}
+			size -= count;
+			return count;
+		}
+
+		void move(int from, int to) {
+			times[to] = times[from];
+			seqNrs[to] = seqNrs[from];
+			switch (type) {
+				case LONG:
+					longs[to] = longs[from];
+					break;
+				case DOUBLE:
+					doubles[to] = doubles[from];
+					break;
+				case OBJECT:
+					objects[to] = objects[from];
+					break;
+			}
+		}
+
+		void setValue(int index, Object value) {
+			if (value == null) {
+				// clears the value
+				if (type == OBJECT) {
+					objects[index] = null;
+				}
+				return;
+			}
+			if (type == NONE) {
+				type = value instanceof Long ? LONG : value instanceof Double ? DOUBLE : OBJECT;
+				switch (type) {
+					case LONG:
+						longs = new long[times.length];
+						break;
+					case DOUBLE:
+						doubles = new double[times.length];
+						break;
+					default:
+						objects = new Object[times.length];
+				}
+			}
+			if (type == LONG && value instanceof Long) {
+				longs[index] = (Long) value;
+			} else if (type == DOUBLE && value instanceof Double) {
+				doubles[index] = (Double) value;
+			} else {
+				if (type != OBJECT) {
+					toObjects();
+				}
+				objects[index] = value;
+			}
+		}
+
+		/**
+		 * Switches from primitive to object values if values with different types are added.
+		 */
+		void toObjects() {
+			objects = new Object[times.length];
+			for (int i = 0; i < size; i++) {
+				int index = index(i);
+				objects[index] = type == LONG ? (Object) longs[index] : (Object) doubles[index];
+			}
+			longs = null;
+			doubles = null;
+			type = OBJECT;
+		}
+
+		void grow() {
+			int length = (int) Math.min(capacity, times.length * 2L);
+			long[] newTimes = new long[length];
+			int[] newSeqNrs = new int[length];
+			long[] newLongs = longs == null ? null : new long[length];
+			double[] newDoubles = doubles == null ? null : new double[length];
+			Object[] newObjects = objects == null ? null : new Object[length];
+			for (int i = 0; i < size; i++) {
+				int index = index(i);
+				newTimes[i] = times[index];
+				newSeqNrs[i] = seqNrs[index];
+				if (newLongs != null) {
+					newLongs[i] = longs[index];
+				} else if (newDoubles != null) {
+					newDoubles[i] = doubles[index];
+				} else if (newObjects != null) {
+					newObjects[i] = objects[index];
+				}
+			}
+			times = newTimes;
+			seqNrs = newSeqNrs;
+			longs = newLongs;
+			doubles = newDoubles;
+			objects = newObjects;
+			start = 0;
+		}
+	}
+}
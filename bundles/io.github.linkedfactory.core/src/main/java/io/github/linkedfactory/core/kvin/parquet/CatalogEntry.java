@@ -0,0 +1,99 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import java.util.Arrays;
+
+/**
+ * Entry of the {@link ItemCatalog} with the properties and the time bounds of an item within a context.
+ */
+public class CatalogEntry {
+	String item;
+	long contextId;
+	// sorted ids of the properties
+	long[] propertyIds = new long[0];
+	long minTime = Long.MAX_VALUE;
+	long maxTime = Long.MIN_VALUE;
+	// number of values or -1 if unknown (entries of catalogs that were written without counts)
+	long valueCount = -1;
+
+	public CatalogEntry() {
+	}
+
+	CatalogEntry(String item, long contextId) {
+		this.item = item;
+		this.contextId = contextId;
+		this.valueCount = 0;
+	}
+
+	void add(long propertyId, long time) {
+		int index = Arrays.binarySearch(propertyIds, propertyId);
+		if (index < 0) {
+			index = -index - 1;
+			long[] newIds = new long[propertyIds.length + 1];
+			System.arraycopy(propertyIds, 0, newIds, 0, index);
+			newIds[index] = propertyId;
+			System.arraycopy(propertyIds, index, newIds, index + 1, propertyIds.length - index);
+			propertyIds = newIds;
+		}
+		minTime = Math.min(minTime, time);
+		maxTime = Math.max(maxTime, time);
+		if (valueCount >= 0) {
+			valueCount++;
+		}
+	}
+
+	void addAll(CatalogEntry other) {
+		long[] merged = new long[propertyIds.length + other.propertyIds.length];
+		int i = 0, j = 0, k = 0;
+		while (i < propertyIds.length || j < other.propertyIds.length) {
+			long next;
+			if (j == other.propertyIds.length || i < propertyIds.length && propertyIds[i] <= other.propertyIds[j]) {
+				next = propertyIds[i++];
+			} else {
+				next = other.propertyIds[j++];
+			}
+			if (k == 0 || merged[k - 1] != next) {
+				merged[k++] = next;
+			}
+		}
+		propertyIds = k == merged.length ? merged : Arrays.copyOf(merged, k);
+		minTime = Math.min(minTime, other.minTime);
+		maxTime = Math.max(maxTime, other.maxTime);
+		valueCount = valueCount < 0 || other.valueCount < 0 ? -1 : valueCount + other.valueCount;
+	}
+
+	/**
+	 * Raises the lower time bound and reduces the value count accordingly by assuming that the values are evenly
+	 * distributed over the time range.
+	 */
+	void removeBefore(long time) {
+		if (valueCount > 0) {
+			double remaining = (double) (maxTime - time + 1) / (maxTime - minTime + 1);
+			valueCount = Math.max(1, Math.round(valueCount * remaining));
+		}
+		minTime = time;
+	}
+
+	public String getItem() {
+		return item;
+	}
+
+	public long getContextId() {
+		return contextId;
+	}
+
+	public long[] getPropertyIds() {
+		return propertyIds;
+	}
+
+	public long getMinTime() {
+		return minTime;
+	}
+
+	public long getMaxTime() {
+		return maxTime;
+	}
+
+	public long getValueCount() {
+		return valueCount;
+	}
+}
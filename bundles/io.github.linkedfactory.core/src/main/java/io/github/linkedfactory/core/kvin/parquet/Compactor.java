@@ -1,15 +1,16 @@
 package io.github.linkedfactory.core.kvin.parquet;
 
 import io.github.linkedfactory.core.kvin.parquet.records.KvinRecord;
+import com.google.common.util.concurrent.RateLimiter;
 import net.enilink.commons.iterator.IExtendedIterator;
 import net.enilink.commons.util.Pair;
 import org.apache.commons.io.FileUtils;
-import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.hadoop.ParquetFileReader;
 import org.apache.parquet.hadoop.ParquetReader;
 import org.apache.parquet.hadoop.ParquetWriter;
-import org.apache.parquet.hadoop.util.HadoopInputFile;
+import org.apache.parquet.io.InputFile;
 import org.eclipse.rdf4j.common.concurrent.locks.Lock;
 
 import java.io.File;
@@ -18,43 +19,167 @@ import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
 
 import static io.github.linkedfactory.core.kvin.parquet.ParquetHelpers.*;
 
+/**
+ * Merges data and mapping files of a {@link KvinParquet} archive.
+ * <p>
+ * Data files within a week folder are compacted using a size-tiered policy: files of similar size are grouped into
+ * tiers and a tier is merged once it contains at least <code>dataFileCompactionTrigger</code> files. Merged files
+ * never exceed the target file size and files that already reached it are not rewritten again.
+ */
 public class Compactor {
+	static final int DEFAULT_PARALLELISM = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	static final long DEFAULT_TARGET_FILE_SIZE = 128 * 1048576L; // 128 MB
+	static final long DEFAULT_SMALL_FILE_SIZE = 8 * 1048576L; // 8 MB
+	static final double DEFAULT_TIER_RATIO = 2.0;
+	// number of records that are written before the rate limiter is consulted
+	static final int RATE_LIMIT_BATCH_SIZE = 1024;
+
 	final KvinParquet kvinParquet;
 	final File compactionFolder;
 	String archiveLocation;
 	int dataFileCompactionTrigger, mappingFileCompactionTrigger;
+	int parallelism;
+	long targetFileSize = DEFAULT_TARGET_FILE_SIZE;
+	long smallFileSize = DEFAULT_SMALL_FILE_SIZE;
+	double tierRatio = DEFAULT_TIER_RATIO;
+	RateLimiter rateLimiter;
 
 	public Compactor(KvinParquet kvinParquet) {
 		this(kvinParquet, 3, 3);
 	}
 
 	public Compactor(KvinParquet kvinParquet, int dataFileCompactionTrigger, int mappingFileCompactionTrigger) {
+		this(kvinParquet, dataFileCompactionTrigger, mappingFileCompactionTrigger, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * Creates a compactor that merges independent week folders and mapping file types concurrently.
+	 *
+	 * @param parallelism maximum number of compaction tasks that are executed at the same time
+	 */
+	public Compactor(KvinParquet kvinParquet, int dataFileCompactionTrigger, int mappingFileCompactionTrigger,
+	                 int parallelism) {
 		this.archiveLocation = kvinParquet.archiveLocation;
 		this.compactionFolder = new File(archiveLocation, ".compaction");
 		this.kvinParquet = kvinParquet;
 		this.dataFileCompactionTrigger = dataFileCompactionTrigger;
 		this.mappingFileCompactionTrigger = mappingFileCompactionTrigger;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Sets the maximum size of a file created by merging data files. Files that reach this size are not compacted
+	 * anymore.
+	 */
+	public Compactor setTargetFileSize(long targetFileSize) {
+		this.targetFileSize = targetFileSize;
+		return this;
+	}
+
+	/**
+	 * Sets the size below which all data files of a week are considered to be in the same tier.
+	 */
+	public Compactor setSmallFileSize(long smallFileSize) {
+		this.smallFileSize = smallFileSize;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum ratio between the size of a file and the average size of its tier.
+	 */
+	public Compactor setTierRatio(double tierRatio) {
+		this.tierRatio = Math.max(1.0, tierRatio);
+		return this;
+	}
+
+	/**
+	 * Limits the rate at which data files are read during compaction.
+	 *
+	 * @param bytesPerSecond maximum number of bytes per second or <code>0</code> for no limit
+	 */
+	public Compactor setMaxBytesPerSecond(long bytesPerSecond) {
+		this.rateLimiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+		return this;
 	}
 
 	public void execute() throws IOException {
-		Set<String> compactedMappings;
-		List<File> weekFolders;
+		Set<String> compactedMappings = new HashSet<>();
+		List<java.nio.file.Path> compactedCatalogFiles = Collections.emptyList();
+		List<DataFileMerge> merges;
 		Lock readLock = kvinParquet.readLock();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism, createThreadFactory());
 		try {
-			compactedMappings = compactMappingFiles();
-			weekFolders = getCompactionEligibleWeekFolders();
-			for (File weekFolder : weekFolders) {
+			List<Future<String>> mappingTasks = new ArrayList<>();
+			Map<String, List<Pair<String, Integer>>> mappingFiles = getMappingFiles(Paths.get(archiveLocation, "metadata"));
+			for (Map.Entry<String, List<Pair<String, Integer>>> mapping : mappingFiles.entrySet()) {
+				if (mapping.getValue().size() < mappingFileCompactionTrigger) {
+					// do nothing if number of files for compaction is not yet reached
+					continue;
+				}
+				mappingTasks.add(executor.submit(() -> {
+					compactMappingFiles(mapping.getKey(), mapping.getValue());
+					return mapping.getKey();
+				}));
+			}
+
+			List<Future<?>> dataTasks = new ArrayList<>();
+			List<java.nio.file.Path> catalogFiles = ItemCatalog.getCatalogFiles(Paths.get(archiveLocation, "metadata"));
+			if (catalogFiles.size() >= Math.max(2, mappingFileCompactionTrigger)) {
+				// the loaded catalog contains the entries of all catalog files
+				ItemCatalog catalog = kvinParquet.getCatalog();
+				compactedCatalogFiles = catalogFiles;
+				dataTasks.add(executor.submit(() -> {
+					catalog.write(compactionFolder.toPath().resolve("metadata").resolve(ItemCatalog.CATALOG_FOLDER)
+							.resolve(ItemCatalog.CATALOG_TYPE + "__1.parquet"));
+					return null;
+				}));
+			}
+
+			merges = getDataFileMerges();
+			for (DataFileMerge merge : merges) {
+				dataTasks.add(executor.submit(() -> {
+					compactDataFiles(merge);
+					return null;
+				}));
+			}
+
+			try {
+				for (Future<String> task : mappingTasks) {
+					compactedMappings.add(task.get());
+				}
+				for (Future<?> task : dataTasks) {
+					task.get();
+				}
+			} catch (InterruptedException | ExecutionException e) {
+				Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+				IOException failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+				// do not leave partially compacted files behind as they would be moved by the next run,
+				// the running tasks have to be finished before as they may still create files
+				executor.shutdownNow();
 				try {
-					compactDataFiles(weekFolder);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
+					executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+					FileUtils.deleteDirectory(compactionFolder);
+				} catch (InterruptedException cleanupFailure) {
+					Thread.currentThread().interrupt();
+					failure.addSuppressed(cleanupFailure);
+				} catch (IOException | RuntimeException cleanupFailure) {
+					failure.addSuppressed(cleanupFailure);
 				}
+				throw failure;
 			}
 		} finally {
+			executor.shutdown();
 			readLock.release();
 		}
 
@@ -64,14 +189,30 @@ public class Compactor {
 		}
 
 		Lock writeLock = kvinParquet.writeLock();
+		// deleted, replaced and new files whose cached metadata needs to be evicted
+		Set<java.nio.file.Path> changedFiles = new HashSet<>();
 		try {
 			// replace existing files with compacted files
 			if (!compactedMappings.isEmpty()) {
+				java.nio.file.Path metadataPath = Paths.get(archiveLocation, "metadata");
+				for (String type : compactedMappings) {
+					for (Pair<String, Integer> mappingFile : getMappingFiles(metadataPath)
+							.getOrDefault(type, Collections.emptyList())) {
+						changedFiles.add(metadataPath.resolve(mappingFile.getFirst()));
+					}
+				}
 				// delete compacted mapping files
-				deleteMappingFiles(Paths.get(archiveLocation, "metadata"), compactedMappings);
+				deleteMappingFiles(metadataPath, compactedMappings);
 			}
-			for (File weekFolder : weekFolders) {
-				FileUtils.cleanDirectory(weekFolder);
+			for (java.nio.file.Path catalogFile : compactedCatalogFiles) {
+				// catalog files of writes after the start of the compaction are kept
+				Files.deleteIfExists(catalogFile);
+			}
+			for (DataFileMerge merge : merges) {
+				for (java.nio.file.Path dataFile : merge.dataFiles) {
+					Files.deleteIfExists(dataFile);
+					changedFiles.add(dataFile);
+				}
 			}
 			java.nio.file.Path source = compactionFolder.toPath();
 			java.nio.file.Path destination = Paths.get(archiveLocation);
@@ -83,6 +224,7 @@ public class Compactor {
 						try {
 							Files.createDirectories(dest.getParent());
 							Files.move(p, dest);
+							changedFiles.add(dest);
 						} catch (IOException e) {
 							throw new UncheckedIOException(e);
 						}
@@ -90,113 +232,165 @@ public class Compactor {
 			// completely delete compaction folder
 			FileUtils.deleteDirectory(compactionFolder);
 		} finally {
-			// clear all caches
-			kvinParquet.clearCaches();
+			// only evict the replaced files from the caches, ids are not changed by the compaction
+			kvinParquet.invalidateFiles(changedFiles);
 			writeLock.release();
 		}
 	}
 
-	private List<File> getCompactionEligibleWeekFolders() {
-		List<File> weekFolderList = new ArrayList<>();
+	private List<DataFileMerge> getDataFileMerges() throws IOException {
+		List<DataFileMerge> merges = new ArrayList<>();
 		File[] yearFolders = new File(archiveLocation).listFiles((file, s) ->
 				!s.startsWith("meta") && !s.startsWith(".compaction"));
 		for (File yearFolder : yearFolders) {
 			File[] weekFolders = yearFolder.listFiles((file) -> file.isDirectory());
 			for (File weekFolder : weekFolders) {
-				File[] dataFiles = weekFolder.listFiles((file, s) -> s.endsWith(".parquet"));
-				if (dataFiles.length >= dataFileCompactionTrigger) {
-					weekFolderList.add(weekFolder);
+				File[] dataFiles = weekFolder.listFiles((file, s) -> s.startsWith("data__") && s.endsWith(".parquet"));
+				if (dataFiles.length >= Math.max(2, dataFileCompactionTrigger)) {
+					for (List<java.nio.file.Path> tier : selectTiers(dataFiles)) {
+						merges.add(new DataFileMerge(weekFolder, tier));
+					}
 				}
 			}
 		}
-		return weekFolderList;
+		return merges;
 	}
 
-	private Set<String> compactMappingFiles() throws IOException {
-		Set<String> compacted = new HashSet<>();
-		Map<String, List<Pair<String, Integer>>> mappingFiles = getMappingFiles(Paths.get(archiveLocation, "metadata"));
-		for (Map.Entry<String, List<Pair<String, Integer>>> mapping : mappingFiles.entrySet()) {
-			if (mapping.getValue().size() < mappingFileCompactionTrigger) {
-				// do nothing if number of files for compaction is not yet reached
-				continue;
-			}
-			compacted.add(mapping.getKey());
-
-			Path compactedFile = new Path(new File(compactionFolder, "metadata").toString(), mapping.getKey() + "__1.parquet");
-			ParquetWriter<Object> compactedFileWriter = getParquetMappingWriter(compactedFile);
-
-			PriorityQueue<Pair<IdMapping, ParquetReader<IdMapping>>> nextMappings =
-					new PriorityQueue<>(Comparator.comparing(p -> p.getFirst().getValue()));
-			for (Pair<String, Integer> file : mapping.getValue()) {
-				ParquetReader<IdMapping> mappingFileReader = getParquetMappingReader(
-						HadoopInputFile.fromPath(new Path(archiveLocation + "metadata/" + file.getFirst()), new Configuration()));
-				IdMapping idMapping = mappingFileReader.read();
-				if (idMapping != null) {
-					nextMappings.add(new Pair<>(idMapping, mappingFileReader));
-				} else {
-					mappingFileReader.close();
-				}
+	/**
+	 * Groups the given data files into tiers of similar size and returns the tiers that should be merged.
+	 */
+	List<List<java.nio.file.Path>> selectTiers(File[] dataFiles) {
+		List<File> candidates = new ArrayList<>();
+		for (File dataFile : dataFiles) {
+			// files that already reached the target size are not rewritten
+			if (dataFile.length() < targetFileSize) {
+				candidates.add(dataFile);
 			}
+		}
+		candidates.sort(Comparator.comparingLong(File::length));
 
-			while (!nextMappings.isEmpty()) {
-				var pair = nextMappings.poll();
-				compactedFileWriter.write(pair.getFirst());
+		List<List<File>> tiers = new ArrayList<>();
+		List<File> tier = null;
+		long tierSize = 0;
+		for (File candidate : candidates) {
+			long size = candidate.length();
+			boolean sameTier = tier != null && (size <= smallFileSize ||
+					size <= (double) tierSize / tier.size() * tierRatio);
+			if (!sameTier) {
+				tier = new ArrayList<>();
+				tierSize = 0;
+				tiers.add(tier);
+			}
+			tier.add(candidate);
+			tierSize += size;
+		}
 
-				IdMapping idMapping = pair.getSecond().read();
-				if (idMapping != null) {
-					nextMappings.add(new Pair<>(idMapping, pair.getSecond()));
-				} else {
-					pair.getSecond().close();
+		List<List<java.nio.file.Path>> selected = new ArrayList<>();
+		for (List<File> files : tiers) {
+			List<java.nio.file.Path> merge = new ArrayList<>();
+			long mergeSize = 0;
+			for (File file : files) {
+				if (!merge.isEmpty() && mergeSize + file.length() > targetFileSize) {
+					if (merge.size() >= Math.max(2, dataFileCompactionTrigger)) {
+						selected.add(merge);
+					}
+					merge = new ArrayList<>();
+					mergeSize = 0;
 				}
+				merge.add(file.toPath());
+				mergeSize += file.length();
+			}
+			if (merge.size() >= Math.max(2, dataFileCompactionTrigger)) {
+				selected.add(merge);
+			}
+		}
+		return selected;
+	}
+
+	private ThreadFactory createThreadFactory() {
+		ClassLoader classLoader = KvinParquet.class.getClassLoader();
+		AtomicInteger threadNr = new AtomicInteger();
+		return r -> {
+			Thread thread = new Thread(r, "kvin-parquet-compactor-" + threadNr.incrementAndGet());
+			// Hadoop and Parquet resolve classes via the context class loader
+			thread.setContextClassLoader(classLoader);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private void compactMappingFiles(String type, List<Pair<String, Integer>> files) throws IOException {
+		Path compactedFile = new Path(new File(compactionFolder, "metadata").toString(), type + "__1.parquet");
+		ParquetWriter<Object> compactedFileWriter = getParquetMappingWriter(compactedFile);
+
+		PriorityQueue<Pair<IdMapping, ParquetReader<IdMapping>>> nextMappings =
+				new PriorityQueue<>(Comparator.comparing(p -> p.getFirst().getValue()));
+		for (Pair<String, Integer> file : files) {
+			ParquetReader<IdMapping> mappingFileReader = getParquetMappingReader(
+					getInputFile(new Path(archiveLocation + "metadata/" + file.getFirst())));
+			IdMapping idMapping = mappingFileReader.read();
+			if (idMapping != null) {
+				nextMappings.add(new Pair<>(idMapping, mappingFileReader));
+			} else {
+				mappingFileReader.close();
+			}
+		}
+
+		while (!nextMappings.isEmpty()) {
+			var pair = nextMappings.poll();
+			compactedFileWriter.write(pair.getFirst());
+
+			IdMapping idMapping = pair.getSecond().read();
+			if (idMapping != null) {
+				nextMappings.add(new Pair<>(idMapping, pair.getSecond()));
+			} else {
+				pair.getSecond().close();
 			}
-			compactedFileWriter.close();
 		}
-		return compacted;
+		compactedFileWriter.close();
 	}
 
-	private ParquetReader<IdMapping> getParquetMappingReader(HadoopInputFile file) throws IOException {
+	private ParquetReader<IdMapping> getParquetMappingReader(InputFile file) throws IOException {
 		return AvroParquetReader.<IdMapping>builder(file)
 				.withDataModel(reflectData)
+				.withConf(configuration)
 				.useStatsFilter()
 				.build();
 	}
 
-	private void compactDataFiles(File weekFolder) throws IOException {
+	private void compactDataFiles(DataFileMerge merge) throws IOException {
 		Lock readLock = kvinParquet.readLock();
 		try {
-			List<java.nio.file.Path> dataFiles = Files.walk(weekFolder.toPath(), 1)
-					.skip(1)
-					.filter(path -> path.getFileName().toString().startsWith("data_"))
-					// sort descending by index
-					.sorted(Comparator.comparing(p -> {
-						try {
-							return -Integer.parseInt(p.getFileName().toString()
-									.replaceAll("^.*__", "")
-									.replaceAll("\\..*$", ""));
-						} catch (NumberFormatException nfe) {
-							return 0;
-						}
-					}))
-					.collect(Collectors.toList());
-
 			java.nio.file.Path targetFolder = compactionFolder.toPath().resolve(
-					Paths.get(archiveLocation).relativize(weekFolder.toPath()));
+					Paths.get(archiveLocation).relativize(merge.weekFolder.toPath()));
 
-			Path compactionFile = new Path(targetFolder.toAbsolutePath().toString(), "data__1.parquet");
-			ParquetWriter<KvinRecord> compactionFileWriter = getKvinRecordWriter(compactionFile);
+			Path compactionFile = new Path(targetFolder.toAbsolutePath().toString(), merge.targetName);
+			ParquetWriter<KvinRecord> compactionFileWriter = getKvinRecordWriter(compactionFile, kvinParquet.encodingProfile);
 
+			long inputBytes = 0, inputRecords = 0;
 			PriorityQueue<Pair<KvinRecord, IExtendedIterator<KvinRecord>>> nextRecords =
 					new PriorityQueue<>(Comparator.comparing(Pair::getFirst));
-			for (java.nio.file.Path dataFile : dataFiles) {
-				IExtendedIterator<KvinRecord> it = createKvinRecordReader(new Path(dataFile.toString()), null);
+			for (java.nio.file.Path dataFile : merge.dataFiles) {
+				Path path = new Path(dataFile.toString());
+				if (rateLimiter != null) {
+					inputBytes += Files.size(dataFile);
+					try (ParquetFileReader reader = ParquetFileReader.open(getInputFile(path))) {
+						inputRecords += reader.getRecordCount();
+					}
+				}
+				IExtendedIterator<KvinRecord> it = createKvinRecordReader(path, null);
 				if (it.hasNext()) {
 					nextRecords.add(new Pair<>(it.next(), it));
 				} else {
 					it.close();
 				}
 			}
+			// permits for a batch of records based on the average (compressed) record size
+			int batchPermits = inputRecords == 0 ? 0 :
+					(int) Math.max(1, Math.min(Integer.MAX_VALUE, inputBytes * RATE_LIMIT_BATCH_SIZE / inputRecords));
 
 			KvinRecord prevRecord = null;
+			long readRecords = 0;
 			while (!nextRecords.isEmpty()) {
 				var pair = nextRecords.poll();
 				if (prevRecord == null || prevRecord.compareTo(pair.getFirst()) != 0) {
@@ -206,6 +400,9 @@ public class Compactor {
 				} else if (prevRecord != null) {
 					// omit tuple as it is duplicate in terms of id, time, and seqNr
 				}
+				if (batchPermits > 0 && ++readRecords % RATE_LIMIT_BATCH_SIZE == 0) {
+					rateLimiter.acquire(batchPermits);
+				}
 
 				if (pair.getSecond().hasNext()) {
 					nextRecords.add(new Pair<>(pair.getSecond().next(), pair.getSecond()));
@@ -219,4 +416,24 @@ public class Compactor {
 			readLock.release();
 		}
 	}
+
+	static class DataFileMerge {
+		final File weekFolder;
+		final List<java.nio.file.Path> dataFiles;
+		final String targetName;
+
+		DataFileMerge(File weekFolder, List<java.nio.file.Path> dataFiles) {
+			this.weekFolder = weekFolder;
+			this.dataFiles = dataFiles;
+			// reuse the highest sequence number of the merged files as it is freed by the merge
+			int maxSeqNr = 0;
+			for (java.nio.file.Path dataFile : dataFiles) {
+				Matcher m = fileWithSeqNr.matcher(dataFile.getFileName().toString());
+				if (m.matches()) {
+					maxSeqNr = Math.max(maxSeqNr, Integer.parseInt(m.group(2)));
+				}
+			}
+			this.targetName = "data__" + Math.max(1, maxSeqNr) + ".parquet";
+		}
+	}
 }
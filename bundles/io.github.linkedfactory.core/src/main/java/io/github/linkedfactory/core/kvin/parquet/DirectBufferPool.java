@@ -0,0 +1,75 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import org.apache.parquet.bytes.ByteBufferAllocator;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link ByteBufferAllocator} that recycles direct buffers released by Parquet readers.
+ * <p>
+ * Buffers are pooled in power of two size classes up to a maximum total size. Buffers that do not fit into the pool
+ * are left to the garbage collector.
+ */
+public class DirectBufferPool implements ByteBufferAllocator {
+	static final int MIN_SIZE_CLASS = 12; // 4 KB
+	static final int MAX_SIZE_CLASS = 26; // 64 MB
+
+	final Queue<ByteBuffer>[] pools;
+	final AtomicLong pooledBytes = new AtomicLong();
+	final long maxPooledBytes;
+
+	@SuppressWarnings("unchecked")
+	public DirectBufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+		this.pools = new Queue[MAX_SIZE_CLASS + 1];
+		for (int i = MIN_SIZE_CLASS; i <= MAX_SIZE_CLASS; i++) {
+			pools[i] = new ConcurrentLinkedQueue<>();
+		}
+	}
+
+	static int sizeClass(int size) {
+		return Math.max(MIN_SIZE_CLASS, 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1));
+	}
+
+	@Override
+	public ByteBuffer allocate(int size) {
+		int sizeClass = sizeClass(size);
+		if (sizeClass > MAX_SIZE_CLASS) {
+			return ByteBuffer.allocateDirect(size);
+		}
+		ByteBuffer buffer = pools[sizeClass].poll();
+		if (buffer != null) {
+			pooledBytes.addAndGet(-buffer.capacity());
+		} else {
+			buffer = ByteBuffer.allocateDirect(1 << sizeClass);
+		}
+		buffer.clear().limit(size);
+		return buffer;
+	}
+
+	@Override
+	public void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		if (!buffer.isDirect() || Integer.bitCount(capacity) != 1) {
+			// not allocated by this pool
+			return;
+		}
+		int sizeClass = sizeClass(capacity);
+		if (sizeClass < MIN_SIZE_CLASS || sizeClass > MAX_SIZE_CLASS) {
+			return;
+		}
+		if (pooledBytes.addAndGet(capacity) <= maxPooledBytes) {
+			pools[sizeClass].offer(buffer);
+		} else {
+			pooledBytes.addAndGet(-capacity);
+		}
+	}
+
+	@Override
+	public boolean isDirect() {
+		return true;
+	}
+}
@@ -0,0 +1,148 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import io.github.linkedfactory.core.kvin.parquet.records.KvinParquetWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.codec.ZstandardCodec;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Column encodings and compression that are used when writing data files of a {@link KvinParquet} archive.
+ * <p>
+ * Files are written with the Parquet 2.0 writer, hence encodings are selected by enabling or disabling the
+ * dictionary of a column: columns without dictionary use DELTA_BINARY_PACKED for integers, DELTA_BYTE_ARRAY for
+ * binaries and BYTE_STREAM_SPLIT for floating point numbers (if requested).
+ */
+public class EncodingProfile {
+	public enum ColumnEncoding {
+		/**
+		 * Dictionary encoding with RLE/bit-packed indices, this is suitable for columns with long runs of equal
+		 * values like the ids.
+		 */
+		RLE_DICTIONARY,
+		/**
+		 * Delta encoding for INT32 and INT64 columns like monotonic timestamps.
+		 */
+		DELTA_BINARY_PACKED,
+		/**
+		 * Delta encoding of prefixes for BINARY columns.
+		 */
+		DELTA_BYTE_ARRAY,
+		/**
+		 * Byte stream split for FLOAT and DOUBLE columns with noisy values.
+		 */
+		BYTE_STREAM_SPLIT
+	}
+
+	/**
+	 * Dictionary encoding for all columns with SNAPPY compression.
+	 * <p>
+	 * Records within <code>valueObject</code> reference their properties by id and repeat often for event series,
+	 * the writer falls back to DELTA_BYTE_ARRAY if the dictionary of a column chunk grows too large.
+	 */
+	public static final EncodingProfile DEFAULT = new EncodingProfile(CompressionCodecName.SNAPPY);
+
+	/**
+	 * Profile for numeric sensor data with monotonic timestamps per series and ZSTD compression.
+	 */
+	public static final EncodingProfile SENSOR_DATA = new EncodingProfile(CompressionCodecName.ZSTD)
+			.withZstdLevel(ZstandardCodec.DEFAULT_PARQUET_COMPRESS_ZSTD_LEVEL)
+			.withEncoding("itemId", ColumnEncoding.RLE_DICTIONARY)
+			.withEncoding("contextId", ColumnEncoding.RLE_DICTIONARY)
+			.withEncoding("propertyId", ColumnEncoding.RLE_DICTIONARY)
+			.withEncoding("time", ColumnEncoding.DELTA_BINARY_PACKED)
+			.withEncoding("valueFloat", ColumnEncoding.BYTE_STREAM_SPLIT)
+			.withEncoding("valueDouble", ColumnEncoding.BYTE_STREAM_SPLIT);
+
+	final CompressionCodecName codec;
+	final int zstdLevel;
+	final Map<String, ColumnEncoding> encodings;
+
+	public EncodingProfile(CompressionCodecName codec) {
+		this(codec, ParquetHelpers.ZSTD_COMPRESSION_LEVEL, Collections.emptyMap());
+	}
+
+	EncodingProfile(CompressionCodecName codec, int zstdLevel, Map<String, ColumnEncoding> encodings) {
+		this.codec = codec;
+		this.zstdLevel = zstdLevel;
+		this.encodings = encodings;
+	}
+
+	/**
+	 * Returns a copy of this profile that uses the given ZSTD compression level (1 - 22).
+	 */
+	public EncodingProfile withZstdLevel(int zstdLevel) {
+		if (zstdLevel < 1 || zstdLevel > 22) {
+			throw new IllegalArgumentException("Invalid ZSTD compression level: " + zstdLevel);
+		}
+		return new EncodingProfile(codec, zstdLevel, encodings);
+	}
+
+	/**
+	 * Returns a copy of this profile that uses the given encoding for a column of the KVIN tuple schema.
+	 */
+	public EncodingProfile withEncoding(String column, ColumnEncoding encoding) {
+		PrimitiveTypeName type = ParquetHelpers.kvinTupleType.getType(column).asPrimitiveType().getPrimitiveTypeName();
+		boolean supported;
+		switch (encoding) {
+			case DELTA_BINARY_PACKED:
+				supported = type == PrimitiveTypeName.INT32 || type == PrimitiveTypeName.INT64;
+				break;
+			case DELTA_BYTE_ARRAY:
+				supported = type == PrimitiveTypeName.BINARY;
+				break;
+			case BYTE_STREAM_SPLIT:
+				supported = type == PrimitiveTypeName.FLOAT || type == PrimitiveTypeName.DOUBLE;
+				break;
+			default:
+				supported = type != PrimitiveTypeName.BOOLEAN;
+		}
+		if (!supported) {
+			throw new IllegalArgumentException("Encoding " + encoding + " is not supported for column "
+					+ column + " of type " + type);
+		}
+		Map<String, ColumnEncoding> newEncodings = new LinkedHashMap<>(encodings);
+		newEncodings.put(column, encoding);
+		return new EncodingProfile(codec, zstdLevel, Collections.unmodifiableMap(newEncodings));
+	}
+
+	public CompressionCodecName getCodec() {
+		return codec;
+	}
+
+	public int getZstdLevel() {
+		return zstdLevel;
+	}
+
+	public Map<String, ColumnEncoding> getEncodings() {
+		return encodings;
+	}
+
+	Configuration createConfiguration(Configuration base) {
+		Configuration conf = new Configuration(base);
+		conf.setInt(ZstandardCodec.PARQUET_COMPRESS_ZSTD_LEVEL, zstdLevel);
+		return conf;
+	}
+
+	KvinParquetWriter.Builder apply(KvinParquetWriter.Builder builder) {
+		builder.withCompressionCodec(codec).withDictionaryEncoding(true);
+		for (Map.Entry<String, ColumnEncoding> entry : encodings.entrySet()) {
+			switch (entry.getValue()) {
+				case RLE_DICTIONARY:
+					builder.withDictionaryEncoding(entry.getKey(), true);
+					break;
+				case BYTE_STREAM_SPLIT:
+					// byte stream split applies to all floating point columns without dictionary
+					builder.withByteStreamSplitEncoding(true);
+					// fall through as the dictionary has to be disabled
+				default:
+					builder.withDictionaryEncoding(entry.getKey(), false);
+			}
+		}
+		return builder;
+	}
+}
@@ -0,0 +1,195 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import net.enilink.commons.util.Pair;
+import org.apache.avro.Schema;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.column.ParquetProperties;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.hadoop.util.HadoopOutputFile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+
+import static io.github.linkedfactory.core.kvin.parquet.ParquetHelpers.*;
+
+/**
+ * Catalog of the items within a {@link KvinParquet} archive with the ids of their properties and the time bounds of
+ * their values.
+ * <p>
+ * The catalog is stored as Parquet files <code>metadata/catalog/catalog__N.parquet</code> where each write adds a
+ * file with the items that it has written. The entries are kept sorted by item URI to answer prefix queries for
+ * descendants.
+ * <p>
+ * This class is not thread-safe, {@link KvinParquet} only modifies it while holding its write lock.
+ */
+class ItemCatalog {
+	static final String CATALOG_FOLDER = "catalog";
+	static final String CATALOG_TYPE = "catalog";
+	static final Schema catalogSchema = reflectData.getSchema(CatalogEntry.class);
+
+	// item -> entries per context
+	final NavigableMap<String, List<CatalogEntry>> items = new TreeMap<>();
+	CatalogEntry lastEntry;
+
+	/**
+	 * Returns the catalog files within the given metadata folder ordered by their sequence number.
+	 */
+	static List<java.nio.file.Path> getCatalogFiles(java.nio.file.Path metadataPath) throws IOException {
+		java.nio.file.Path catalogPath = metadataPath.resolve(CATALOG_FOLDER);
+		return getMappingFiles(catalogPath).getOrDefault(CATALOG_TYPE, Collections.emptyList()).stream()
+				.sorted(Comparator.comparing(Pair::getSecond))
+				.map(p -> catalogPath.resolve(p.getFirst()))
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Loads the catalog from all catalog files within the given metadata folder.
+	 */
+	static ItemCatalog load(java.nio.file.Path metadataPath) throws IOException {
+		ItemCatalog catalog = new ItemCatalog();
+		for (java.nio.file.Path file : getCatalogFiles(metadataPath)) {
+			catalog.read(file);
+		}
+		return catalog;
+	}
+
+	boolean isEmpty() {
+		return items.isEmpty();
+	}
+
+	void add(String item, long contextId, long propertyId, long time) {
+		// values are usually written item by item
+		if (lastEntry == null || lastEntry.contextId != contextId || !lastEntry.item.equals(item)) {
+			lastEntry = getOrCreate(item, contextId);
+		}
+		lastEntry.add(propertyId, time);
+	}
+
+	void addAll(ItemCatalog other) {
+		for (List<CatalogEntry> entries : other.items.values()) {
+			for (CatalogEntry entry : entries) {
+				add(entry);
+			}
+		}
+	}
+
+	void add(CatalogEntry entry) {
+		getOrCreate(entry.item, entry.contextId).addAll(entry);
+	}
+
+	private CatalogEntry getOrCreate(String item, long contextId) {
+		List<CatalogEntry> entries = items.computeIfAbsent(item, k -> new ArrayList<>(1));
+		for (CatalogEntry entry : entries) {
+			if (entry.contextId == contextId) {
+				return entry;
+			}
+		}
+		CatalogEntry entry = new CatalogEntry(item, contextId);
+		entries.add(entry);
+		return entry;
+	}
+
+	/**
+	 * Raises the lower time bounds of the entries to the given cutoffs and removes the entries whose values are all
+	 * before their cutoff.
+	 *
+	 * @return <code>true</code> if the catalog has been changed
+	 */
+	boolean removeBefore(ToLongFunction<CatalogEntry> cutoffs) {
+		boolean changed = false;
+		for (Iterator<List<CatalogEntry>> it = items.values().iterator(); it.hasNext(); ) {
+			List<CatalogEntry> entries = it.next();
+			for (Iterator<CatalogEntry> entryIt = entries.iterator(); entryIt.hasNext(); ) {
+				CatalogEntry entry = entryIt.next();
+				long cutoff = cutoffs.applyAsLong(entry);
+				if (cutoff > entry.maxTime) {
+					entryIt.remove();
+					changed = true;
+				} else if (cutoff > entry.minTime) {
+					entry.removeBefore(cutoff);
+					changed = true;
+				}
+			}
+			if (entries.isEmpty()) {
+				it.remove();
+			}
+		}
+		lastEntry = null;
+		return changed;
+	}
+
+	CatalogEntry get(String item, long contextId) {
+		List<CatalogEntry> entries = items.get(item);
+		if (entries != null) {
+			for (CatalogEntry entry : entries) {
+				if (entry.contextId == contextId) {
+					return entry;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the items of the given context whose URI starts with the given prefix.
+	 */
+	List<String> descendants(String prefix, long contextId, long limit) {
+		List<String> result = new ArrayList<>();
+		for (Map.Entry<String, List<CatalogEntry>> entry : items.tailMap(prefix, true).entrySet()) {
+			if (!entry.getKey().startsWith(prefix) || limit > 0 && result.size() >= limit) {
+				break;
+			}
+			if (entry.getValue().stream().anyMatch(e -> e.contextId == contextId)) {
+				result.add(entry.getKey());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the sorted ids of the properties of an item.
+	 */
+	long[] properties(String item, long contextId) {
+		CatalogEntry entry = get(item, contextId);
+		return entry == null ? new long[0] : entry.propertyIds;
+	}
+
+	void read(java.nio.file.Path file) throws IOException {
+		try (ParquetReader<CatalogEntry> reader = AvroParquetReader.<CatalogEntry>builder(getInputFile(new Path(file.toString())))
+				.withDataModel(reflectData)
+				.withConf(configuration)
+				.build()) {
+			CatalogEntry entry;
+			while ((entry = reader.read()) != null) {
+				add(entry);
+			}
+		}
+	}
+
+	void write(java.nio.file.Path file) throws IOException {
+		Files.createDirectories(file.getParent());
+		try (ParquetWriter<Object> writer = AvroParquetWriter.builder(HadoopOutputFile.fromPath(new Path(file.toString()), configuration))
+				.withWriterVersion(ParquetProperties.WriterVersion.PARQUET_2_0)
+				.withSchema(catalogSchema)
+				.withConf(configuration)
+				.withDictionaryEncoding(true)
+				.withCompressionCodec(CompressionCodecName.SNAPPY)
+				.withRowGroupSize(ROW_GROUP_SIZE_MAPPINGS)
+				.withPageSize(PAGE_SIZE)
+				.withDataModel(reflectData)
+				.build()) {
+			for (List<CatalogEntry> entries : items.values()) {
+				for (CatalogEntry entry : entries) {
+					writer.write(entry);
+				}
+			}
+		}
+	}
+}
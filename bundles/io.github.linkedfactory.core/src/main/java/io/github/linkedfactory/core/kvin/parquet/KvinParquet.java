@@ -2,10 +2,12 @@ package io.github.linkedfactory.core.kvin.parquet;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import io.github.linkedfactory.core.kvin.Kvin;
 import io.github.linkedfactory.core.kvin.KvinListener;
 import io.github.linkedfactory.core.kvin.KvinTuple;
 import io.github.linkedfactory.core.kvin.Record;
+import io.github.linkedfactory.core.kvin.RetentionPolicy;
 import io.github.linkedfactory.core.kvin.parquet.records.KvinRecordConverter;
 import io.github.linkedfactory.core.kvin.parquet.records.KvinRecord;
 import io.github.linkedfactory.core.kvin.parquet.records.SimpleGroupExt;
@@ -16,12 +18,11 @@ import net.enilink.commons.iterator.WrappedIterator;
 import net.enilink.commons.util.Pair;
 import net.enilink.komma.core.URI;
 import net.enilink.komma.core.URIs;
-import org.apache.hadoop.conf.Configuration;
+import org.apache.commons.io.FileUtils;
 import org.apache.hadoop.fs.Path;
 import org.apache.parquet.HadoopReadOptions;
 import org.apache.parquet.ParquetReadOptions;
 import org.apache.parquet.avro.AvroParquetReader;
-import org.apache.parquet.bytes.HeapByteBufferAllocator;
 import org.apache.parquet.column.page.PageReadStore;
 import org.apache.parquet.example.data.Group;
 import org.apache.parquet.filter2.compat.FilterCompat;
@@ -34,7 +35,6 @@ import org.apache.parquet.hadoop.metadata.BlockMetaData;
 import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
 import org.apache.parquet.hadoop.metadata.ColumnPath;
 import org.apache.parquet.hadoop.metadata.ParquetMetadata;
-import org.apache.parquet.hadoop.util.HadoopInputFile;
 import org.apache.parquet.internal.column.columnindex.ColumnIndex;
 import org.apache.parquet.internal.column.columnindex.OffsetIndex;
 import org.apache.parquet.internal.filter2.columnindex.ColumnIndexStore;
@@ -42,6 +42,7 @@ import org.apache.parquet.io.ColumnIOFactory;
 import org.apache.parquet.io.InputFile;
 import org.apache.parquet.io.MessageColumnIO;
 import org.apache.parquet.io.RecordReader;
+import org.apache.parquet.io.SeekableInputStream;
 import org.apache.parquet.io.api.Binary;
 import org.eclipse.rdf4j.common.concurrent.locks.Lock;
 import org.eclipse.rdf4j.common.concurrent.locks.ReadPrefReadWriteLockManager;
@@ -60,9 +61,13 @@ import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.sql.Timestamp;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.function.ToLongFunction;
 import java.util.regex.Matcher;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -74,6 +79,13 @@ import static org.apache.parquet.filter2.predicate.FilterApi.*;
 public class KvinParquet implements Kvin {
 	static final Logger log = LoggerFactory.getLogger(KvinParquet.class);
 	static final long[] EMPTY_IDS = {0};
+	// maximum number of records that are sorted in memory before they are spilled to disk
+	static final int DEFAULT_SORT_BUFFER_SIZE = 500_000;
+	// upper limit for the number of written ids that are eagerly added to the id caches
+	static final int MAX_CACHED_NEW_IDS = 10000;
+	// approximate memory limits in bytes for the cached footers and column indexes
+	static final long FOOTER_CACHE_WEIGHT = 64L * 1024 * 1024;
+	static final long INDEX_CACHE_WEIGHT = 128L * 1024 * 1024;
 	static Comparator<KvinRecord> KVIN_RECORD_COMPARATOR = (a, b) -> {
 		int diff = (int)(a.itemId - b.itemId);
 		if (diff != 0) {
@@ -100,27 +112,254 @@ public class KvinParquet implements Kvin {
 	final Cache<URI, Long> itemIdCache = CacheBuilder.newBuilder().maximumSize(10000).build();
 	final Cache<URI, Long> propertyIdCache = CacheBuilder.newBuilder().maximumSize(10000).build();
 	final Cache<URI, Long> contextIdCache = CacheBuilder.newBuilder().maximumSize(10000).build();
-	final Cache<Pair<Path, Integer>, ColumnIndexStore> indexCache = CacheBuilder.newBuilder().maximumSize(10000).build();
+	final Cache<Pair<Path, Integer>, CachedColumnIndexStore> indexCache = CacheBuilder.newBuilder()
+			.maximumWeight(INDEX_CACHE_WEIGHT)
+			.weigher((Pair<Path, Integer> key, CachedColumnIndexStore store) -> store.weight)
+			.build();
 
 	// Lock
-	Map<Path, InputFileInfo> inputFileCache = new HashMap<>(); // hadoop input file cache
+	final Cache<Path, InputFileInfo> inputFileCache = CacheBuilder.newBuilder() // input file and footer cache
+			.maximumWeight(FOOTER_CACHE_WEIGHT)
+			.weigher((Path key, InputFileInfo info) -> info.weight)
+			.build();
 	Cache<Long, URI> propertyIdReverseLookUpCache = CacheBuilder.newBuilder().maximumSize(10000).build();
 	Cache<java.nio.file.Path, Properties> metaCache = CacheBuilder.newBuilder().maximumSize(10000).build();
 	Cache<java.nio.file.Path, List<Path>> filesCache = CacheBuilder.newBuilder().maximumSize(10000).build();
 	String archiveLocation;
+	EncodingProfile encodingProfile;
+	Partitioning partitioning;
+	int sortBufferSize = DEFAULT_SORT_BUFFER_SIZE;
+	// loaded on first use
+	volatile ItemCatalog catalog;
+	// completed when the item catalog of an archive without catalog has been created
+	final CompletableFuture<Void> catalogCreation;
 	ReadWriteLockManager lockManager = new ReadPrefReadWriteLockManager(true, 5000);
 
 	public KvinParquet(String archiveLocation) {
+		this(archiveLocation, EncodingProfile.DEFAULT);
+	}
+
+	/**
+	 * Creates an archive whose data files are written with the given column encodings and compression.
+	 */
+	public KvinParquet(String archiveLocation, EncodingProfile encodingProfile) {
+		this(archiveLocation, encodingProfile, Partitioning.WEEK);
+	}
+
+	/**
+	 * Creates an archive whose data files are written with the given column encodings and compression.
+	 * <p>
+	 * The partitioning is only used for new archives, existing archives keep the partitioning that is recorded in
+	 * their metadata.
+	 */
+	public KvinParquet(String archiveLocation, EncodingProfile encodingProfile, Partitioning partitioning) {
 		this.archiveLocation = archiveLocation;
+		this.encodingProfile = encodingProfile;
 		if (!this.archiveLocation.endsWith("/")) {
 			this.archiveLocation = this.archiveLocation + "/";
 		}
+		this.partitioning = readPartitioning(partitioning);
 		java.nio.file.Path tempPath = Paths.get(archiveLocation, ".tmp");
 		try {
 			validateAndRepairTempFiles(tempPath);
 		} catch (IOException e) {
 			log.error("Error while repairing unfinished transaction", e);
 		}
+		this.catalogCreation = createCatalogIfMissing();
+	}
+
+	/**
+	 * Creates the item catalog in the background for archives that were written before the catalog was introduced.
+	 * <p>
+	 * The returned future is completed when the catalog has been published. A marker file ensures that the creation
+	 * is restarted if it is interrupted, as values that are added in the meantime already create catalog files.
+	 */
+	private CompletableFuture<Void> createCatalogIfMissing() {
+		java.nio.file.Path archivePath = Paths.get(archiveLocation);
+		java.nio.file.Path metadataPath = archivePath.resolve("metadata");
+		java.nio.file.Path markerPath = metadataPath.resolve(".catalog-incomplete");
+		try {
+			if (!Files.exists(archivePath.resolve("meta.properties")) ||
+					!Files.exists(markerPath) && !ItemCatalog.getCatalogFiles(metadataPath).isEmpty()) {
+				return CompletableFuture.completedFuture(null);
+			}
+			Files.createDirectories(metadataPath);
+			if (!Files.exists(markerPath)) {
+				Files.createFile(markerPath);
+			}
+		} catch (IOException e) {
+			log.error("Error while creating the item catalog", e);
+			return CompletableFuture.failedFuture(e);
+		}
+		CompletableFuture<Void> creation = new CompletableFuture<>();
+		Thread thread = new Thread(() -> {
+			try {
+				createCatalog(archivePath, metadataPath, markerPath);
+				creation.complete(null);
+			} catch (Throwable e) {
+				log.error("Error while creating the item catalog", e);
+				creation.completeExceptionally(e);
+			}
+		}, "kvin-parquet-catalog");
+		thread.setDaemon(true);
+		thread.start();
+		return creation;
+	}
+
+	/**
+	 * Creates the item catalog by scanning all data files.
+	 * <p>
+	 * The read lock is only held while a single partition is scanned so that writes and compactions are not blocked
+	 * by the whole scan. The catalog files of concurrent writes are kept and the scanned catalog is published as an
+	 * additional catalog file.
+	 */
+	private void createCatalog(java.nio.file.Path archivePath, java.nio.file.Path metadataPath,
+	                           java.nio.file.Path markerPath) throws IOException {
+		log.info("Creating item catalog for archive {}", archiveLocation);
+		Map<Long, String> items;
+		List<java.nio.file.Path> folders;
+		Lock readLock = readLock();
+		try {
+			items = readMappings(metadataPath, "items");
+			folders = getPartitionFolders();
+		} finally {
+			readLock.release();
+		}
+		ItemCatalog newCatalog = new ItemCatalog();
+		for (java.nio.file.Path folder : folders) {
+			readLock = readLock();
+			try {
+				if (!Files.exists(folder)) {
+					continue;
+				}
+				for (Path dataFile : getDataFiles(folder.toString())) {
+					IExtendedIterator<KvinRecord> records = ParquetHelpers.createKvinRecordReader(dataFile, null);
+					try {
+						while (records.hasNext()) {
+							KvinRecord record = records.next();
+							String item = items.get(record.itemId);
+							if (item != null) {
+								newCatalog.add(item, record.contextId, record.propertyId, record.time);
+							}
+						}
+					} finally {
+						records.close();
+					}
+				}
+			} finally {
+				readLock.release();
+			}
+		}
+
+		java.nio.file.Path tempPath = archivePath.resolve(".catalog");
+		FileUtils.deleteDirectory(tempPath.toFile());
+		newCatalog.write(tempPath.resolve("metadata").resolve(ItemCatalog.CATALOG_FOLDER)
+				.resolve(ItemCatalog.CATALOG_TYPE + "__1.parquet"));
+		// excludes writes and the retention that also create catalog files
+		synchronized (this) {
+			moveCatalogFiles(tempPath);
+			Files.delete(markerPath);
+			// reloaded with the catalog files of concurrent writes
+			catalog = null;
+		}
+		deleteTempFiles(tempPath);
+	}
+
+	/**
+	 * Determines if the item catalog is available without waiting for its creation.
+	 */
+	boolean isCatalogReady() {
+		return catalogCreation.isDone() && !catalogCreation.isCompletedExceptionally();
+	}
+
+	/**
+	 * Reads all id mappings of the given type.
+	 */
+	private Map<Long, String> readMappings(java.nio.file.Path metadataPath, String type) throws IOException {
+		Map<Long, String> mappings = new HashMap<>();
+		for (Pair<String, Integer> mappingFile : getMappingFiles(metadataPath).getOrDefault(type, Collections.emptyList())) {
+			Path path = new Path(metadataPath.resolve(mappingFile.getFirst()).toString());
+			try (ParquetReader<IdMapping> reader = createReader(getInputFile(path), FilterCompat.NOOP)) {
+				IdMapping mapping;
+				while ((mapping = reader.read()) != null) {
+					mappings.put(mapping.getId(), mapping.getValue());
+				}
+			}
+		}
+		return mappings;
+	}
+
+	/**
+	 * Returns the item catalog, the caller has to hold the read or write lock. Waits until the catalog of an archive
+	 * without catalog has been created, hence the caller must not hold the monitor of this store.
+	 */
+	ItemCatalog getCatalog() throws IOException {
+		try {
+			catalogCreation.join();
+		} catch (CompletionException e) {
+			// the failure has been logged, use the catalog files that are available
+		}
+		ItemCatalog result = catalog;
+		if (result == null) {
+			synchronized (this) {
+				result = catalog;
+				if (result == null) {
+					result = ItemCatalog.load(Paths.get(archiveLocation, "metadata"));
+					catalog = result;
+				}
+			}
+		}
+		return result;
+	}
+
+	private Partitioning readPartitioning(Partitioning requested) {
+		java.nio.file.Path archivePropertiesPath = Paths.get(archiveLocation, "metadata", "archive.properties");
+		if (Files.exists(archivePropertiesPath)) {
+			Properties archiveProperties = new Properties();
+			try (var in = Files.newInputStream(archivePropertiesPath)) {
+				archiveProperties.load(in);
+				Partitioning recorded = Partitioning.forName(
+						archiveProperties.getProperty("partitioning", Partitioning.WEEK.getName()));
+				if (recorded != requested) {
+					log.warn("Using recorded partitioning '{}' instead of '{}' for archive {}", recorded,
+							requested, archiveLocation);
+				}
+				return recorded;
+			} catch (IOException | IllegalArgumentException e) {
+				log.error("Error while reading archive properties", e);
+			}
+		} else if (Files.exists(Paths.get(archiveLocation, "meta.properties"))) {
+			// archives without recorded partitioning use weeks
+			return Partitioning.WEEK;
+		}
+		return requested;
+	}
+
+	private void writePartitioning() throws IOException {
+		java.nio.file.Path archivePropertiesPath = Paths.get(archiveLocation, "metadata", "archive.properties");
+		if (!Files.exists(archivePropertiesPath)) {
+			Files.createDirectories(archivePropertiesPath.getParent());
+			Properties archiveProperties = new Properties();
+			archiveProperties.setProperty("partitioning", partitioning.getName());
+			try (var out = Files.newOutputStream(archivePropertiesPath)) {
+				archiveProperties.store(out, null);
+			}
+		}
+	}
+
+	public Partitioning getPartitioning() {
+		return partitioning;
+	}
+
+	/**
+	 * Sets the maximum number of records that are sorted in memory while writing. Larger inputs are sorted in runs
+	 * that are spilled to temporary files and merged afterwards.
+	 */
+	public void setSortBufferSize(int sortBufferSize) {
+		if (sortBufferSize < 1) {
+			throw new IllegalArgumentException("Invalid sort buffer size: " + sortBufferSize);
+		}
+		this.sortBufferSize = sortBufferSize;
 	}
 
 	static boolean anyBetween(long[] values, long min, long max) {
@@ -134,7 +373,7 @@ public class KvinParquet implements Kvin {
 
 	private List<IdMapping> fetchMappingIds(Path mappingFile, FilterPredicate filter) throws IOException {
 		List<IdMapping> mappings = null;
-		HadoopInputFile inputFile = getFile(mappingFile).file;
+		InputFile inputFile = getFile(mappingFile).file;
 		try (ParquetReader<IdMapping> reader = createReader(inputFile, FilterCompat.get(filter))) {
 			while (true) {
 				var mapping = reader.read();
@@ -182,23 +421,19 @@ public class KvinParquet implements Kvin {
 	}
 
 	private InputFileInfo getFile(Path path) {
-		InputFileInfo inputFileInfo;
-		synchronized (inputFileCache) {
-			inputFileInfo = inputFileCache.get(path);
-			if (inputFileInfo == null) {
-				try {
-					HadoopInputFile inputFile = HadoopInputFile.fromPath(path, new Configuration());
-					ParquetReadOptions.Builder optionsBuilder = HadoopReadOptions.builder(configuration, path);
-					var options = optionsBuilder.build();
-					ParquetMetadata metadata = ParquetFileReader.readFooter(inputFile, options, inputFile.newStream());
-					inputFileInfo = new InputFileInfo(path, inputFile, metadata);
-				} catch (IOException e) {
-					throw new RuntimeException(e);
+		try {
+			return inputFileCache.get(path, () -> {
+				InputFile inputFile = getInputFile(path);
+				ParquetReadOptions.Builder optionsBuilder = HadoopReadOptions.builder(configuration, path);
+				var options = optionsBuilder.build();
+				try (SeekableInputStream stream = inputFile.newStream()) {
+					ParquetMetadata metadata = ParquetFileReader.readFooter(inputFile, options, stream);
+					return new InputFileInfo(path, inputFile, metadata);
 				}
-				inputFileCache.put(path, inputFileInfo);
-			}
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new RuntimeException(e.getCause());
 		}
-		return inputFileInfo;
 	}
 
 	Lock writeLock() throws IOException {
@@ -274,29 +509,26 @@ public class KvinParquet implements Kvin {
 			ParquetWriter<Object> contextMappingWriter = getParquetMappingWriter(contextMappingFile);
 
 			WriterState writerState = null;
-			String prevKey = null;
+			Partitioning.Partition partition = null;
+			int bufferedRecords = 0;
 			for (KvinTuple tuple : tuples) {
 				KvinRecord record = new KvinRecord();
 
-				Calendar tupleDate = getDate(tuple.time);
-				int year = tupleDate.get(Calendar.YEAR);
-				int week = tupleDate.get(Calendar.WEEK_OF_YEAR);
-
-				String key = year + "_" + week;
-				if (!key.equals(prevKey)) {
+				// the partition is only computed if the time leaves the range of the previous one
+				if (partition == null || !partition.contains(tuple.time)) {
+					partition = partitioning.partition(tuple.time);
+					String key = partition.yearFolder() + "_" + partition.name;
 					writerState = writers.get(key);
 					if (writerState == null) {
-						String yearFolderName = String.format("%04d", year);
-						String weekFolderName = String.format("%02d", week);
-						java.nio.file.Path file = tempPath.resolve(yearFolderName)
-								.resolve(weekFolderName)
+						java.nio.file.Path file = tempPath.resolve(partition.yearFolder())
+								.resolve(partition.name)
 								.resolve("data__1.parquet");
 						Files.createDirectories(file.getParent());
-						writerState = new WriterState(file, getKvinRecordWriter(new Path(file.toString())),
-								year, week);
+						writerState = new WriterState(file, getKvinRecordWriter(new Path(file.toString()), encodingProfile),
+								partition.year, partition.name);
+						writerState.sorter = new RecordSorter(tempPath.resolve("sort").resolve(key));
 						writers.put(key, writerState);
 					}
-					prevKey = key;
 				}
 
 				// writing mappings and values
@@ -311,18 +543,33 @@ public class KvinParquet implements Kvin {
 				Object value = tuple.value;
 				if (value instanceof Record || value instanceof URI || value instanceof BigInteger ||
 						value instanceof BigDecimal || value instanceof Short || value instanceof Object[]) {
-					value = ByteBuffer.wrap(encodeRecord(value));
+					// the properties of records share the ids of the property mappings
+					value = ByteBuffer.wrap(encodeRecord(value,
+							p -> generatePropertyId(p, writeContext, propertyMappingWriter)));
 				}
 				record.value = value;
 
-				writerState.writer.write(record);
+				// records are sorted per partition to get narrow statistics for the row groups
+				writerState.sorter.add(record);
+				if (++bufferedRecords >= sortBufferSize) {
+					for (WriterState state : writers.values()) {
+						state.sorter.spill();
+					}
+					bufferedRecords = 0;
+				}
+				writeContext.catalog.add(tuple.item.toString(), record.contextId, record.propertyId, record.time);
 				writerState.minMax[0] = Math.min(writerState.minMax[0], writeContext.lastItemId);
 				writerState.minMax[1] = Math.max(writerState.minMax[1], writeContext.lastItemId);
 			}
 
 			for (WriterState state : writers.values()) {
+				state.sorter.writeTo(state.writer);
 				state.writer.close();
 			}
+			if (!writeContext.catalog.isEmpty()) {
+				writeContext.catalog.write(tempPath.resolve("metadata").resolve(ItemCatalog.CATALOG_FOLDER)
+						.resolve(ItemCatalog.CATALOG_TYPE + "__1.parquet"));
+			}
 
 			boolean itemsWritten = itemMappingWriter.getDataSize() > 0;
 			itemMappingWriter.close();
@@ -378,16 +625,16 @@ public class KvinParquet implements Kvin {
 						} catch (IOException e) {
 							log.error("Error while loading meta data", e);
 						}
-						yearMeta.stringPropertyNames().forEach(week -> {
-							String idRange = String.valueOf(yearMeta.get(week));
-							String key = parent.getFileName() + "_" + week;
+						yearMeta.stringPropertyNames().forEach(partitionName -> {
+							String idRange = String.valueOf(yearMeta.get(partitionName));
+							String key = parent.getFileName() + "_" + partitionName;
 
 							WriterState state = writers.get(key);
 							if (state != null) {
-								long[] minMaxWeek = splitRange(idRange);
-								if (minMaxWeek != null) {
-									state.minMax[0] = Math.min(state.minMax[0], minMaxWeek[0]);
-									state.minMax[1] = Math.max(state.minMax[1], minMaxWeek[1]);
+								long[] minMaxPartition = splitRange(idRange);
+								if (minMaxPartition != null) {
+									state.minMax[0] = Math.min(state.minMax[0], minMaxPartition[0]);
+									state.minMax[1] = Math.max(state.minMax[1], minMaxPartition[1]);
 								}
 							}
 						});
@@ -413,9 +660,10 @@ public class KvinParquet implements Kvin {
 			}
 
 			writeLock = writeLock();
-			moveTempFiles(tempPath);
+			moveTempFiles(tempPath, writeContext);
 		} catch (Throwable e) {
 			log.error("Error while adding data", e);
+			throw e;
 		} finally {
 			if (writeLock != null) {
 				writeLock.release();
@@ -424,11 +672,39 @@ public class KvinParquet implements Kvin {
 		}
 	}
 
-	private void moveTempFiles(java.nio.file.Path tempPath) throws IOException {
-		moveDataFiles(tempPath);
+	private void moveTempFiles(java.nio.file.Path tempPath, WriteContext writeContext) throws IOException {
+		Set<java.nio.file.Path> movedFiles = moveDataFiles(tempPath);
 		moveMappingFiles(tempPath);
+		moveCatalogFiles(tempPath);
+		writePartitioning();
 		deleteTempFiles(tempPath);
-		clearCaches();
+		if (writeContext != null) {
+			updateCaches(movedFiles, writeContext);
+			if (catalog != null) {
+				catalog.addAll(writeContext.catalog);
+			}
+		} else {
+			// temporary files of an interrupted write, the written ids are unknown
+			clearCaches();
+			catalog = null;
+		}
+	}
+
+	private void moveCatalogFiles(java.nio.file.Path tempPath) throws IOException {
+		java.nio.file.Path metadataPath = Paths.get(archiveLocation, "metadata");
+		List<java.nio.file.Path> newFiles = ItemCatalog.getCatalogFiles(tempPath.resolve("metadata"));
+		if (!newFiles.isEmpty()) {
+			List<java.nio.file.Path> existingFiles = ItemCatalog.getCatalogFiles(metadataPath);
+			int seqNr = existingFiles.isEmpty() ? 0 : existingFiles.stream().mapToInt(p -> {
+				Matcher m = fileWithSeqNr.matcher(p.getFileName().toString());
+				return m.matches() ? Integer.parseInt(m.group(2)) : 0;
+			}).max().orElse(0);
+			java.nio.file.Path catalogPath = metadataPath.resolve(ItemCatalog.CATALOG_FOLDER);
+			Files.createDirectories(catalogPath);
+			for (java.nio.file.Path newFile : newFiles) {
+				Files.move(newFile, catalogPath.resolve(ItemCatalog.CATALOG_TYPE + "__" + (++seqNr) + ".parquet"));
+			}
+		}
 	}
 
 	private void deleteTempFiles(java.nio.file.Path tempPath) throws IOException {
@@ -441,7 +717,7 @@ public class KvinParquet implements Kvin {
 	private void validateAndRepairTempFiles(java.nio.file.Path tempPath) throws IOException {
 		if (Files.exists(tempPath)) {
 			if (Files.exists(tempPath.resolve("valid"))) {
-				moveTempFiles(tempPath);
+				moveTempFiles(tempPath, null);
 			} else {
 				deleteTempFiles(tempPath);
 			}
@@ -464,8 +740,9 @@ public class KvinParquet implements Kvin {
 		}
 	}
 
-	private void moveDataFiles(java.nio.file.Path source) throws IOException {
+	private Set<java.nio.file.Path> moveDataFiles(java.nio.file.Path source) throws IOException {
 		java.nio.file.Path destination = Paths.get(archiveLocation);
+		Set<java.nio.file.Path> movedFiles = new HashSet<>();
 		Files.walk(source)
 				.skip(1)
 				.filter(p -> Files.isRegularFile(p))
@@ -495,11 +772,13 @@ public class KvinParquet implements Kvin {
 							log.debug("moving: " + sourceFile + " -> " + destFile);
 							Files.createDirectories(destFile.getParent());
 							Files.move(sourceFile, destFile);
+							movedFiles.add(destFile);
 						}
 					} catch (IOException e) {
 						throw new UncheckedIOException(e);
 					}
 				});
+		return movedFiles;
 	}
 
 	private void createMetaFiles(java.nio.file.Path tempPath, Map<Integer, List<WriterState>> writersPerYear) throws IOException {
@@ -514,13 +793,12 @@ public class KvinParquet implements Kvin {
 				yearMeta.load(Files.newInputStream(yearMetaPath));
 			}
 			for (WriterState state : entry.getValue()) {
-				String weekFolderName = String.format("%02d", state.week);
-				String idRange = yearMeta.getProperty(weekFolderName);
+				String idRange = yearMeta.getProperty(state.partition);
 				if (idRange != null) {
 					long[] minMax = splitRange(idRange);
-					yearMeta.put(weekFolderName, Math.min(minMax[0], state.minMax[0]) + "-" + Math.max(minMax[1], state.minMax[1]));
+					yearMeta.put(state.partition, Math.min(minMax[0], state.minMax[0]) + "-" + Math.max(minMax[1], state.minMax[1]));
 				} else {
-					yearMeta.put(weekFolderName, state.minMax[0] + "-" + state.minMax[1]);
+					yearMeta.put(state.partition, state.minMax[0] + "-" + state.minMax[1]);
 				}
 			}
 			var tempYearFolder = tempPath.resolve(yearFolderName);
@@ -529,27 +807,69 @@ public class KvinParquet implements Kvin {
 		}
 	}
 
+	/**
+	 * Updates the caches after a write. The ids of new entities are added to the id caches and only the cached
+	 * metadata and file lists of the changed files and folders are evicted.
+	 */
+	private void updateCaches(Set<java.nio.file.Path> changedFiles, WriteContext writeContext) {
+		invalidateFiles(changedFiles);
+		updateIdCache(itemIdCache, writeContext.itemMap);
+		updateIdCache(propertyIdCache, writeContext.propertyMap);
+		updateIdCache(contextIdCache, writeContext.contextMap);
+	}
+
+	private void updateIdCache(Cache<URI, Long> idCache, Map<String, Long> writtenIds) {
+		// ids of existing entities never change, hence only unknown (cached as 0) entities need to be updated
+		idCache.asMap().replaceAll((uri, id) -> {
+			if (id == 0L) {
+				Long newId = writtenIds.get(uri.toString());
+				return newId != null ? newId : 0L;
+			}
+			return id;
+		});
+		if (writtenIds.size() <= MAX_CACHED_NEW_IDS) {
+			writtenIds.forEach((value, id) -> idCache.put(URIs.createURI(value), id));
+		}
+	}
+
+	/**
+	 * Evicts the cached metadata of files that were created, replaced or deleted and the file lists of their folders.
+	 */
+	void invalidateFiles(Collection<java.nio.file.Path> files) {
+		if (files.isEmpty()) {
+			return;
+		}
+		Set<java.nio.file.Path> normalizedFiles = files.stream().map(KvinParquet::normalize).collect(Collectors.toSet());
+		Set<java.nio.file.Path> folders = normalizedFiles.stream().map(java.nio.file.Path::getParent)
+				.collect(Collectors.toSet());
+		Set<Path> hadoopPaths = normalizedFiles.stream().map(f -> new Path(f.toString())).collect(Collectors.toSet());
+		inputFileCache.asMap().keySet().removeIf(p -> hadoopPaths.contains(normalize(p)));
+		indexCache.asMap().keySet().removeIf(key -> hadoopPaths.contains(normalize(key.getFirst())));
+		metaCache.asMap().keySet().removeIf(p -> normalizedFiles.contains(normalize(p)));
+		filesCache.asMap().keySet().removeIf(p -> folders.contains(normalize(p)));
+	}
+
+	static java.nio.file.Path normalize(java.nio.file.Path path) {
+		return path.toAbsolutePath().normalize();
+	}
+
+	static Path normalize(Path path) {
+		return new Path(normalize(Paths.get(path.toUri().getPath())).toString());
+	}
+
 	public void clearCaches() {
 		// clear caches with meta data
 		indexCache.invalidateAll();
 		metaCache.invalidateAll();
 		filesCache.invalidateAll();
-		inputFileCache.clear();
+		inputFileCache.invalidateAll();
 
-		// invalidate id caches - TODO could be improved by directly updating the caches
+		// invalidate id caches
 		itemIdCache.invalidateAll();
 		propertyIdCache.invalidateAll();
 		contextIdCache.invalidateAll();
 	}
 
-	private Calendar getDate(long timestamp) {
-		Timestamp ts = new Timestamp(timestamp);
-		Date date = new java.sql.Date(ts.getTime());
-		Calendar calendar = Calendar.getInstance();
-		calendar.setTime(date);
-		return calendar;
-	}
-
 	private long[] generateIds(KvinTuple tuple,
 	                          WriteContext writeContext,
 	                          ParquetWriter itemMappingWriter,
@@ -575,44 +895,48 @@ public class KvinParquet implements Kvin {
 			}
 			return newId;
 		});
-		long propertyId = writeContext.propertyMap.computeIfAbsent(tuple.property.toString(), key -> {
+		long propertyId = generatePropertyId(tuple.property, writeContext, propertyMappingWriter);
+
+		long contextId = writeContext.contextMap.computeIfAbsent(tuple.context.toString(), key -> {
 			if (writeContext.hasExistingData) {
-				long id = getId(tuple.property, IdType.PROPERTY_ID);
+				long id = getId(tuple.context, IdType.CONTEXT_ID);
 				if (id != 0L) {
 					return id;
 				}
 			}
-			long newId = ++writeContext.propertyIdCounter;
+			long newId = ++writeContext.contextIdCounter;
 			IdMapping mapping = new SimpleMapping();
 			mapping.setId(newId);
 			mapping.setValue(key);
 			try {
-				propertyMappingWriter.write(mapping);
+				contextMappingWriter.write(mapping);
 			} catch (IOException e) {
 				throw new RuntimeException();
 			}
 			return newId;
 		});
+		return new long[] {itemId, contextId, propertyId};
+	}
 
-		long contextId = writeContext.contextMap.computeIfAbsent(tuple.context.toString(), key -> {
+	private long generatePropertyId(URI property, WriteContext writeContext, ParquetWriter propertyMappingWriter) {
+		return writeContext.propertyMap.computeIfAbsent(property.toString(), key -> {
 			if (writeContext.hasExistingData) {
-				long id = getId(tuple.context, IdType.CONTEXT_ID);
+				long id = getId(property, IdType.PROPERTY_ID);
 				if (id != 0L) {
 					return id;
 				}
 			}
-			long newId = ++writeContext.contextIdCounter;
+			long newId = ++writeContext.propertyIdCounter;
 			IdMapping mapping = new SimpleMapping();
 			mapping.setId(newId);
 			mapping.setValue(key);
 			try {
-				contextMappingWriter.write(mapping);
+				propertyMappingWriter.write(mapping);
 			} catch (IOException e) {
 				throw new RuntimeException();
 			}
 			return newId;
 		});
-		return new long[] {itemId, contextId, propertyId};
 	}
 
 	private long getId(URI entity, IdType idType) {
@@ -731,48 +1055,35 @@ public class KvinParquet implements Kvin {
 		return ids;
 	}
 
-	private IdMappings getIdMappings(URI item, URI property, URI context) throws IOException {
-		final IdMappings mappings = new IdMappings();
-		if (item != null) {
-			mappings.itemId = getId(item, IdType.ITEM_ID);
-		}
-		if (property != null) {
-			mappings.propertyId = getId(property, IdType.PROPERTY_ID);
-		}
-		if (context != null) {
-			mappings.contextId = getId(context, IdType.CONTEXT_ID);
-		}
-		return mappings;
-	}
-
 	private FilterPredicate generateFetchFilter(long[] itemIds, long[] propertyIds, long contextId) {
-		FilterPredicate filter = null;
-		for (long itemId : itemIds) {
-			if (itemId == 0L) {
-				continue;
-			}
-			for (long propertyId : propertyIds) {
-				if (propertyId == 0L && propertyIds != EMPTY_IDS) {
-					continue;
-				}
-				var fetchFilter = createIdFilter(itemId, propertyId, contextId);
-				filter = filter == null ? fetchFilter : or(filter, fetchFilter);
+		// items and properties are tested against id sets instead of an or-combination
+		// of all item-property pairs to keep the filter cost independent of the batch size
+		FilterPredicate filter = createIdSetFilter("itemId", itemIds);
+		if (filter == null) {
+			return null;
+		}
+		if (propertyIds != EMPTY_IDS) {
+			FilterPredicate propertyFilter = createIdSetFilter("propertyId", propertyIds);
+			if (propertyFilter == null) {
+				return null;
 			}
+			filter = and(propertyFilter, filter);
+		}
+		if (contextId != 0L) {
+			filter = and(filter, eq(FilterApi.longColumn("contextId"), contextId));
 		}
 		return filter;
 	}
 
-	private FilterPredicate createIdFilter(long itemId, long propertyId, long contextId) {
-		if (itemId != 0L && propertyId != 0L && contextId != 0L) {
-			return and(eq(FilterApi.longColumn("propertyId"), propertyId),
-					and(eq(FilterApi.longColumn("itemId"), itemId),
-					eq(FilterApi.longColumn("contextId"), contextId)));
-		} else if (contextId != 0L) {
-			return and(eq(FilterApi.longColumn("itemId"), itemId),
-					eq(FilterApi.longColumn("contextId"), contextId));
-		} else {
-			return eq(FilterApi.longColumn("itemId"), itemId);
+	private FilterPredicate createIdSetFilter(String column, long[] ids) {
+		LongSetPredicate idSet = new LongSetPredicate(ids);
+		if (idSet.isEmpty()) {
+			return null;
+		} else if (idSet.size() == 1) {
+			// use equality to enable dictionary based filtering
+			return eq(FilterApi.longColumn(column), idSet.first());
 		}
+		return userDefined(FilterApi.longColumn(column), idSet);
 	}
 
 	@Override
@@ -838,6 +1149,7 @@ public class KvinParquet implements Kvin {
 	private <T> ParquetReader<T> createReader(InputFile file, FilterCompat.Filter filter) throws IOException {
 		return AvroParquetReader.<T>builder(file)
 				.withDataModel(reflectData)
+				.withConf(configuration)
 				.useStatsFilter()
 				.withFilter(filter)
 				.build();
@@ -846,10 +1158,12 @@ public class KvinParquet implements Kvin {
 	private IExtendedIterator<KvinRecord> createKvinRecordReader(InputFileInfo fileInfo, FilterCompat.Filter filter) {
 		try {
 			ParquetReadOptions.Builder optionsBuilder = HadoopReadOptions.builder(configuration, fileInfo.path);
-			optionsBuilder.withAllocator(new HeapByteBufferAllocator());
+			optionsBuilder.withAllocator(bufferPool);
 			optionsBuilder.withRecordFilter(filter);
 			ParquetReadOptions options = optionsBuilder.build();
-			ParquetFileReader r = new ParquetFileReader(configuration, fileInfo.path, fileInfo.metadata, options) {
+			// the footer is read again by the reader as Parquet does not allow to pass an already parsed footer
+			// together with an input file, this is a single positional read for local files
+			ParquetFileReader r = new ParquetFileReader(fileInfo.file, options) {
 				static Field blocksField;
 				static {
 					try {
@@ -873,17 +1187,7 @@ public class KvinParquet implements Kvin {
 									columnIndexes.put(columnChunkMetaData.getPath(), readColumnIndex(columnChunkMetaData));
 									offsetIndexes.put(columnChunkMetaData.getPath(), readOffsetIndex(columnChunkMetaData));
 								}
-								return new ColumnIndexStore() {
-									@Override
-									public ColumnIndex getColumnIndex(ColumnPath column) {
-										return columnIndexes.get(column);
-									}
-
-									@Override
-									public OffsetIndex getOffsetIndex(ColumnPath column) throws MissingOffsetIndexException {
-										return offsetIndexes.get(column);
-									}
-								};
+								return new CachedColumnIndexStore(columnIndexes, offsetIndexes);
 							});
 						} catch (IllegalAccessException | ExecutionException e) {
 							log.error("Error while creating index store", e);
@@ -1039,7 +1343,7 @@ public class KvinParquet implements Kvin {
 			}
 
 			final FilterPredicate filterFinal = filter;
-			List<java.nio.file.Path> dataFolders = getDataFolders(itemIds);
+			List<java.nio.file.Path> dataFolders = getDataFolders(itemIds, begin, end);
 			if (dataFolders.isEmpty()) {
 				// ensure read lock is freed
 				readLock.release();
@@ -1183,7 +1487,7 @@ public class KvinParquet implements Kvin {
 							lastProperty = getProperty(propertyId);
 						}
 					}
-					return recordToTuple(lastItem, lastProperty, contextFinal, record);
+					return recordToTuple(lastItem, lastProperty, contextFinal, record, KvinParquet.this::getProperty);
 				}
 
 				void nextReaders() throws IOException {
@@ -1215,6 +1519,276 @@ public class KvinParquet implements Kvin {
 		return false;
 	}
 
+	/**
+	 * Removes the values that are expired according to the given retention policy.
+	 * <p>
+	 * Partition folders whose values are all expired are dropped as a whole. The data files of partitions that are
+	 * only partially expired are rewritten without the expired values. Afterwards, the time bounds of the item catalog
+	 * are raised to the cutoffs and items without remaining values are removed from the catalog. This ensures that
+	 * partitions are only processed again if further values have expired.
+	 * <p>
+	 * The changes are determined under the read lock and applied under the write lock. Files and folders that have
+	 * been changed in between, e.g. by a compaction, are skipped and processed again by the next run. The retention
+	 * is also skipped while the item catalog is created.
+	 *
+	 * @return The number of dropped or rewritten data files
+	 */
+	public synchronized long applyRetention(RetentionPolicy policy, long now) throws IOException {
+		if (policy.isEmpty()) {
+			return 0;
+		}
+		if (!catalogCreation.isDone()) {
+			// the catalog is published while holding the monitor of this store
+			log.info("Skipping retention until the item catalog has been created");
+			return 0;
+		}
+		java.nio.file.Path archivePath = Paths.get(archiveLocation);
+		java.nio.file.Path retentionPath = archivePath.resolve(".retention");
+		FileUtils.deleteDirectory(retentionPath.toFile());
+
+		// dropped folders with the modification times of their files
+		Map<java.nio.file.Path, Map<java.nio.file.Path, FileTime>> droppedFolders = new LinkedHashMap<>();
+		// rewritten data files with their replacement or null if all values are expired
+		Map<java.nio.file.Path, java.nio.file.Path> rewrittenFiles = new LinkedHashMap<>();
+		// modification times of the rewritten data files
+		Map<java.nio.file.Path, FileTime> rewrittenTimes = new HashMap<>();
+		java.nio.file.Path metadataPath = archivePath.resolve("metadata");
+		Map<Long, URI> contexts = new HashMap<>();
+		// the catalog can only be updated if all partitions have been processed
+		boolean allProcessed = true;
+		Lock readLock = readLock();
+		try {
+			if (!Files.exists(archivePath.resolve("meta.properties"))) {
+				return 0;
+			}
+			Map<Long, String> items = readMappings(metadataPath, "items");
+			readMappings(metadataPath, "contexts").forEach((id, value) -> contexts.put(id, URIs.createURI(value)));
+			// cutoff per context and item id
+			Map<Long, Map<Long, Long>> cutoffs = new HashMap<>();
+			ToLongFunction<KvinRecord> recordCutoff = record -> cutoffs
+					.computeIfAbsent(record.contextId, k -> new HashMap<>())
+					.computeIfAbsent(record.itemId, itemId -> {
+						String item = items.get(itemId);
+						return item == null ? Long.MIN_VALUE : policy.cutoff(item, contexts.get(record.contextId), now);
+					});
+
+			List<CatalogEntry> entries = new ArrayList<>();
+			getCatalog().items.values().forEach(entries::addAll);
+			for (java.nio.file.Path folder : getPartitionFolders()) {
+				long[] range = partitioning.timeRange(folder.getParent().getFileName().toString(),
+						folder.getFileName().toString());
+				if (range == null) {
+					allProcessed = false;
+					continue;
+				}
+				boolean anyValues = false, allExpired = true, anyExpired = false;
+				for (CatalogEntry entry : entries) {
+					if (entry.minTime >= range[1] || entry.maxTime < range[0]) {
+						continue;
+					}
+					anyValues = true;
+					long cutoff = policy.cutoff(entry.item, contexts.get(entry.contextId), now);
+					allExpired &= cutoff > Math.min(range[1] - 1, entry.maxTime);
+					anyExpired |= cutoff > Math.max(range[0], entry.minTime);
+				}
+				if (!anyValues || !anyExpired) {
+					continue;
+				}
+				if (allExpired) {
+					droppedFolders.put(folder, modificationTimes(folder));
+					continue;
+				}
+				for (Path dataFile : getDataFiles(folder.toString())) {
+					// the catalog bounds are not exact, only rewrite files that contain expired values
+					if (!containsExpiredRecords(dataFile, recordCutoff)) {
+						continue;
+					}
+					java.nio.file.Path file = Paths.get(dataFile.toString());
+					java.nio.file.Path target = retentionPath.resolve(archivePath.relativize(file));
+					FileTime modified = Files.getLastModifiedTime(file);
+					long kept = 0, removed = 0;
+					try (ParquetWriter<KvinRecord> writer = getKvinRecordWriter(new Path(target.toString()), encodingProfile)) {
+						IExtendedIterator<KvinRecord> records = ParquetHelpers.createKvinRecordReader(dataFile, null);
+						try {
+							while (records.hasNext()) {
+								KvinRecord record = records.next();
+								if (record.time < recordCutoff.applyAsLong(record)) {
+									removed++;
+								} else {
+									writer.write(record);
+									kept++;
+								}
+							}
+						} finally {
+							records.close();
+						}
+					}
+					if (removed > 0) {
+						rewrittenFiles.put(file, kept > 0 ? target : null);
+						rewrittenTimes.put(file, modified);
+					}
+				}
+			}
+		} finally {
+			readLock.release();
+		}
+
+		long count = 0;
+		Lock writeLock = writeLock();
+		Set<java.nio.file.Path> changedFiles = new HashSet<>();
+		try {
+			for (Map.Entry<java.nio.file.Path, java.nio.file.Path> rewritten : rewrittenFiles.entrySet()) {
+				java.nio.file.Path file = rewritten.getKey();
+				if (!Files.exists(file) || !Files.getLastModifiedTime(file).equals(rewrittenTimes.get(file))) {
+					// the file has been replaced or removed in the meantime
+					allProcessed = false;
+					continue;
+				}
+				changedFiles.add(file);
+				if (rewritten.getValue() == null) {
+					Files.delete(file);
+				} else {
+					Files.move(rewritten.getValue(), file, StandardCopyOption.REPLACE_EXISTING);
+				}
+				count++;
+			}
+			for (Map.Entry<java.nio.file.Path, Map<java.nio.file.Path, FileTime>> dropped : droppedFolders.entrySet()) {
+				java.nio.file.Path folder = dropped.getKey();
+				if (!modificationTimes(folder).equals(dropped.getValue())) {
+					// files have been added or replaced in the meantime
+					allProcessed = false;
+					continue;
+				}
+				for (java.nio.file.Path file : dropped.getValue().keySet()) {
+					changedFiles.add(file);
+					if (file.getFileName().toString().startsWith("data__")) {
+						count++;
+					}
+				}
+				FileUtils.deleteDirectory(folder.toFile());
+			}
+			// remove the partitions without data files from the metadata
+			for (java.nio.file.Path folder : getPartitionFolders()) {
+				if (!Files.exists(folder) || getDataFiles(folder.toString()).stream()
+						.noneMatch(f -> Files.exists(Paths.get(f.toString())))) {
+					removePartition(folder, changedFiles);
+				}
+			}
+			if (allProcessed) {
+				ItemCatalog currentCatalog = getCatalog();
+				if (currentCatalog.removeBefore(entry -> policy.cutoff(entry.item, contexts.get(entry.contextId), now))) {
+					replaceCatalogFiles(currentCatalog, retentionPath);
+				}
+			}
+			FileUtils.deleteDirectory(retentionPath.toFile());
+		} finally {
+			invalidateFiles(changedFiles);
+			writeLock.release();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the modification times of all files within a folder.
+	 */
+	private Map<java.nio.file.Path, FileTime> modificationTimes(java.nio.file.Path folder) throws IOException {
+		Map<java.nio.file.Path, FileTime> times = new HashMap<>();
+		if (Files.isDirectory(folder)) {
+			try (Stream<java.nio.file.Path> files = Files.list(folder)) {
+				for (java.nio.file.Path file : (Iterable<java.nio.file.Path>) files::iterator) {
+					times.put(file, Files.getLastModifiedTime(file));
+				}
+			}
+		}
+		return times;
+	}
+
+	/**
+	 * Determines if a data file contains records that are before their cutoff.
+	 */
+	private boolean containsExpiredRecords(Path dataFile, ToLongFunction<KvinRecord> recordCutoff) throws IOException {
+		IExtendedIterator<KvinRecord> records = ParquetHelpers.createKvinRecordReader(dataFile, null);
+		try {
+			while (records.hasNext()) {
+				KvinRecord record = records.next();
+				if (record.time < recordCutoff.applyAsLong(record)) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			records.close();
+		}
+	}
+
+	/**
+	 * Replaces the catalog files with a single file that contains the given catalog.
+	 */
+	private void replaceCatalogFiles(ItemCatalog newCatalog, java.nio.file.Path tempPath) throws IOException {
+		java.nio.file.Path metadataPath = Paths.get(archiveLocation, "metadata");
+		List<java.nio.file.Path> existingFiles = ItemCatalog.getCatalogFiles(metadataPath);
+		newCatalog.write(tempPath.resolve("metadata").resolve(ItemCatalog.CATALOG_FOLDER)
+				.resolve(ItemCatalog.CATALOG_TYPE + "__1.parquet"));
+		// the new file is added before the existing files are deleted, a union of both is still a valid catalog
+		moveCatalogFiles(tempPath);
+		for (java.nio.file.Path file : existingFiles) {
+			Files.delete(file);
+		}
+	}
+
+	/**
+	 * Returns the partition folders that are recorded in the metadata.
+	 */
+	private List<java.nio.file.Path> getPartitionFolders() throws IOException {
+		java.nio.file.Path archivePath = Paths.get(archiveLocation);
+		Properties meta = loadProperties(archivePath.resolve("meta.properties"));
+		List<java.nio.file.Path> folders = new ArrayList<>();
+		for (String year : meta.stringPropertyNames()) {
+			java.nio.file.Path yearFolder = archivePath.resolve(year);
+			for (String partition : loadProperties(yearFolder.resolve("meta.properties")).stringPropertyNames()) {
+				folders.add(yearFolder.resolve(partition));
+			}
+		}
+		Collections.sort(folders);
+		return folders;
+	}
+
+	/**
+	 * Removes a partition folder and its entry within the metadata of its year.
+	 */
+	private void removePartition(java.nio.file.Path folder, Set<java.nio.file.Path> changedFiles) throws IOException {
+		FileUtils.deleteDirectory(folder.toFile());
+		java.nio.file.Path yearFolder = folder.getParent();
+		java.nio.file.Path yearMetaPath = yearFolder.resolve("meta.properties");
+		Properties yearMeta = loadProperties(yearMetaPath);
+		yearMeta.remove(folder.getFileName().toString());
+		changedFiles.add(yearMetaPath);
+		if (yearMeta.isEmpty()) {
+			FileUtils.deleteDirectory(yearFolder.toFile());
+			java.nio.file.Path metaPath = Paths.get(archiveLocation, "meta.properties");
+			Properties meta = loadProperties(metaPath);
+			meta.remove(yearFolder.getFileName().toString());
+			try (var out = Files.newOutputStream(metaPath)) {
+				meta.store(out, null);
+			}
+			changedFiles.add(metaPath);
+		} else {
+			try (var out = Files.newOutputStream(yearMetaPath)) {
+				yearMeta.store(out, null);
+			}
+		}
+	}
+
+	private Properties loadProperties(java.nio.file.Path path) throws IOException {
+		Properties properties = new Properties();
+		if (Files.exists(path)) {
+			try (var in = Files.newInputStream(path)) {
+				properties.load(in);
+			}
+		}
+		return properties;
+	}
+
 	private long[] splitRange(String range) {
 		String[] minMaxId = range.split("-");
 		if (minMaxId.length <= 1) {
@@ -1234,7 +1808,7 @@ public class KvinParquet implements Kvin {
 		}
 	}
 
-	private List<java.nio.file.Path> getDataFolders(long[] itemIds) throws IOException {
+	private List<java.nio.file.Path> getDataFolders(long[] itemIds, Long begin, Long end) throws IOException {
 		java.nio.file.Path metaPath = Paths.get(archiveLocation, "meta.properties");
 		Properties meta;
 		try {
@@ -1251,7 +1825,8 @@ public class KvinParquet implements Kvin {
 		return meta.entrySet().stream().flatMap(entry -> {
 					String idRange = (String) entry.getValue();
 					long[] minMax = splitRange(idRange);
-					if (minMax != null && anyBetween(itemIds, minMax[0], minMax[1])) {
+					if (minMax != null && anyBetween(itemIds, minMax[0], minMax[1])
+							&& overlaps(yearRange(entry.getKey().toString()), begin, end)) {
 						java.nio.file.Path yearFolder = Paths.get(archiveLocation, entry.getKey().toString());
 						java.nio.file.Path yearMetaPath = yearFolder.resolve("meta.properties");
 						try {
@@ -1262,61 +1837,106 @@ public class KvinParquet implements Kvin {
 								}
 								return p;
 							});
-							return yearMeta.entrySet().stream().filter(weekEntry -> {
-								String weekIdRange = (String) weekEntry.getValue();
-								long[] weekMinMax = splitRange(weekIdRange);
-								return weekMinMax != null && anyBetween(itemIds, weekMinMax[0], weekMinMax[1]);
-							}).map(weekEntry -> yearFolder.resolve(weekEntry.getKey().toString()));
+							return yearMeta.entrySet().stream().filter(partitionEntry -> {
+								String partitionIdRange = (String) partitionEntry.getValue();
+								long[] partitionMinMax = splitRange(partitionIdRange);
+								return partitionMinMax != null && anyBetween(itemIds, partitionMinMax[0], partitionMinMax[1])
+										&& overlaps(partitioning.timeRange(entry.getKey().toString(),
+										partitionEntry.getKey().toString()), begin, end);
+							}).map(partitionEntry -> yearFolder.resolve(partitionEntry.getKey().toString()));
 						} catch (Exception e) {
 							log.error("Error while loading meta data", e);
 						}
 					}
 					return Stream.empty();
 				})
-				// sort by year and month descending (recent data first)
+				// sort by year and partition descending (recent data first)
 				.sorted(Comparator.reverseOrder())
 				.collect(Collectors.toList());
 	}
 
+	private long[] yearRange(String yearFolder) {
+		try {
+			return Partitioning.yearRange(Integer.parseInt(yearFolder));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private boolean overlaps(long[] timeRange, Long begin, Long end) {
+		// time ranges are [start, end) while queries are [begin, end]
+		return timeRange == null || (begin == null || timeRange[1] > begin) && (end == null || timeRange[0] <= end);
+	}
+
 	@Override
 	public IExtendedIterator<URI> descendants(URI item, URI context) {
-		return null;
+		return descendants(item, context, 0);
 	}
 
 	@Override
 	public IExtendedIterator<URI> descendants(URI item, URI context, long limit) {
-		return null;
+		if (context == null) {
+			context = Kvin.DEFAULT_CONTEXT;
+		}
+		Lock readLock = null;
+		try {
+			readLock = readLock();
+			long contextId = getId(context, IdType.CONTEXT_ID);
+			if (contextId == 0L) {
+				return NiceIterator.emptyIterator();
+			}
+			List<URI> descendants = getCatalog().descendants(item.toString(), contextId, limit).stream()
+					.map(URIs::createURI).collect(Collectors.toList());
+			return WrappedIterator.create(descendants.iterator());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			if (readLock != null) {
+				readLock.release();
+			}
+		}
 	}
 
-	private List<URI> getProperties(long itemId, long contextId) {
+	/**
+	 * Estimates the number of values by using the value count and the time bounds of the item within the catalog.
+	 * The values are assumed to be evenly distributed over the properties and the time range of the item.
+	 */
+	@Override
+	public long estimateCount(URI item, URI property, URI context, long end, long begin) {
+		if (context == null) {
+			context = Kvin.DEFAULT_CONTEXT;
+		}
+		Lock readLock = null;
 		try {
-			FilterPredicate filter = and(eq(FilterApi.booleanColumn("first"), true),
-					createIdFilter(itemId, 0L, contextId));
-
-			List<java.nio.file.Path> dataFolders = getDataFolders(new long[]{itemId});
-			Set<Long> propertyIds = new LinkedHashSet<>();
-
-			for (java.nio.file.Path dataFolder : dataFolders) {
-				for (Path dataFile : getDataFiles(dataFolder.toString())) {
-					var reader = createKvinRecordReader(getFile(dataFile), FilterCompat.get(filter));
-					while (reader.hasNext()) {
-						var record = reader.next();
-						long currentPropertyId = record.propertyId;
-						propertyIds.add(currentPropertyId);
-					}
-					reader.close();
-				}
+			readLock = readLock();
+			if (!isCatalogReady()) {
+				return -1;
 			}
-
-			return propertyIds.stream().map(id -> {
-				try {
-					return getProperty(id);
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
+			long contextId = getId(context, IdType.CONTEXT_ID);
+			CatalogEntry entry = contextId == 0L ? null : getCatalog().get(item.toString(), contextId);
+			if (entry == null || entry.maxTime < begin || entry.minTime > end) {
+				return 0;
+			}
+			if (entry.valueCount < 0) {
+				return -1;
+			}
+			double count = entry.valueCount;
+			if (property != null) {
+				long propertyId = getId(property, IdType.PROPERTY_ID);
+				if (propertyId == 0L || Arrays.binarySearch(entry.propertyIds, propertyId) < 0) {
+					return 0;
 				}
-			}).collect(Collectors.toList());
+				count /= entry.propertyIds.length;
+			}
+			long overlap = Math.min(end, entry.maxTime) - Math.max(begin, entry.minTime) + 1;
+			count *= (double) overlap / (entry.maxTime - entry.minTime + 1);
+			return Math.max(1, Math.round(count));
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
+		} finally {
+			if (readLock != null) {
+				readLock.release();
+			}
 		}
 	}
 
@@ -1328,17 +1948,52 @@ public class KvinParquet implements Kvin {
 		Lock readLock = null;
 		try {
 			readLock = readLock();
-			IdMappings idMappings = getIdMappings(item, null, context);
-			if (idMappings.itemId == 0L || idMappings.contextId == 0L) {
+			long contextId = getId(context, IdType.CONTEXT_ID);
+			if (contextId == 0L) {
 				return NiceIterator.emptyIterator();
 			}
-			List<URI> properties = getProperties(idMappings.itemId, idMappings.contextId);
+			List<URI> properties = new ArrayList<>();
+			long[] propertyIds;
+			if (isCatalogReady()) {
+				propertyIds = getCatalog().properties(item.toString(), contextId);
+			} else {
+				long itemId = getId(item, IdType.ITEM_ID);
+				propertyIds = itemId == 0L ? new long[0] : scanProperties(itemId, contextId);
+			}
+			for (long propertyId : propertyIds) {
+				properties.add(getProperty(propertyId));
+			}
 			return WrappedIterator.create(properties.iterator());
 		} catch (IOException e) {
 			throw new UncheckedIOException(e);
 		} finally {
-			readLock.release();
+			if (readLock != null) {
+				readLock.release();
+			}
+		}
+	}
+
+	/**
+	 * Determines the properties of an item by scanning the first record of each property within the data files. This
+	 * is used while the item catalog is not available.
+	 */
+	private long[] scanProperties(long itemId, long contextId) throws IOException {
+		FilterPredicate filter = and(eq(FilterApi.booleanColumn("first"), true),
+				and(eq(FilterApi.longColumn("itemId"), itemId), eq(FilterApi.longColumn("contextId"), contextId)));
+		Set<Long> propertyIds = new LinkedHashSet<>();
+		for (java.nio.file.Path folder : getDataFolders(new long[]{itemId}, null, null)) {
+			for (Path dataFile : getDataFiles(folder.toString())) {
+				IExtendedIterator<KvinRecord> records = createKvinRecordReader(getFile(dataFile), FilterCompat.get(filter));
+				try {
+					while (records.hasNext()) {
+						propertyIds.add(records.next().propertyId);
+					}
+				} finally {
+					records.close();
+				}
+			}
 		}
+		return propertyIds.stream().mapToLong(Long::longValue).toArray();
 	}
 
 	@Override
@@ -1392,39 +2047,78 @@ public class KvinParquet implements Kvin {
 		}
 	}
 
+	static class CachedColumnIndexStore implements ColumnIndexStore {
+		final Map<ColumnPath, ColumnIndex> columnIndexes;
+		final Map<ColumnPath, OffsetIndex> offsetIndexes;
+		// estimated size in bytes
+		final int weight;
+
+		CachedColumnIndexStore(Map<ColumnPath, ColumnIndex> columnIndexes, Map<ColumnPath, OffsetIndex> offsetIndexes) {
+			this.columnIndexes = columnIndexes;
+			this.offsetIndexes = offsetIndexes;
+			int weight = 64;
+			for (ColumnIndex columnIndex : columnIndexes.values()) {
+				if (columnIndex != null) {
+					for (ByteBuffer value : columnIndex.getMinValues()) {
+						weight += value.remaining() + 16;
+					}
+					for (ByteBuffer value : columnIndex.getMaxValues()) {
+						weight += value.remaining() + 16;
+					}
+				}
+			}
+			for (OffsetIndex offsetIndex : offsetIndexes.values()) {
+				if (offsetIndex != null) {
+					weight += offsetIndex.getPageCount() * 24;
+				}
+			}
+			this.weight = weight;
+		}
+
+		@Override
+		public ColumnIndex getColumnIndex(ColumnPath column) {
+			return columnIndexes.get(column);
+		}
+
+		@Override
+		public OffsetIndex getOffsetIndex(ColumnPath column) throws MissingOffsetIndexException {
+			return offsetIndexes.get(column);
+		}
+	}
+
 	static class InputFileInfo {
 		final Path path;
-		final HadoopInputFile file;
+		final InputFile file;
 		final ParquetMetadata metadata;
 		final MessageColumnIO columnIO;
+		// estimated size of the footer in bytes
+		final int weight;
 
-		InputFileInfo(Path path, HadoopInputFile file, ParquetMetadata metadata) {
+		InputFileInfo(Path path, InputFile file, ParquetMetadata metadata) {
 			this.path = path;
 			this.file = file;
 			this.metadata = metadata;
 			this.columnIO = new ColumnIOFactory().getColumnIO(metadata.getFileMetaData().getSchema());
+			this.weight = 1024 + metadata.getBlocks().stream().mapToInt(b -> 256 * b.getColumns().size()).sum();
 		}
 	}
 
 	static class WriterState {
 		java.nio.file.Path file;
 		ParquetWriter<KvinRecord> writer;
+		RecordSorter sorter;
 		int year;
-		int week;
+		String partition;
 		long[] minMax = {Long.MAX_VALUE, Long.MIN_VALUE};
 
-		WriterState(java.nio.file.Path file, ParquetWriter<KvinRecord> writer, int year, int week) {
+		WriterState(java.nio.file.Path file, ParquetWriter<KvinRecord> writer, int year, String partition) {
 			this.file = file;
 			this.writer = writer;
 			this.year = year;
-			this.week = week;
+			this.partition = partition;
 		}
 	}
 
-	static class IdMappings {
-		long itemId, propertyId, contextId;
-	}
-
 	class WriteContext {
 		boolean hasExistingData;
 		long itemIdCounter = 0, propertyIdCounter = 0, contextIdCounter = 0;
@@ -1432,5 +2126,7 @@ public class KvinParquet implements Kvin {
 		Map<String, Long> itemMap = new HashMap<>();
 		Map<String, Long> propertyMap = new HashMap<>();
 		Map<String, Long> contextMap = new HashMap<>();
+		// catalog entries of the written items
+		ItemCatalog catalog = new ItemCatalog();
 	}
 }
@@ -0,0 +1,483 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import io.github.linkedfactory.core.kvin.Record;
+import io.github.linkedfactory.core.kvin.RetentionPolicy;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.commons.iterator.WrappedIterator;
+import net.enilink.commons.util.ValueUtils;
+import net.enilink.komma.core.URI;
+import net.enilink.komma.core.URIs;
+import org.eclipse.rdf4j.common.concurrent.locks.Lock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Materialized rollups of archived values with a fixed set of intervals (tiers).
+ * <p>
+ * Each tier is a {@link KvinParquet} archive whose values are records with count, sum, min and max of all values of
+ * an item and property within one interval. The interval buckets are aligned to the epoch like the buckets of
+ * {@link io.github.linkedfactory.core.kvin.util.AggregatingIterator}. Each archival run uses its own sequence number
+ * as partial buckets of different runs are only combined at query time.
+ * <p>
+ * Values that have been archived before the rollups were created are not contained within the tiers. Hence, only
+ * the time range after the newest of those values is answered from the rollups.
+ */
+public class KvinRollups {
+	static final Logger log = LoggerFactory.getLogger(KvinRollups.class);
+
+	public static final long[] DEFAULT_INTERVALS = {60_000L, 3_600_000L, 86_400_000L};
+	public static final Set<String> SUPPORTED_OPS = Set.of("min", "max", "sum", "avg");
+
+	static final URI COUNT = URIs.createURI("kvin:count");
+	static final URI SUM = URIs.createURI("kvin:sum");
+	static final URI MIN = URIs.createURI("kvin:min");
+	static final URI MAX = URIs.createURI("kvin:max");
+
+	// number of completed buckets per tier that are buffered before they are written
+	static final int FLUSH_SIZE = 100_000;
+
+	final Path path;
+	final long[] intervals;
+	final KvinParquet[] tiers;
+	final Properties properties = new Properties();
+
+	/**
+	 * Creates the rollups for the given archive with the default intervals of one minute, one hour and one day.
+	 */
+	public KvinRollups(String location, KvinParquet archive) throws IOException {
+		this(location, archive, DEFAULT_INTERVALS);
+	}
+
+	/**
+	 * Creates the rollups for the given archive with the given intervals in milliseconds.
+	 * <p>
+	 * The archive is only used to determine the values that have been archived before the rollups were created.
+	 */
+	public KvinRollups(String location, KvinParquet archive, long... intervals) throws IOException {
+		this.path = Paths.get(location);
+		this.intervals = Arrays.stream(intervals).filter(i -> i > 0).sorted().distinct().toArray();
+		this.tiers = new KvinParquet[this.intervals.length];
+		for (int i = 0; i < this.intervals.length; i++) {
+			tiers[i] = new KvinParquet(path.resolve(String.valueOf(this.intervals[i])).toString());
+		}
+		Path propertiesPath = path.resolve("rollups.properties");
+		if (Files.exists(propertiesPath)) {
+			try (InputStream in = Files.newInputStream(propertiesPath)) {
+				properties.load(in);
+			}
+		} else {
+			long coveredFrom = Long.MIN_VALUE;
+			if (archive != null) {
+				Lock readLock = archive.readLock();
+				try {
+					for (List<CatalogEntry> entries : archive.getCatalog().items.values()) {
+						for (CatalogEntry entry : entries) {
+							if (entry.maxTime != Long.MIN_VALUE) {
+								coveredFrom = Math.max(coveredFrom, entry.maxTime + 1);
+							}
+						}
+					}
+				} finally {
+					readLock.release();
+				}
+			}
+			if (coveredFrom != Long.MIN_VALUE) {
+				log.info("Rollups for {} only cover values after {}", location, coveredFrom);
+			}
+			properties.setProperty("coveredFrom", String.valueOf(coveredFrom));
+			properties.setProperty("run", "0");
+			storeProperties();
+		}
+	}
+
+	private void storeProperties() throws IOException {
+		Files.createDirectories(path);
+		try (OutputStream out = Files.newOutputStream(path.resolve("rollups.properties"))) {
+			properties.store(out, null);
+		}
+	}
+
+	public long[] getIntervals() {
+		return intervals.clone();
+	}
+
+	long getCoveredFrom() {
+		return Long.parseLong(properties.getProperty("coveredFrom", String.valueOf(Long.MIN_VALUE)));
+	}
+
+	/**
+	 * Returns the time ranges <code>[begin, end]</code> whose rollups are incomplete.
+	 */
+	synchronized List<long[]> getUncoveredRanges() {
+		List<long[]> ranges = new ArrayList<>();
+		String uncovered = properties.getProperty("uncovered", "");
+		for (String range : uncovered.split(",")) {
+			int separator = range.indexOf(':');
+			if (separator > 0) {
+				ranges.add(new long[]{Long.parseLong(range.substring(0, separator)),
+						Long.parseLong(range.substring(separator + 1))});
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Records that the rollups of the time range <code>[begin, end]</code> are incomplete, e.g. because computing
+	 * the rollups of an archival run has failed. This range is answered from raw values afterwards.
+	 */
+	public synchronized void markUncovered(long begin, long end) throws IOException {
+		String uncovered = properties.getProperty("uncovered", "");
+		properties.setProperty("uncovered", (uncovered.isEmpty() ? "" : uncovered + ",") + begin + ":" + end);
+		storeProperties();
+		log.warn("Rollups for {} do not cover values between {} and {}", path, begin, end);
+	}
+
+	/**
+	 * Creates a builder for the rollups of one archival run.
+	 */
+	public synchronized Builder builder() throws IOException {
+		int run = Integer.parseInt(properties.getProperty("run", "0")) + 1;
+		properties.setProperty("run", String.valueOf(run));
+		storeProperties();
+		return new Builder(run);
+	}
+
+	/**
+	 * Compacts the files of all tiers.
+	 */
+	public void compact() throws IOException {
+		for (KvinParquet tier : tiers) {
+			new Compactor(tier).execute();
+		}
+	}
+
+	/**
+	 * Removes the expired buckets from all tiers.
+	 */
+	public void applyRetention(RetentionPolicy policy, long now) throws IOException {
+		for (KvinParquet tier : tiers) {
+			tier.applyRetention(policy, now);
+		}
+	}
+
+	/**
+	 * Returns the coarsest interval whose buckets can be combined to buckets of the requested interval or 0 if the
+	 * rollups can not be used for the given operator and interval.
+	 */
+	public long selectInterval(long interval, String op) {
+		if (interval <= 0 || op == null || !SUPPORTED_OPS.contains(op)) {
+			return 0;
+		}
+		for (int i = intervals.length - 1; i >= 0; i--) {
+			if (interval % intervals[i] == 0) {
+				return intervals[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the range <code>[begin, end)</code> of complete buckets of the given tier interval within the
+	 * requested range <code>[begin, end]</code> or <code>null</code> if it is empty.
+	 * <p>
+	 * The range starts after all uncovered ranges that overlap the requested range.
+	 */
+	public long[] coveredRange(long tierInterval, long end, long begin) {
+		long from = Math.max(begin, getCoveredFrom());
+		for (long[] uncovered : getUncoveredRanges()) {
+			if (uncovered[0] <= end && uncovered[1] >= from) {
+				from = Math.max(from, uncovered[1] + 1);
+			}
+		}
+		long alignedBegin = Math.floorDiv(from, tierInterval) * tierInterval;
+		if (alignedBegin < from) {
+			alignedBegin += tierInterval;
+		}
+		long alignedEnd = Math.floorDiv(end + 1, tierInterval) * tierInterval;
+		return alignedBegin < alignedEnd ? new long[]{alignedBegin, alignedEnd} : null;
+	}
+
+	/**
+	 * Fetches the partial aggregates of the tier with the given interval for the range <code>[begin, end]</code>.
+	 */
+	public IExtendedIterator<KvinTuple> fetch(List<URI> items, List<URI> properties, URI context, long end,
+	                                          long begin, long tierInterval) {
+		int index = Arrays.binarySearch(intervals, tierInterval);
+		if (index < 0) {
+			throw new IllegalArgumentException("Unknown rollup interval: " + tierInterval);
+		}
+		return tiers[index].fetch(items, properties, context, end, begin, 0, 0, null);
+	}
+
+	/**
+	 * Combines raw values and partial aggregates from the rollups to the buckets of the given interval.
+	 * <p>
+	 * The values of each iterator have to be grouped by series with descending time like the values returned by
+	 * {@link io.github.linkedfactory.core.kvin.Kvin#fetch(List, List, URI, long, long, long, long, String)}. The
+	 * stores may order the series differently as they use their own ids. Therefore, each iterator is reduced to
+	 * runs of descending buckets per series and these runs are merged afterwards.
+	 * <p>
+	 * The result is ordered by item, property and descending time.
+	 *
+	 * @param rawValues    iterators over raw values
+	 * @param rollupValues iterators over partial aggregates returned by
+	 *                     {@link #fetch(List, List, URI, long, long, long)}
+	 */
+	public static IExtendedIterator<KvinTuple> combine(List<IExtendedIterator<KvinTuple>> rawValues,
+	                                                   List<IExtendedIterator<KvinTuple>> rollupValues,
+	                                                   long interval, String op) {
+		Map<URI, Map<URI, Series>> series = new TreeMap<>(Comparator.comparing(URI::toString));
+		for (IExtendedIterator<KvinTuple> it : rawValues) {
+			addRuns(series, it, interval, false);
+		}
+		for (IExtendedIterator<KvinTuple> it : rollupValues) {
+			addRuns(series, it, interval, true);
+		}
+		List<KvinTuple> result = new ArrayList<>();
+		int seqNr = 1;
+		for (Map.Entry<URI, Map<URI, Series>> itemEntry : series.entrySet()) {
+			for (Map.Entry<URI, Series> propertyEntry : itemEntry.getValue().entrySet()) {
+				Series s = propertyEntry.getValue();
+				int[] positions = new int[s.runs.size()];
+				while (true) {
+					// the next bucket is the one with the latest start among the heads of all runs
+					long start = Long.MIN_VALUE;
+					boolean any = false;
+					for (int i = 0; i < positions.length; i++) {
+						List<Bucket> run = s.runs.get(i);
+						if (positions[i] < run.size() && (!any || run.get(positions[i]).start > start)) {
+							start = run.get(positions[i]).start;
+							any = true;
+						}
+					}
+					if (!any) {
+						break;
+					}
+					Bucket bucket = new Bucket();
+					for (int i = 0; i < positions.length; i++) {
+						List<Bucket> run = s.runs.get(i);
+						if (positions[i] < run.size() && run.get(positions[i]).start == start) {
+							bucket.addAll(run.get(positions[i]++));
+						}
+					}
+					result.add(new KvinTuple(itemEntry.getKey(), propertyEntry.getKey(), s.context, start, seqNr++,
+							bucket.value(op)));
+				}
+			}
+		}
+		return WrappedIterator.create(result.iterator());
+	}
+
+	/**
+	 * Adds the values of an iterator as runs of buckets with descending start times to the given series.
+	 */
+	private static void addRuns(Map<URI, Map<URI, Series>> series, IExtendedIterator<KvinTuple> it, long interval,
+	                            boolean partialAggregates) {
+		try {
+			KvinTuple prev = null;
+			List<Bucket> run = null;
+			Bucket bucket = null;
+			while (it.hasNext()) {
+				KvinTuple t = it.next();
+				if (partialAggregates && !(t.value instanceof Record)) {
+					continue;
+				}
+				long start = t.time - (t.time % interval);
+				if (prev == null || !t.item.equals(prev.item) || !t.property.equals(prev.property)
+						|| start > bucket.start) {
+					Series s = series.computeIfAbsent(t.item, k -> new TreeMap<>(Comparator.comparing(URI::toString)))
+							.computeIfAbsent(t.property, k -> new Series(t.context));
+					run = new ArrayList<>();
+					s.runs.add(run);
+					bucket = null;
+				}
+				if (bucket == null || bucket.start != start) {
+					bucket = new Bucket();
+					bucket.start = start;
+					run.add(bucket);
+				}
+				if (partialAggregates) {
+					bucket.addAll(Bucket.fromRecord((Record) t.value));
+				} else {
+					bucket.add(t.value);
+				}
+				prev = t;
+			}
+		} finally {
+			it.close();
+		}
+	}
+
+	/**
+	 * The runs of buckets of a single item and property.
+	 */
+	static class Series {
+		final URI context;
+		final List<List<Bucket>> runs = new ArrayList<>();
+
+		Series(URI context) {
+			this.context = context;
+		}
+	}
+
+	/**
+	 * Partial aggregate of the values within one interval.
+	 */
+	static class Bucket {
+		// start of the interval, only used while combining buckets
+		long start;
+		long count;
+		// null if the bucket contains non-numeric values
+		Object sum;
+		Object min, max;
+
+		static Bucket fromRecord(Record record) {
+			Bucket bucket = new Bucket();
+			Object count = record.first(COUNT).getValue();
+			bucket.count = count instanceof Number ? ((Number) count).longValue() : 0;
+			bucket.sum = record.first(SUM).getValue();
+			bucket.min = record.first(MIN).getValue();
+			bucket.max = record.first(MAX).getValue();
+			return bucket;
+		}
+
+		void add(Object value) {
+			ValueUtils utils = ValueUtils.getInstance();
+			if (count == 0) {
+				sum = value instanceof Number ? value : null;
+				min = max = value;
+			} else {
+				sum = sum != null && value instanceof Number ? utils.add(sum, value) : null;
+				min = compare(utils, min, value) > 0 ? value : min;
+				max = compare(utils, max, value) < 0 ? value : max;
+			}
+			count++;
+		}
+
+		void addAll(Bucket other) {
+			if (other.count == 0) {
+				return;
+			}
+			if (count == 0) {
+				count = other.count;
+				sum = other.sum;
+				min = other.min;
+				max = other.max;
+				return;
+			}
+			ValueUtils utils = ValueUtils.getInstance();
+			sum = sum != null && other.sum != null ? utils.add(sum, other.sum) : null;
+			min = compare(utils, min, other.min) > 0 ? other.min : min;
+			max = compare(utils, max, other.max) < 0 ? other.max : max;
+			count += other.count;
+		}
+
+		private static int compare(ValueUtils utils, Object a, Object b) {
+			try {
+				return utils.compareWithConversion(a, b);
+			} catch (RuntimeException e) {
+				return 0;
+			}
+		}
+
+		Object value(String op) {
+			switch (op) {
+				case "min":
+					return min;
+				case "max":
+					return max;
+				case "sum":
+					return sum == null ? 0 : sum;
+				case "avg":
+					return sum == null ? 0 : ValueUtils.getInstance().divide(sum, count);
+				default:
+					throw new IllegalArgumentException("Unsupported operator: " + op);
+			}
+		}
+
+		Record toRecord() {
+			Record record = sum == null ? null : new Record(SUM, sum);
+			record = new Record(MAX, max, record);
+			record = new Record(MIN, min, record);
+			return new Record(COUNT, count, record);
+		}
+	}
+
+	/**
+	 * Computes the buckets of all tiers for the values of one archival run.
+	 * <p>
+	 * The values have to be grouped by item, context and property like the values returned by
+	 * {@link io.github.linkedfactory.core.kvin.leveldb.KvinLevelDb#fetchAll()}.
+	 */
+	public class Builder {
+		final int seqNr;
+		final KvinTuple[] series = new KvinTuple[intervals.length];
+		final long[] starts = new long[intervals.length];
+		final Bucket[] current = new Bucket[intervals.length];
+		final List<List<KvinTuple>> completed = new ArrayList<>();
+
+		Builder(int seqNr) {
+			this.seqNr = seqNr;
+			for (int i = 0; i < intervals.length; i++) {
+				completed.add(new ArrayList<>());
+			}
+		}
+
+		public void add(KvinTuple tuple) {
+			for (int i = 0; i < intervals.length; i++) {
+				long start = tuple.time - (tuple.time % intervals[i]);
+				KvinTuple s = series[i];
+				if (current[i] != null && (starts[i] != start || !s.item.equals(tuple.item) ||
+						!s.property.equals(tuple.property) || !Objects.equals(s.context, tuple.context))) {
+					complete(i);
+				}
+				if (current[i] == null) {
+					current[i] = new Bucket();
+					series[i] = tuple;
+					starts[i] = start;
+				}
+				current[i].add(tuple.value);
+			}
+		}
+
+		private void complete(int tier) {
+			KvinTuple s = series[tier];
+			completed.get(tier).add(new KvinTuple(s.item, s.property, s.context, starts[tier], seqNr,
+					current[tier].toRecord()));
+			current[tier] = null;
+			series[tier] = null;
+			if (completed.get(tier).size() >= FLUSH_SIZE) {
+				flush(tier);
+			}
+		}
+
+		private void flush(int tier) {
+			List<KvinTuple> tuples = completed.get(tier);
+			if (!tuples.isEmpty()) {
+				tiers[tier].put(tuples);
+				completed.set(tier, new ArrayList<>());
+			}
+		}
+
+		/**
+		 * Writes the remaining buckets to the tiers.
+		 */
+		public void finish() {
+			for (int i = 0; i < intervals.length; i++) {
+				if (current[i] != null) {
+					complete(i);
+				}
+				flush(i);
+			}
+		}
+	}
+}
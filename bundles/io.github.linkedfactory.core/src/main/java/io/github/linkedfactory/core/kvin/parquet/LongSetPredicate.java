@@ -0,0 +1,71 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import org.apache.parquet.filter2.predicate.Statistics;
+import org.apache.parquet.filter2.predicate.UserDefinedPredicate;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Parquet predicate that tests if the value of a long column is contained in a set of ids.
+ * <p>
+ * The ids are kept in a sorted array, hence records are tested by binary search and row groups or pages are dropped
+ * if their min/max statistics do not include any of the ids.
+ */
+public class LongSetPredicate extends UserDefinedPredicate<Long> implements Serializable {
+	final long[] values;
+
+	/**
+	 * Creates a predicate for the given ids. Duplicates and the id 0 (unknown) are ignored.
+	 */
+	public LongSetPredicate(long[] values) {
+		this.values = Arrays.stream(values).filter(v -> v != 0L).sorted().distinct().toArray();
+	}
+
+	public boolean isEmpty() {
+		return values.length == 0;
+	}
+
+	public int size() {
+		return values.length;
+	}
+
+	public long first() {
+		return values[0];
+	}
+
+	@Override
+	public boolean acceptsNullValue() {
+		return false;
+	}
+
+	@Override
+	public boolean keep(Long value) {
+		return value != null && Arrays.binarySearch(values, value) >= 0;
+	}
+
+	@Override
+	public boolean canDrop(Statistics<Long> statistics) {
+		if (statistics.getMin() == null || statistics.getMax() == null) {
+			return false;
+		}
+		// find the first id that is greater than or equal to min
+		int index = Arrays.binarySearch(values, statistics.getMin());
+		if (index < 0) {
+			index = -index - 1;
+		}
+		return index == values.length || values[index] > statistics.getMax();
+	}
+
+	@Override
+	public boolean inverseCanDrop(Statistics<Long> statistics) {
+		// only a chunk that consists of exactly one contained id can be dropped
+		Long min = statistics.getMin();
+		return min != null && min.equals(statistics.getMax()) && keep(min);
+	}
+
+	@Override
+	public String toString() {
+		return "in" + Arrays.toString(values);
+	}
+}
@@ -0,0 +1,121 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import org.apache.parquet.io.InputFile;
+import org.apache.parquet.io.SeekableInputStream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * {@link InputFile} for local files that uses positional reads on a {@link FileChannel} instead of the Hadoop file
+ * system layer.
+ */
+public class NioInputFile implements InputFile {
+	final Path path;
+	long length = -1;
+
+	public NioInputFile(Path path) {
+		this.path = path;
+	}
+
+	@Override
+	public long getLength() throws IOException {
+		if (length < 0) {
+			length = java.nio.file.Files.size(path);
+		}
+		return length;
+	}
+
+	@Override
+	public SeekableInputStream newStream() throws IOException {
+		return new NioSeekableInputStream(FileChannel.open(path, StandardOpenOption.READ));
+	}
+
+	@Override
+	public String toString() {
+		return path.toString();
+	}
+
+	static class NioSeekableInputStream extends SeekableInputStream {
+		final FileChannel channel;
+		final byte[] singleByte = new byte[1];
+		long pos;
+
+		NioSeekableInputStream(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public long getPos() {
+			return pos;
+		}
+
+		@Override
+		public void seek(long newPos) {
+			this.pos = newPos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = read(singleByte, 0, 1);
+			return read < 0 ? -1 : singleByte[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			return read(ByteBuffer.wrap(bytes, off, len));
+		}
+
+		@Override
+		public int read(ByteBuffer buf) throws IOException {
+			if (!buf.hasRemaining()) {
+				return 0;
+			}
+			int read = channel.read(buf, pos);
+			if (read > 0) {
+				pos += read;
+			}
+			return read;
+		}
+
+		@Override
+		public void readFully(byte[] bytes) throws IOException {
+			readFully(ByteBuffer.wrap(bytes));
+		}
+
+		@Override
+		public void readFully(byte[] bytes, int start, int len) throws IOException {
+			readFully(ByteBuffer.wrap(bytes, start, len));
+		}
+
+		@Override
+		public void readFully(ByteBuffer buf) throws IOException {
+			while (buf.hasRemaining()) {
+				if (read(buf) < 0) {
+					throw new EOFException("Reached the end of stream with " + buf.remaining() + " bytes left to read");
+				}
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = Math.max(0, Math.min(n, channel.size() - pos));
+			pos += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(Integer.MAX_VALUE, Math.max(0, channel.size() - pos));
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+}
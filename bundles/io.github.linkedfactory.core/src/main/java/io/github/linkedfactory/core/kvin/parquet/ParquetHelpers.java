@@ -16,16 +16,17 @@ import org.apache.hadoop.fs.Path;
 import org.apache.parquet.HadoopReadOptions;
 import org.apache.parquet.ParquetReadOptions;
 import org.apache.parquet.avro.AvroParquetWriter;
-import org.apache.parquet.bytes.HeapByteBufferAllocator;
 import org.apache.parquet.column.ParquetProperties;
 import org.apache.parquet.column.page.PageReadStore;
 import org.apache.parquet.filter2.compat.FilterCompat;
 import org.apache.parquet.hadoop.ParquetFileReader;
 import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.codec.ZstandardCodec;
 import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 import org.apache.parquet.hadoop.util.HadoopInputFile;
 import org.apache.parquet.hadoop.util.HadoopOutputFile;
 import org.apache.parquet.io.ColumnIOFactory;
+import org.apache.parquet.io.InputFile;
 import org.apache.parquet.io.MessageColumnIO;
 import org.apache.parquet.io.RecordReader;
 import org.apache.parquet.io.api.Binary;
@@ -39,6 +40,7 @@ import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -82,19 +84,22 @@ public class ParquetHelpers {
 	static Pattern fileWithSeqNr = Pattern.compile("^([^.].*)__([0-9]+)\\..*$");
 	static Pattern fileOrDotFileWithSeqNr = Pattern.compile("^\\.?([^.].*)__([0-9]+)\\..*$");
 	static Configuration configuration = new Configuration();
+	// direct buffers for reading column chunks, released buffers are reused by subsequent reads
+	static final DirectBufferPool bufferPool = new DirectBufferPool(64 * 1024 * 1024);
 
 	static {
-		configuration.setInt("parquet.zstd.compressionLevel", ZSTD_COMPRESSION_LEVEL);
+		configuration.setInt(ZstandardCodec.PARQUET_COMPRESS_ZSTD_LEVEL, ZSTD_COMPRESSION_LEVEL);
 	}
 
 	static ParquetWriter<KvinRecord> getKvinRecordWriter(Path dataFile) throws IOException {
-		return KvinParquetWriter.builder(HadoopOutputFile.fromPath(dataFile, configuration))
+		return getKvinRecordWriter(dataFile, EncodingProfile.DEFAULT);
+	}
+
+	static ParquetWriter<KvinRecord> getKvinRecordWriter(Path dataFile, EncodingProfile profile) throws IOException {
+		Configuration conf = profile.createConfiguration(configuration);
+		return profile.apply(KvinParquetWriter.builder(HadoopOutputFile.fromPath(dataFile, conf)))
 				.withWriterVersion(ParquetProperties.WriterVersion.PARQUET_2_0)
-				.withConf(configuration)
-				.withDictionaryEncoding(true)
-				.withDictionaryEncoding("valueObject", false)
-				//.withCompressionCodec(CompressionCodecName.ZSTD)
-				.withCompressionCodec(CompressionCodecName.SNAPPY)
+				.withConf(conf)
 				.withRowGroupSize(ROW_GROUP_SIZE_DATA)
 				.withPageSize(PAGE_SIZE)
 				.withDictionaryPageSize(DICT_PAGE_SIZE)
@@ -102,15 +107,27 @@ public class ParquetHelpers {
 				.build();
 	}
 
+	/**
+	 * Returns an input file for the given path. Local files are read directly via NIO while other file systems are
+	 * accessed through Hadoop.
+	 */
+	static InputFile getInputFile(Path path) throws IOException {
+		String scheme = path.toUri().getScheme();
+		if (scheme == null || "file".equals(scheme)) {
+			return new NioInputFile(Paths.get(path.toUri().getPath()));
+		}
+		return HadoopInputFile.fromPath(path, configuration);
+	}
+
 	static IExtendedIterator<KvinRecord> createKvinRecordReader(Path path, FilterCompat.Filter filter) {
 		try {
 			ParquetReadOptions.Builder optionsBuilder = HadoopReadOptions.builder(configuration, path);
-			optionsBuilder.withAllocator(new HeapByteBufferAllocator());
+			optionsBuilder.withAllocator(bufferPool);
 			if (filter != null) {
 				optionsBuilder.withRecordFilter(filter);
 			}
 			ParquetReadOptions options = optionsBuilder.build();
-			ParquetFileReader r = new ParquetFileReader(HadoopInputFile.fromPath(path, configuration), options);
+			ParquetFileReader r = new ParquetFileReader(getInputFile(path), options);
 			MessageColumnIO columnIO = new ColumnIOFactory().getColumnIO(r.getFileMetaData().getSchema());
 			return new NiceIterator<>() {
 				RecordReader recordReader;
@@ -247,10 +264,16 @@ public class ParquetHelpers {
 	}
 
 	public static KvinTuple recordToTuple(URI item, URI property, URI context, KvinRecord record) throws IOException {
+		return recordToTuple(item, property, context, record, null);
+	}
+
+	public static KvinTuple recordToTuple(URI item, URI property, URI context, KvinRecord record,
+	                                      Records.PropertyLookup properties) throws IOException {
 		Object value = record.value;
 		if (value != null) {
 			if (value instanceof ByteBuffer) {
-				value = decodeRecord((ByteBuffer) value);
+				// decode a duplicate to keep the position of the record's buffer
+				value = decodeRecord(((ByteBuffer) value).duplicate(), properties);
 			}
 		}
 		return new KvinTuple(item, property, context, record.time, record.seqNr, value);
@@ -0,0 +1,206 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Calendar;
+
+/**
+ * Scheme for partitioning the data files of a {@link KvinParquet} archive into time based folders
+ * <code>year/partition</code>.
+ * <p>
+ * The scheme is chosen when an archive is created and recorded in its metadata. Writers compute the time range of a
+ * partition only once and afterwards assign tuples with simple range checks. Readers use the time range of the
+ * folders to skip partitions that do not overlap with a query.
+ */
+public abstract class Partitioning {
+	/**
+	 * Partitions by calendar week using the default time zone and locale. This is the layout of archives that were
+	 * created before the partitioning was made configurable.
+	 */
+	public static final Partitioning WEEK = new Partitioning("week") {
+		@Override
+		Partition partition(long time) {
+			Calendar calendar = Calendar.getInstance();
+			calendar.setTimeInMillis(time);
+			int year = calendar.get(Calendar.YEAR);
+			int week = calendar.get(Calendar.WEEK_OF_YEAR);
+			truncateToDay(calendar);
+			calendar.add(Calendar.DAY_OF_MONTH,
+					-((calendar.get(Calendar.DAY_OF_WEEK) - calendar.getFirstDayOfWeek() + 7) % 7));
+			long start = calendar.getTimeInMillis();
+			calendar.add(Calendar.DAY_OF_MONTH, 7);
+			long end = calendar.getTimeInMillis();
+			// the year of a week may change at the turn of the year
+			long[] yearRange = yearRange(year);
+			return new Partition(year, String.format("%02d", week),
+					Math.max(start, yearRange[0]), Math.min(end, yearRange[1]));
+		}
+
+		@Override
+		long[] timeRange(int year, int partition) {
+			if (partition <= 1 || partition >= 52) {
+				// the first and the last weeks may contain days of the adjacent years
+				return yearRange(year);
+			}
+			Calendar calendar = Calendar.getInstance();
+			calendar.clear();
+			calendar.set(Calendar.YEAR, year);
+			calendar.set(Calendar.WEEK_OF_YEAR, partition);
+			calendar.set(Calendar.DAY_OF_WEEK, calendar.getFirstDayOfWeek());
+			long start = calendar.getTimeInMillis();
+			calendar.add(Calendar.DAY_OF_MONTH, 7);
+			return new long[]{start, calendar.getTimeInMillis()};
+		}
+	};
+
+	/**
+	 * Partitions by day of the year, suitable for archives with high data rates.
+	 */
+	public static final Partitioning DAY = new Partitioning("day") {
+		@Override
+		Partition partition(long time) {
+			ZonedDateTime start = ZonedDateTime.ofInstant(Instant.ofEpochMilli(time), zone())
+					.toLocalDate().atStartOfDay(zone());
+			return new Partition(start.getYear(), String.format("%03d", start.getDayOfYear()),
+					start.toInstant().toEpochMilli(), start.plusDays(1).toInstant().toEpochMilli());
+		}
+
+		@Override
+		long[] timeRange(int year, int partition) {
+			ZonedDateTime start = LocalDate.ofYearDay(year, partition).atStartOfDay(zone());
+			return new long[]{start.toInstant().toEpochMilli(), start.plusDays(1).toInstant().toEpochMilli()};
+		}
+	};
+
+	/**
+	 * Partitions by month, suitable for archives with low data rates.
+	 */
+	public static final Partitioning MONTH = new Partitioning("month") {
+		@Override
+		Partition partition(long time) {
+			ZonedDateTime start = ZonedDateTime.ofInstant(Instant.ofEpochMilli(time), zone())
+					.toLocalDate().withDayOfMonth(1).atStartOfDay(zone());
+			return new Partition(start.getYear(), String.format("%02d", start.getMonthValue()),
+					start.toInstant().toEpochMilli(), start.plusMonths(1).toInstant().toEpochMilli());
+		}
+
+		@Override
+		long[] timeRange(int year, int partition) {
+			ZonedDateTime start = LocalDate.of(year, partition, 1).atStartOfDay(zone());
+			return new long[]{start.toInstant().toEpochMilli(), start.plusMonths(1).toInstant().toEpochMilli()};
+		}
+	};
+
+	final String name;
+
+	Partitioning(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Returns the partitioning scheme with the given name.
+	 */
+	public static Partitioning forName(String name) {
+		switch (name) {
+			case "day":
+				return DAY;
+			case "week":
+				return WEEK;
+			case "month":
+				return MONTH;
+			default:
+				throw new IllegalArgumentException("Unknown partitioning: " + name);
+		}
+	}
+
+	/**
+	 * Selects the partitioning scheme whose partitions are closest to the target number of records for the given data
+	 * rate.
+	 *
+	 * @param recordsPerDay          The expected number of records per day.
+	 * @param targetRecordsPerFolder The preferred number of records per partition.
+	 * @return The partitioning scheme.
+	 */
+	public static Partitioning forRate(long recordsPerDay, long targetRecordsPerFolder) {
+		if (recordsPerDay >= targetRecordsPerFolder / 2) {
+			return DAY;
+		} else if (recordsPerDay * 15 <= targetRecordsPerFolder) {
+			return MONTH;
+		}
+		return WEEK;
+	}
+
+	static ZoneId zone() {
+		return ZoneId.systemDefault();
+	}
+
+	static void truncateToDay(Calendar calendar) {
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+	}
+
+	static long[] yearRange(int year) {
+		return new long[]{
+				LocalDate.ofYearDay(year, 1).atStartOfDay(zone()).toInstant().toEpochMilli(),
+				LocalDate.ofYearDay(year + 1, 1).atStartOfDay(zone()).toInstant().toEpochMilli()
+		};
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Computes the partition that contains the given timestamp.
+	 */
+	abstract Partition partition(long time);
+
+	/**
+	 * Returns the (possibly larger) time range <code>[start, end)</code> of the data within a partition folder.
+	 */
+	abstract long[] timeRange(int year, int partition);
+
+	/**
+	 * Returns the time range of the given partition folder or <code>null</code> if the folder name is invalid.
+	 */
+	long[] timeRange(String yearFolder, String partitionFolder) {
+		try {
+			return timeRange(Integer.parseInt(yearFolder), Integer.parseInt(partitionFolder));
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	/**
+	 * A partition with its time range <code>[start, end)</code>.
+	 */
+	static class Partition {
+		final int year;
+		final String name;
+		final long start, end;
+
+		Partition(int year, String name, long start, long end) {
+			this.year = year;
+			this.name = name;
+			this.start = start;
+			this.end = end;
+		}
+
+		boolean contains(long time) {
+			return time >= start && time < end;
+		}
+
+		String yearFolder() {
+			return String.format("%04d", year);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package io.github.linkedfactory.core.kvin.parquet;
+
+import io.github.linkedfactory.core.kvin.parquet.records.KvinRecord;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.commons.iterator.WrappedIterator;
+import net.enilink.commons.util.Pair;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static io.github.linkedfactory.core.kvin.parquet.ParquetHelpers.createKvinRecordReader;
+import static io.github.linkedfactory.core.kvin.parquet.ParquetHelpers.getKvinRecordWriter;
+
+/**
+ * External merge sort for the records of one partition that orders records by {@link KvinRecord#compareTo}.
+ * <p>
+ * Records are buffered in memory until {@link #spill()} writes them as sorted run to a temporary Parquet file. The
+ * runs and the remaining buffered records are merged when the sorted records are written to the final file.
+ */
+class RecordSorter {
+	// spill files are only read once, hence they are not compressed
+	static final EncodingProfile SPILL_PROFILE = new EncodingProfile(CompressionCodecName.UNCOMPRESSED);
+
+	final java.nio.file.Path spillFolder;
+	final List<java.nio.file.Path> runs = new ArrayList<>();
+	List<KvinRecord> buffer = new ArrayList<>();
+
+	RecordSorter(java.nio.file.Path spillFolder) {
+		this.spillFolder = spillFolder;
+	}
+
+	void add(KvinRecord record) {
+		buffer.add(record);
+	}
+
+	int size() {
+		return buffer.size();
+	}
+
+	/**
+	 * Writes the buffered records as sorted run to a spill file.
+	 */
+	void spill() throws IOException {
+		if (buffer.isEmpty()) {
+			return;
+		}
+		buffer.sort(null);
+		Files.createDirectories(spillFolder);
+		java.nio.file.Path run = spillFolder.resolve("run__" + (runs.size() + 1) + ".parquet");
+		try (ParquetWriter<KvinRecord> writer = getKvinRecordWriter(new Path(run.toString()), SPILL_PROFILE)) {
+			for (KvinRecord record : buffer) {
+				writer.write(record);
+			}
+		}
+		runs.add(run);
+		buffer = new ArrayList<>();
+	}
+
+	/**
+	 * Writes all records in sorted order to the given writer and deletes the spill files.
+	 */
+	void writeTo(ParquetWriter<KvinRecord> writer) throws IOException {
+		buffer.sort(null);
+		if (runs.isEmpty()) {
+			for (KvinRecord record : buffer) {
+				writer.write(record);
+			}
+			buffer = new ArrayList<>();
+			return;
+		}
+
+		PriorityQueue<Pair<KvinRecord, IExtendedIterator<KvinRecord>>> nextRecords =
+				new PriorityQueue<>(Comparator.comparing(Pair::getFirst));
+		try {
+			for (java.nio.file.Path run : runs) {
+				IExtendedIterator<KvinRecord> it = createKvinRecordReader(new Path(run.toString()), null);
+				if (it.hasNext()) {
+					nextRecords.add(new Pair<>(it.next(), it));
+				} else {
+					it.close();
+				}
+			}
+			IExtendedIterator<KvinRecord> bufferIt = WrappedIterator.create(buffer.iterator());
+			if (bufferIt.hasNext()) {
+				nextRecords.add(new Pair<>(bufferIt.next(), bufferIt));
+			}
+			while (!nextRecords.isEmpty()) {
+				var pair = nextRecords.poll();
+				writer.write(pair.getFirst());
+				if (pair.getSecond().hasNext()) {
+					nextRecords.add(new Pair<>(pair.getSecond().next(), pair.getSecond()));
+				} else {
+					pair.getSecond().close();
+				}
+			}
+		} finally {
+			nextRecords.forEach(p -> p.getSecond().close());
+			buffer = new ArrayList<>();
+			for (java.nio.file.Path run : runs) {
+				Files.deleteIfExists(run);
+				// checksum file created by the Hadoop file system
+				Files.deleteIfExists(run.resolveSibling("." + run.getFileName() + ".crc"));
+			}
+			runs.clear();
+			File folder = spillFolder.toFile();
+			String[] remaining = folder.list();
+			if (remaining != null && remaining.length == 0) {
+				folder.delete();
+			}
+		}
+	}
+}
@@ -13,11 +13,42 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.function.ToLongFunction;
 
+/**
+ * Binary encoding of records, arrays and URIs for the <code>valueObject</code> column.
+ * <p>
+ * The properties of records are either written as URI strings (marker <code>O</code>) or as ids of the property
+ * mappings of the archive (marker <code>P</code>). The latter is used by {@link KvinParquet} as the URIs would
+ * otherwise be repeated for each value.
+ */
 public class Records {
+	/**
+	 * Resolves the ids of properties that are used within encoded records.
+	 */
+	public interface PropertyLookup {
+		URI getProperty(long id) throws IOException;
+	}
+
 	public static Object decodeRecord(ByteBuffer bb) throws IOException {
+		return decodeRecord(bb, null);
+	}
+
+	public static Object decodeRecord(ByteBuffer bb, PropertyLookup properties) throws IOException {
 		byte type = bb.get();
-		if (type == 'O') {
+		if (type == 'P') {
+			if (properties == null) {
+				throw new IOException("Record with property ids can not be decoded without property lookup");
+			}
+			int length = (int) Varint.readUnsigned(bb);
+			Record dataObj = Record.NULL;
+			while (length-- > 0) {
+				URI property = properties.getProperty(Varint.readUnsigned(bb));
+				Object value = decodeRecord(bb, properties);
+				dataObj = dataObj.append(new Record(property, value));
+			}
+			return dataObj;
+		} else if (type == 'O') {
 			int length = (int) Varint.readUnsigned(bb);
 			Record dataObj = Record.NULL;
 			while (length-- > 0) {
@@ -25,7 +56,7 @@ public class Records {
 				byte[] content = new byte[contentLength];
 				bb.get(content);
 				URI property = URIs.createURI(new String(content, StandardCharsets.UTF_8));
-				Object value = decodeRecord(bb);
+				Object value = decodeRecord(bb, properties);
 				dataObj = dataObj.append(new Record(property, value));
 			}
 			return dataObj;
@@ -33,7 +64,7 @@ public class Records {
 			int length = (int) Varint.readUnsigned(bb);
 			Object[] values = new Object[length];
 			for (int i = 0; i < length; i++) {
-				values[i] = decodeRecord(bb);
+				values[i] = decodeRecord(bb, properties);
 			}
 			return values;
 		} else if (type == 'R') {
@@ -48,7 +79,27 @@ public class Records {
 	}
 
 	public static byte[] encodeRecord(Object record) throws IOException {
-		if (record instanceof Record) {
+		return encodeRecord(record, null);
+	}
+
+	/**
+	 * Encodes a value and uses the given function to replace the properties of records with ids.
+	 *
+	 * @param propertyIds function that returns the id of a property or <code>null</code> to write the property URIs
+	 */
+	public static byte[] encodeRecord(Object record, ToLongFunction<URI> propertyIds) throws IOException {
+		if (record instanceof Record && propertyIds != null) {
+			Record r = (Record) record;
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			// marker for an object with property ids
+			baos.write('P');
+			writeVarint(baos, r.size());
+			for (Record element : r) {
+				writeVarint(baos, propertyIds.applyAsLong(element.getProperty()));
+				baos.write(encodeRecord(element.getValue(), propertyIds));
+			}
+			return baos.toByteArray();
+		} else if (record instanceof Record) {
 			Record r = (Record) record;
 			ByteArrayOutputStream baos = new ByteArrayOutputStream();
 			// marker for an object
@@ -78,7 +129,7 @@ public class Records {
 			Varint.writeUnsigned(length, 0, ((Object[]) record).length);
 			baos.write(length);
 			for (Object v : (Object[]) record) {
-				baos.write(encodeRecord(v));
+				baos.write(encodeRecord(v, propertyIds));
 			}
 			return baos.toByteArray();
 		} else if (record instanceof URI) {
@@ -95,4 +146,10 @@ public class Records {
 		}
 	}
 
+	private static void writeVarint(ByteArrayOutputStream out, long value) {
+		byte[] bytes = new byte[Varint.calcLengthUnsigned(value)];
+		Varint.writeUnsigned(bytes, 0, value);
+		out.write(bytes, 0, bytes.length);
+	}
+
 }
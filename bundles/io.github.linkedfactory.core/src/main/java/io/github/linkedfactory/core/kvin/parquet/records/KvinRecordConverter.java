@@ -2,6 +2,7 @@ package io.github.linkedfactory.core.kvin.parquet.records;
 
 import org.apache.parquet.io.api.*;
 
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 
 public class KvinRecordConverter extends RecordMaterializer<KvinRecord> {
@@ -88,7 +89,8 @@ public class KvinRecordConverter extends RecordMaterializer<KvinRecord> {
 
 		@Override
 		public void addBinary(Binary value) {
-			addObject(value.toByteBuffer());
+			// copy the bytes as the buffers of a row group are released after it has been read
+			addObject(ByteBuffer.wrap(value.getBytes()));
 		}
 
 		@Override
@@ -3,10 +3,12 @@ package io.github.linkedfactory.core.kvin.partitioned;
 import io.github.linkedfactory.core.kvin.Kvin;
 import io.github.linkedfactory.core.kvin.KvinListener;
 import io.github.linkedfactory.core.kvin.KvinTuple;
+import io.github.linkedfactory.core.kvin.RetentionPolicy;
 import io.github.linkedfactory.core.kvin.leveldb.KvinLevelDb;
 import io.github.linkedfactory.core.kvin.leveldb.KvinLevelDbArchiver;
 import io.github.linkedfactory.core.kvin.parquet.Compactor;
 import io.github.linkedfactory.core.kvin.parquet.KvinParquet;
+import io.github.linkedfactory.core.kvin.parquet.KvinRollups;
 import io.github.linkedfactory.core.kvin.util.AggregatingIterator;
 import net.enilink.commons.iterator.IExtendedIterator;
 import net.enilink.commons.iterator.NiceIterator;
@@ -35,9 +37,11 @@ public class KvinPartitioned implements Kvin {
 	protected List<KvinListener> listeners = new ArrayList<>();
 	protected File path;
 	protected Duration archiveInterval;
-	protected File currentStorePath, currentStoreArchivePath, archiveStorePath;
+	protected File currentStorePath, currentStoreArchivePath, archiveStorePath, rollupsPath;
 	protected volatile KvinLevelDb hotStore, hotStoreArchive;
 	protected KvinParquet archiveStore;
+	protected KvinRollups rollups;
+	protected volatile RetentionPolicy retentionPolicy;
 
 	ReadWriteLockManager lockManager = new ReadPrefReadWriteLockManager(true, 5000);
 
@@ -51,12 +55,14 @@ public class KvinPartitioned implements Kvin {
 		this.currentStorePath = new File(path, "current");
 		this.currentStoreArchivePath = new File(path, "current-archive");
 		this.archiveStorePath = new File(path, "archive");
+		this.rollupsPath = new File(path, "rollups");
 		Files.createDirectories(this.currentStorePath.toPath());
 		hotStore = new KvinLevelDb(this.currentStorePath);
 		if (Files.exists(this.currentStoreArchivePath.toPath())) {
 			hotStoreArchive = new KvinLevelDb(this.currentStoreArchivePath);
 		}
 		archiveStore = new KvinParquet(archiveStorePath.toString());
+		rollups = new KvinRollups(rollupsPath.toString(), archiveStore);
 		scheduleCyclicArchival();
 	}
 
@@ -93,15 +99,25 @@ public class KvinPartitioned implements Kvin {
 			}
 		}
 
+		KvinLevelDbArchiver archiver = new KvinLevelDbArchiver(hotStoreArchive, archiveStore, rollups);
 		try {
-			new KvinLevelDbArchiver(hotStoreArchive, archiveStore).archive();
-			try {
-				new Compactor(archiveStore).execute();
-			} catch (IOException e) {
-				log.error("Compacting archive store failed", e);
-			}
+			archiver.archiveValues();
 		} catch (Exception e) {
+			// the hot store archive is kept and archived again by the next run
 			log.error("Archiving data to archive store failed", e);
+			return;
+		}
+		try {
+			archiver.archiveRollups();
+		} catch (Exception e) {
+			// the archived range has been marked as uncovered and is answered from raw values
+			log.error("Computing rollups failed", e);
+		}
+		try {
+			new Compactor(archiveStore).execute();
+			rollups.compact();
+		} catch (IOException e) {
+			log.error("Compacting archive store failed", e);
 		}
 
 		try {
@@ -116,6 +132,42 @@ public class KvinPartitioned implements Kvin {
 				writeLock.release();
 			}
 		}
+
+		RetentionPolicy policy = retentionPolicy;
+		if (policy != null) {
+			applyRetention(policy, System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * Sets the retention policy that is applied after each archival.
+	 */
+	public void setRetentionPolicy(RetentionPolicy retentionPolicy) {
+		this.retentionPolicy = retentionPolicy;
+	}
+
+	/**
+	 * Removes the expired values from the hot store, the archive and the rollups.
+	 */
+	public void applyRetention(RetentionPolicy policy, long now) {
+		Lock readLock = readLock();
+		try {
+			long deleted = policy.apply(hotStore, now);
+			if (deleted > 0) {
+				log.info("Deleted {} expired values from hot store", deleted);
+			}
+		} finally {
+			readLock.release();
+		}
+		try {
+			long files = archiveStore.applyRetention(policy, now);
+			if (files > 0) {
+				log.info("Removed expired values from {} archive files", files);
+			}
+			rollups.applyRetention(policy, now);
+		} catch (IOException e) {
+			log.error("Applying retention policy to archive store failed", e);
+		}
 	}
 
 	private void scheduleCyclicArchival() {
@@ -178,6 +230,13 @@ public class KvinPartitioned implements Kvin {
 
 	@Override
 	public IExtendedIterator<KvinTuple> fetch(List<URI> items, List<URI> properties, URI context, long end, long begin, long limit, long interval, String op) {
+		if (op != null && limit == 0) {
+			IExtendedIterator<KvinTuple> rollupResult = fetchWithRollups(items, properties, context, end, begin,
+					interval, op.trim().toLowerCase());
+			if (rollupResult != null) {
+				return rollupResult;
+			}
+		}
 		IExtendedIterator<KvinTuple> internalResult = fetchInternal(items, properties, context, end, begin, limit);
 		if (op != null) {
 			internalResult = new AggregatingIterator<>(internalResult, interval == 0 ? end - begin : interval, op.trim().toLowerCase(), limit) {
@@ -196,6 +255,44 @@ public class KvinPartitioned implements Kvin {
 		return fetch(List.of(item),	properties, context, end, begin, limit, interval, op);
 	}
 
+	/**
+	 * Computes aggregates from the rollups for the complete buckets within the archived range and from raw values for
+	 * the remaining ranges and the hot store.
+	 * <p>
+	 * Returns <code>null</code> if the rollups can not be used. This is the case if no tier matches the interval or if
+	 * an archival is running as the values of the hot store archive might already be contained within the rollups.
+	 */
+	protected IExtendedIterator<KvinTuple> fetchWithRollups(List<URI> items, List<URI> properties, URI context,
+	                                                        long end, long begin, long interval, String op) {
+		long tierInterval = rollups.selectInterval(interval, op);
+		if (tierInterval == 0) {
+			return null;
+		}
+		long[] range = rollups.coveredRange(tierInterval, end, begin);
+		if (range == null) {
+			return null;
+		}
+		Lock readLock = readLock();
+		try {
+			if (hotStoreArchive != null) {
+				return null;
+			}
+			List<IExtendedIterator<KvinTuple>> rawValues = new ArrayList<>();
+			rawValues.add(hotStore.fetch(items, properties, context, end, begin, 0, 0, null));
+			if (begin < range[0]) {
+				rawValues.add(archiveStore.fetch(items, properties, context, range[0] - 1, begin, 0, 0, null));
+			}
+			if (range[1] <= end) {
+				rawValues.add(archiveStore.fetch(items, properties, context, end, range[1], 0, 0, null));
+			}
+			return KvinRollups.combine(rawValues,
+					List.of(rollups.fetch(items, properties, context, range[1] - 1, range[0], tierInterval)),
+					interval, op);
+		} finally {
+			readLock.release();
+		}
+	}
+
 	protected IExtendedIterator<KvinTuple> fetchInternal(List<URI> items, List<URI> properties, URI context, long end, long begin, long limit) {
 		Lock readLock = readLock();
 		return new NiceIterator<>() {
@@ -343,80 +440,61 @@ public class KvinPartitioned implements Kvin {
 
 	@Override
 	public IExtendedIterator<URI> descendants(URI item, URI context) {
-		Lock readLock = readLock();
-		IExtendedIterator<URI> results = hotStore.descendants(item, context);
-		return new NiceIterator<>() {
-			boolean closed;
-
-			@Override
-			public boolean hasNext() {
-				if (results.hasNext()) {
-					return true;
-				} else {
-					close();
-					return false;
-				}
-			}
-
-			@Override
-			public URI next() {
-				if (hasNext()) {
-					return results.next();
-				}
-				throw new NoSuchElementException();
-			}
-
-			@Override
-			public void close() {
-				if (!closed) {
-					try {
-						results.close();
-					} finally {
-						readLock.release();
-						closed = true;
-					}
-				}
-			}
-		};
+		return descendants(item, context, Long.MAX_VALUE);
 	}
 
 	@Override
 	public IExtendedIterator<URI> descendants(URI item, URI context, long limit) {
+		// archived items are also included as they may no longer exist in the hot store
+		Set<URI> descendants = new LinkedHashSet<>();
 		Lock readLock = readLock();
-		IExtendedIterator<URI> results = hotStore.descendants(item, context, limit);
-		return new NiceIterator<>() {
-			boolean closed;
-
-			@Override
-			public boolean hasNext() {
-				if (results.hasNext()) {
-					return true;
-				} else {
-					close();
-					return false;
-				}
+		try {
+			addAll(descendants, hotStore.descendants(item, context, limit), limit);
+			if (hotStoreArchive != null) {
+				addAll(descendants, hotStoreArchive.descendants(item, context, limit), limit);
 			}
+			addAll(descendants, archiveStore.descendants(item, context, limit), limit);
+		} finally {
+			readLock.release();
+		}
+		return WrappedIterator.create(descendants.iterator());
+	}
 
-			@Override
-			public URI next() {
-				if (hasNext()) {
-					return results.next();
-				}
-				throw new NoSuchElementException();
+	private void addAll(Set<URI> target, IExtendedIterator<URI> source, long limit) {
+		try {
+			while (target.size() < limit && source.hasNext()) {
+				target.add(source.next());
 			}
+		} finally {
+			source.close();
+		}
+	}
 
-			@Override
-			public void close() {
-				if (!closed) {
-					try {
-						results.close();
-					} finally {
-						readLock.release();
-						closed = true;
-					}
+	/**
+	 * Sums the estimates of the hot stores and the archive.
+	 */
+	@Override
+	public long estimateCount(URI item, URI property, URI context, long end, long begin) {
+		Lock readLock = readLock();
+		try {
+			List<Kvin> stores = new ArrayList<>(3);
+			stores.add(hotStore);
+			if (hotStoreArchive != null) {
+				stores.add(hotStoreArchive);
+			}
+			stores.add(archiveStore);
+			long estimate = 0;
+			for (Kvin store : stores) {
+				long count = store.estimateCount(item, property, context, end, begin);
+				if (count < 0) {
+					return -1;
 				}
+				estimate += count;
 			}
-		};
+			return estimate;
+		} finally {
+			readLock.release();
+		}
 	}
 
 	@Override
@@ -163,6 +163,9 @@ public abstract class AggregatingIterator<T extends KvinTuple> extends NiceItera
 					value = utils.add(value, current);
 				}
 				break;
+			case "count":
+				value = elements.size();
+				break;
 		}
 		return value;
 	}
@@ -0,0 +1,121 @@
+package io.github.linkedfactory.core.kvin.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Buffer for the elements of an asynchronous task that may be claimed by its consumer.
+ * <p>
+ * If the task has not been started when the consumer waits for the first element then the consumer claims the task
+ * and computes the elements in its own thread. This prevents that consumers wait for tasks which are queued behind
+ * their own task, e.g. for nested iterators on an executor with a limited number of parallel tasks.
+ */
+public class AsyncBuffer<T> {
+	// time that a consumer waits for an element before it claims a task that has not been started yet
+	public static final long CLAIM_DELAY_MS = 10;
+	static final long OFFER_TIMEOUT_MS = 10;
+	static final Object END = new Object();
+
+	final BlockingQueue<Object> queue;
+	final BooleanSupplier closed;
+	// set by either the asynchronous task or the consumer if the task has not been started yet
+	final AtomicBoolean started = new AtomicBoolean();
+	volatile boolean claimed;
+
+	/**
+	 * Creates a buffer with the given capacity.
+	 *
+	 * @param capacity The maximum number of buffered elements.
+	 * @param closed   Returns true if the consumer has been closed and the task should stop.
+	 */
+	public AsyncBuffer(int capacity, BooleanSupplier closed) {
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.closed = closed;
+	}
+
+	/**
+	 * Functional interface for a task that adds its elements to a buffer.
+	 */
+	public interface Producer<T> {
+		void produce(AsyncBuffer<T> buffer) throws InterruptedException;
+	}
+
+	/**
+	 * Submits a task that adds its elements to this buffer unless the task has already been claimed by the consumer.
+	 */
+	public void submit(ExecutorService executorService, Producer<T> producer) {
+		executorService.submit(() -> {
+			if (!started.compareAndSet(false, true)) {
+				// the elements are computed synchronously by the consumer
+				return;
+			}
+			try {
+				producer.produce(this);
+			} catch (InterruptedException e) {
+				// just return
+			} finally {
+				try {
+					offer(END);
+				} catch (InterruptedException e) {
+					// just return
+				}
+			}
+		});
+	}
+
+	/**
+	 * Adds an element and waits for free space while the consumer is not closed.
+	 *
+	 * @return <code>false</code> if the consumer has been closed, else <code>true</code>
+	 */
+	public boolean put(T element) throws InterruptedException {
+		return offer(element);
+	}
+
+	private boolean offer(Object element) throws InterruptedException {
+		while (!queue.offer(element, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+			if (closed.getAsBoolean()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the next element or <code>null</code> if the task has finished or if the consumer has claimed the task.
+	 * <p>
+	 * In the latter case {@link #isClaimed()} returns true and the consumer has to compute the elements itself.
+	 */
+	@SuppressWarnings("unchecked")
+	public T next() throws InterruptedException {
+		Object element = queue.poll(CLAIM_DELAY_MS, TimeUnit.MILLISECONDS);
+		if (element == null) {
+			if (started.compareAndSet(false, true)) {
+				// the task is still waiting for execution, compute the elements in the consumer's thread
+				// instead of waiting for a task that may be queued behind the current one
+				claimed = true;
+				return null;
+			}
+			element = queue.take();
+		}
+		return element == END ? null : (T) element;
+	}
+
+	/**
+	 * Returns true if the consumer has claimed the task.
+	 */
+	public boolean isClaimed() {
+		return claimed;
+	}
+
+	/**
+	 * Skips the task if it has not been started yet.
+	 */
+	public void cancel() {
+		started.set(true);
+	}
+}
@@ -1,64 +1,52 @@
 package io.github.linkedfactory.core.kvin.util;
 
-import io.github.linkedfactory.core.rdf4j.common.query.InnerJoinIterator;
 import net.enilink.commons.iterator.IExtendedIterator;
 import net.enilink.commons.iterator.NiceIterator;
 import org.eclipse.rdf4j.query.QueryEvaluationException;
 
 import java.util.NoSuchElementException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 public class AsyncExtendedIterator<T> extends NiceIterator<T> {
-	static final Object NULL_ELEMENT = new Object();
-	final BlockingQueue<T> nextElements;
+	final AsyncBuffer<T> nextElements;
+	final Supplier<IExtendedIterator<T>> base;
+	IExtendedIterator<T> syncIt;
 	volatile boolean closed = false;
 	T next;
 
 	public AsyncExtendedIterator(Supplier<IExtendedIterator<T>> base, Supplier<ExecutorService> executorService) {
-		nextElements = new ArrayBlockingQueue<>(100);
-		executorService.get().submit(() -> {
+		this.base = base;
+		nextElements = new AsyncBuffer<>(100, () -> closed);
+		nextElements.submit(executorService.get(), buffer -> {
 			var baseIt = base.get();
 			try {
 				while (baseIt.hasNext()) {
-					T element = baseIt.next();
-					while (!nextElements.offer(element, 10, TimeUnit.MILLISECONDS)) {
-						if (closed) {
-							return;
-						}
+					if (!buffer.put(baseIt.next())) {
+						return;
 					}
 				}
-			} catch (InterruptedException e) {
-				// just return
 			} finally {
-				try {
-					baseIt.close();
-				} finally {
-					try {
-						while (!nextElements.offer((T) NULL_ELEMENT, 10, TimeUnit.MILLISECONDS)) {
-							if (closed) {
-								return;
-							}
-						}
-					} catch (InterruptedException e) {
-						// just return
-					}
-				}
+				baseIt.close();
 			}
 		});
 	}
 
 	@Override
 	public boolean hasNext() {
+		if (syncIt != null) {
+			return !closed && syncIt.hasNext();
+		}
 		if (next == null && !closed) {
 			try {
-				T nextElement = nextElements.take();
-				if (nextElement == NULL_ELEMENT) {
+				T nextElement = nextElements.next();
+				if (nextElements.isClaimed()) {
+					syncIt = base.get();
+					return syncIt.hasNext();
+				}
+				if (nextElement == null) {
 					close();
-				}  else {
+				} else {
 					next = nextElement;
 				}
 			} catch (InterruptedException e) {
@@ -73,6 +61,9 @@ public class AsyncExtendedIterator<T> extends NiceIterator<T> {
 		if (!hasNext()) {
 			throw new NoSuchElementException();
 		}
+		if (syncIt != null) {
+			return syncIt.next();
+		}
 		T result = next;
 		next = null;
 		return result;
@@ -86,5 +77,9 @@ public class AsyncExtendedIterator<T> extends NiceIterator<T> {
 	@Override
 	public void close() {
 		closed = true;
+		nextElements.cancel();
+		if (syncIt != null) {
+			syncIt.close();
+		}
 	}
 }
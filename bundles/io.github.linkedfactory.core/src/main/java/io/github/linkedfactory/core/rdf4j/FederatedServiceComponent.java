@@ -6,6 +6,7 @@ import io.github.linkedfactory.core.kvin.Kvin;
 import io.github.linkedfactory.core.kvin.http.KvinHttp;
 import io.github.linkedfactory.core.rdf4j.aas.AasFederatedService;
 import io.github.linkedfactory.core.rdf4j.common.BaseFederatedServiceResolver;
+import io.github.linkedfactory.core.rdf4j.common.QueryExecutorService;
 import io.github.linkedfactory.core.rdf4j.kvin.KvinFederatedService;
 import io.github.linkedfactory.core.rdf4j.kvin.functions.DateTimeFunction;
 import net.enilink.komma.model.IModelSet;
@@ -19,7 +20,6 @@ import org.osgi.service.component.annotations.*;
 
 import java.util.Optional;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 @Component
 public class FederatedServiceComponent {
@@ -32,7 +32,8 @@ public class FederatedServiceComponent {
 
 	public static synchronized ExecutorService getExecutorService() {
 		if (executorService == null) {
-			executorService = Executors.newCachedThreadPool();
+			// bounded pool that is shared by all queries, each query uses its own budget of parallel tasks
+			executorService = QueryExecutorService.createSharedExecutor(QueryExecutorService.DEFAULT_THREADS);
 			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 				if (executorService != null) {
 					executorService.shutdown();
@@ -3,6 +3,7 @@ package io.github.linkedfactory.core.rdf4j.aas;
 import io.github.linkedfactory.core.rdf4j.aas.query.AasEvaluationStrategy;
 import io.github.linkedfactory.core.rdf4j.aas.query.AasFetchOptimizer;
 import io.github.linkedfactory.core.rdf4j.aas.query.ParameterScanner;
+import io.github.linkedfactory.core.rdf4j.common.QueryExecutorService;
 import io.github.linkedfactory.core.rdf4j.common.query.CompositeBindingSet;
 import io.github.linkedfactory.core.rdf4j.common.query.QueryJoinOptimizer;
 import io.github.linkedfactory.core.rdf4j.common.query.QueryModelPruner;
@@ -124,7 +125,10 @@ public class AasFederatedService implements FederatedService {
         // System.out.println(service);
 
         Map<Value, Object> valueToData = new WeakHashMap<>();
-        EvaluationStrategy strategy = new AasEvaluationStrategy(client, executorService, scanner, vf, null, null, valueToData);
+        // limit the number of parallel tasks of this query
+        ExecutorService queryExecutorService = new QueryExecutorService(executorService.get());
+        EvaluationStrategy strategy = new AasEvaluationStrategy(client, () -> queryExecutorService, scanner, vf, null, null,
+                valueToData);
 
         List<CloseableIteration<BindingSet, QueryEvaluationException>> resultIters = new ArrayList<>();
         while (bindings.hasNext()) {
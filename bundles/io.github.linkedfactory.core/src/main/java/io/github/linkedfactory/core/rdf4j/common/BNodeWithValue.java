@@ -15,7 +15,11 @@ public class BNodeWithValue extends SimpleBNode implements HasValue {
 	protected final Object value;
 
 	private BNodeWithValue(Object value) {
-		super(generateId());
+		this(generateId(), value);
+	}
+
+	private BNodeWithValue(String id, Object value) {
+		super(id);
 		this.value = value;
 	}
 
@@ -33,6 +37,13 @@ public class BNodeWithValue extends SimpleBNode implements HasValue {
 		}
 	}
 
+	/**
+	 * Creates a node with an existing ID, e.g. to restore a node that has been serialized.
+	 */
+	public static BNodeWithValue createWithId(String id, Object value) {
+		return new BNodeWithValue(id, value);
+	}
+
 	@Override
 	public Object getValue() {
 		return value;
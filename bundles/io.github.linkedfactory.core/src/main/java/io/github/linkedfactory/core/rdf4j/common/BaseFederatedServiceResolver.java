@@ -3,7 +3,6 @@ package io.github.linkedfactory.core.rdf4j.common;
 import org.eclipse.rdf4j.query.algebra.evaluation.federation.AbstractFederatedServiceResolver;
 
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * Bas implementation of federated service resolver that also provides an executor service.
@@ -13,7 +12,7 @@ public abstract class BaseFederatedServiceResolver extends AbstractFederatedServ
 
 	public synchronized ExecutorService getExecutorService() {
 		if (executorService == null) {
-			executorService = Executors.newCachedThreadPool();
+			executorService = QueryExecutorService.createSharedExecutor(QueryExecutorService.DEFAULT_THREADS);
 		}
 		return executorService;
 	}
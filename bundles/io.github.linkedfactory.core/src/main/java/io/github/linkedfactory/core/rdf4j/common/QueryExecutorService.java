@@ -0,0 +1,205 @@
+package io.github.linkedfactory.core.rdf4j.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Executor service for the tasks of a single query that runs at most a given number of tasks in parallel on a
+ * shared executor.
+ * <p>
+ * Each running task occupies one slot of the query's budget. After a task completes, the next task of the query is
+ * appended to the shared executor's queue. Therefore, the tasks of concurrent queries are executed in a round-robin
+ * fashion and a single query is not able to occupy all threads of the shared executor.
+ */
+public class QueryExecutorService extends AbstractExecutorService {
+	public static final int DEFAULT_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+	public static final int DEFAULT_PARALLELISM = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+	final Executor executor;
+	final int parallelism;
+	final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+	final AtomicInteger active = new AtomicInteger();
+	final LongAdder executedTasks = new LongAdder();
+	final LongAdder queueWaitNanos = new LongAdder();
+	// signals waiting threads when the executor service has terminated
+	final ReentrantLock terminationLock = new ReentrantLock();
+	final Condition termination = terminationLock.newCondition();
+	volatile boolean shutdown;
+
+	public QueryExecutorService(Executor executor) {
+		this(executor, DEFAULT_PARALLELISM);
+	}
+
+	/**
+	 * Creates an executor service with a budget of parallel tasks.
+	 *
+	 * @param executor    The shared executor that runs the tasks.
+	 * @param parallelism The maximum number of tasks that are running in parallel.
+	 */
+	public QueryExecutorService(Executor executor, int parallelism) {
+		if (parallelism <= 0) {
+			throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+		}
+		this.executor = executor;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Creates a shared executor with a bounded number of threads.
+	 *
+	 * @param threads The maximum number of threads.
+	 */
+	public static ThreadPoolExecutor createSharedExecutor(int threads) {
+		AtomicInteger threadNr = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(), r -> {
+			Thread thread = new Thread(r, "query-executor-" + threadNr.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (shutdown) {
+			throw new RejectedExecutionException("Executor has been shut down");
+		}
+		long queued = System.nanoTime();
+		tasks.add(() -> {
+			queueWaitNanos.add(System.nanoTime() - queued);
+			executedTasks.increment();
+			command.run();
+		});
+		schedule();
+	}
+
+	/**
+	 * Submits queued tasks to the shared executor as long as slots of the budget are free.
+	 * <p>
+	 * A slot is reserved before the next task is taken from the queue so that only tasks which can actually run are
+	 * submitted to the shared executor.
+	 */
+	private void schedule() {
+		while (true) {
+			int current = active.get();
+			if (current >= parallelism) {
+				// a running task schedules the next one after it has completed
+				return;
+			}
+			if (!active.compareAndSet(current, current + 1)) {
+				continue;
+			}
+			Runnable task = tasks.poll();
+			if (task == null) {
+				active.decrementAndGet();
+				// a task may have been queued while the slot was reserved
+				if (tasks.isEmpty()) {
+					return;
+				}
+				continue;
+			}
+			try {
+				executor.execute(() -> run(task));
+			} catch (RejectedExecutionException e) {
+				active.decrementAndGet();
+				tasks.add(task);
+				throw e;
+			}
+		}
+	}
+
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} finally {
+			active.decrementAndGet();
+			schedule();
+			signalTermination();
+		}
+	}
+
+	private void signalTermination() {
+		if (isTerminated()) {
+			terminationLock.lock();
+			try {
+				termination.signalAll();
+			} finally {
+				terminationLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of tasks that are waiting for execution.
+	 */
+	public int getQueuedTasks() {
+		return tasks.size();
+	}
+
+	/**
+	 * Returns the number of tasks that have been started.
+	 */
+	public long getExecutedTasks() {
+		return executedTasks.sum();
+	}
+
+	/**
+	 * Returns the total time that the started tasks have waited for execution in nanoseconds.
+	 */
+	public long getQueueWaitNanos() {
+		return queueWaitNanos.sum();
+	}
+
+	@Override
+	public void shutdown() {
+		shutdown = true;
+		signalTermination();
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		shutdown = true;
+		List<Runnable> remaining = new ArrayList<>();
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			remaining.add(task);
+		}
+		signalTermination();
+		return remaining;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return shutdown;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return shutdown && active.get() == 0 && tasks.isEmpty();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		terminationLock.lock();
+		try {
+			while (!isTerminated()) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = termination.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			terminationLock.unlock();
+		}
+	}
+}
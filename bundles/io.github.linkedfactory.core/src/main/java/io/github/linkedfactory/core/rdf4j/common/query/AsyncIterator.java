@@ -1,70 +1,64 @@
 package io.github.linkedfactory.core.rdf4j.common.query;
 
+import io.github.linkedfactory.core.kvin.util.AsyncBuffer;
 import org.eclipse.rdf4j.common.iteration.CloseableIteration;
 import org.eclipse.rdf4j.query.QueryEvaluationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.NoSuchElementException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 public class AsyncIterator<T> implements CloseableIteration<T, QueryEvaluationException> {
 	static final Logger log = LoggerFactory.getLogger(AsyncIterator.class);
 
-	static final Object NULL_ELEMENT = new Object();
-	final BlockingQueue<T> nextElements;
+	final AsyncBuffer<T> nextElements;
+	final Supplier<CloseableIteration<T, QueryEvaluationException>> base;
+	CloseableIteration<T, QueryEvaluationException> syncIt;
 	volatile boolean closed = false;
 	T next;
 
 	public AsyncIterator(Supplier<CloseableIteration<T, QueryEvaluationException>> base, Supplier<ExecutorService> executorService) {
-		nextElements = new ArrayBlockingQueue<>(100);
+		this.base = base;
+		nextElements = new AsyncBuffer<>(100, () -> closed);
 		var currentAsync = InnerJoinIterator.asyncDepth.get();
-		executorService.get().submit(() -> {
+		nextElements.submit(executorService.get(), buffer -> {
 			InnerJoinIterator.asyncDepth.set(currentAsync != null ? currentAsync + 1 : 1);
 			try {
 				var baseIt = base.get();
 				try {
 					while (baseIt.hasNext()) {
-						T element = baseIt.next();
-						while (!nextElements.offer(element, 10, TimeUnit.MILLISECONDS)) {
-							if (closed) {
-								return;
-							}
+						if (!buffer.put(baseIt.next())) {
+							return;
 						}
 					}
-				} catch (InterruptedException e) {
-					// just return
 				} finally {
 					baseIt.close();
 				}
+			} catch (InterruptedException e) {
+				throw e;
 			} catch (Exception e) {
 				log.error("Error while computing elements", e);
 			} finally {
-				try {
-					while (!nextElements.offer((T) NULL_ELEMENT, 10, TimeUnit.MILLISECONDS)) {
-						if (closed) {
-							return;
-						}
-					}
-				} catch (InterruptedException e) {
-					// just return
-				} finally {
-					InnerJoinIterator.asyncDepth.remove();
-				}
+				InnerJoinIterator.asyncDepth.remove();
 			}
 		});
 	}
 
 	@Override
 	public boolean hasNext() {
+		if (syncIt != null) {
+			return !closed && syncIt.hasNext();
+		}
 		if (next == null && !closed) {
 			try {
-				T nextElement = nextElements.take();
-				if (nextElement == NULL_ELEMENT) {
+				T nextElement = nextElements.next();
+				if (nextElements.isClaimed()) {
+					syncIt = base.get();
+					return syncIt.hasNext();
+				}
+				if (nextElement == null) {
 					close();
 				} else {
 					next = nextElement;
@@ -81,6 +75,9 @@ public class AsyncIterator<T> implements CloseableIteration<T, QueryEvaluationEx
 		if (!hasNext()) {
 			throw new NoSuchElementException();
 		}
+		if (syncIt != null) {
+			return syncIt.next();
+		}
 		T result = next;
 		next = null;
 		return result;
@@ -94,5 +91,9 @@ public class AsyncIterator<T> implements CloseableIteration<T, QueryEvaluationEx
 	@Override
 	public void close() {
 		closed = true;
+		nextElements.cancel();
+		if (syncIt != null) {
+			syncIt.close();
+		}
 	}
 }
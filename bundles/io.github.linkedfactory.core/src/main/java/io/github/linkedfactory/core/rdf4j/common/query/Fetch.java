@@ -2,8 +2,14 @@ package io.github.linkedfactory.core.rdf4j.common.query;
 
 import org.eclipse.rdf4j.query.algebra.TupleExpr;
 
+import java.util.Set;
+
 /**
  * Common interface for fetches against custom remote endpoints.
  */
 public interface Fetch extends TupleExpr {
+	/**
+	 * Returns the names of the bindings that are required to execute this fetch.
+	 */
+	Set<String> getRequiredBindings();
 }
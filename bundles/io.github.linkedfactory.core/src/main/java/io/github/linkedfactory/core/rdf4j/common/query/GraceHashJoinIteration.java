@@ -0,0 +1,597 @@
+package io.github.linkedfactory.core.rdf4j.common.query;
+
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import io.github.linkedfactory.core.kvin.KvinTuples;
+import io.github.linkedfactory.core.kvin.Record;
+import io.github.linkedfactory.core.kvin.util.Values;
+import io.github.linkedfactory.core.rdf4j.common.BNodeWithValue;
+import io.github.linkedfactory.core.rdf4j.common.HasValue;
+import io.github.linkedfactory.core.rdf4j.common.IRIWithValue;
+import net.enilink.komma.core.URI;
+import net.enilink.komma.core.URIs;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.LookAheadIteration;
+import org.eclipse.rdf4j.model.BNode;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.Binding;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
+import org.eclipse.rdf4j.query.algebra.evaluation.iterator.BindingSetHashKey;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Hash join with a bounded memory footprint.
+ * <p>
+ * The hash table is built from the right argument while the left argument is streamed. If the estimated size of the
+ * hash table exceeds the given limit then both arguments are partitioned by the hash of their join attributes into
+ * temporary files (grace hash join). The partitions are joined one after another and are partitioned again if they
+ * are still too large. Values that carry KVIN tuples, records or primitive values (see {@link HasValue}) are
+ * serialized together with their data. Only values with other kinds of data are kept in memory.
+ */
+public class GraceHashJoinIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+	public static final long DEFAULT_MAX_MEMORY = 64 * 1048576L; // 64 MB
+
+	static final int PARTITIONS = 16;
+	static final int MAX_DEPTH = 3;
+
+	static final byte IRI_VALUE = 0, BNODE_VALUE = 1, LITERAL_VALUE = 2, LANG_LITERAL_VALUE = 3, REFERENCE = 4,
+			BNODE_WITH_VALUE = 5, IRI_WITH_VALUE = 6;
+
+	// types of the data of values with additional data
+	static final byte NULL_DATA = 0, TUPLE_DATA = 1, URI_DATA = 2, RECORD_DATA = 3, ARRAY_DATA = 4, LIST_DATA = 5,
+			BIG_INTEGER_DATA = 6, BIG_DECIMAL_DATA = 7, PRIMITIVE_DATA = 8;
+
+	static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+	final String[] joinAttributes;
+	final long maxMemory;
+	final Deque<Task> tasks = new ArrayDeque<>();
+	final List<SpillFile> spillFiles = new ArrayList<>();
+
+	final Map<String, Integer> nameIds = new HashMap<>();
+	final List<String> names = new ArrayList<>();
+	final List<Value> references = new ArrayList<>();
+
+	Map<BindingSetHashKey, List<BindingSet>> hashTable;
+	CloseableIteration<BindingSet, QueryEvaluationException> probe;
+	BindingSet currentProbe;
+	Iterator<BindingSet> matches;
+	int spilledPartitions;
+
+	public GraceHashJoinIteration(CloseableIteration<BindingSet, QueryEvaluationException> left,
+	                              CloseableIteration<BindingSet, QueryEvaluationException> right,
+	                              String[] joinAttributes) {
+		this(left, right, joinAttributes, DEFAULT_MAX_MEMORY);
+	}
+
+	/**
+	 * Creates a join of two iterations.
+	 *
+	 * @param left           The left argument that is streamed.
+	 * @param right          The right argument that is used to build the hash table.
+	 * @param joinAttributes The names of the bindings that are used as join keys.
+	 * @param maxMemory      The maximum estimated size of the hash table in bytes.
+	 */
+	public GraceHashJoinIteration(CloseableIteration<BindingSet, QueryEvaluationException> left,
+	                              CloseableIteration<BindingSet, QueryEvaluationException> right,
+	                              String[] joinAttributes, long maxMemory) {
+		this.joinAttributes = joinAttributes;
+		this.maxMemory = maxMemory;
+		this.tasks.add(new Task(right, left, 0));
+	}
+
+	@Override
+	protected BindingSet getNextElement() throws QueryEvaluationException {
+		while (true) {
+			while (matches != null && matches.hasNext()) {
+				BindingSet result = merge(currentProbe, matches.next());
+				if (result != null) {
+					return result;
+				}
+			}
+			matches = null;
+			if (probe != null) {
+				if (probe.hasNext()) {
+					currentProbe = probe.next();
+					List<BindingSet> candidates = hashTable.get(BindingSetHashKey.create(joinAttributes, currentProbe));
+					if (candidates != null) {
+						matches = candidates.iterator();
+					}
+					continue;
+				}
+				probe.close();
+				probe = null;
+				hashTable = null;
+			}
+			Task task = tasks.poll();
+			if (task == null) {
+				return null;
+			}
+			build(task);
+		}
+	}
+
+	/**
+	 * Builds the hash table for the given task or partitions the task if its build side is too large.
+	 */
+	private void build(Task task) {
+		Map<BindingSetHashKey, List<BindingSet>> table = new HashMap<>();
+		long memory = 0;
+		boolean spilled = false;
+		try {
+			while (task.build.hasNext()) {
+				BindingSet bs = task.build.next();
+				table.computeIfAbsent(BindingSetHashKey.create(joinAttributes, bs), key -> new ArrayList<>(1)).add(bs);
+				memory += estimateSize(bs);
+				if (memory > maxMemory && task.depth < MAX_DEPTH) {
+					spill(task, table);
+					spilled = true;
+					break;
+				}
+			}
+		} finally {
+			task.build.close();
+			if (spilled || table.isEmpty()) {
+				// the probe side has either been partitioned or there are no join partners
+				task.probe.close();
+			}
+		}
+		if (!spilled && !table.isEmpty()) {
+			hashTable = table;
+			probe = task.probe;
+		}
+	}
+
+	/**
+	 * Writes the already hashed and the remaining bindings of both sides into partition files and schedules the
+	 * partitions for joining.
+	 */
+	private void spill(Task task, Map<BindingSetHashKey, List<BindingSet>> table) {
+		SpillFile[] buildFiles = new SpillFile[PARTITIONS];
+		SpillFile[] probeFiles = new SpillFile[PARTITIONS];
+		try {
+			for (Map.Entry<BindingSetHashKey, List<BindingSet>> entry : table.entrySet()) {
+				SpillFile file = partitionFile(buildFiles, partition(entry.getKey(), task.depth));
+				for (BindingSet bs : entry.getValue()) {
+					file.write(bs);
+				}
+			}
+			table.clear();
+			while (task.build.hasNext()) {
+				BindingSet bs = task.build.next();
+				partitionFile(buildFiles, partition(BindingSetHashKey.create(joinAttributes, bs), task.depth)).write(bs);
+			}
+			while (task.probe.hasNext()) {
+				BindingSet bs = task.probe.next();
+				int p = partition(BindingSetHashKey.create(joinAttributes, bs), task.depth);
+				if (buildFiles[p] != null) {
+					partitionFile(probeFiles, p).write(bs);
+				}
+			}
+			for (int p = PARTITIONS - 1; p >= 0; p--) {
+				if (buildFiles[p] != null && probeFiles[p] != null) {
+					tasks.addFirst(new Task(buildFiles[p].read(), probeFiles[p].read(), task.depth + 1));
+					spilledPartitions++;
+				} else if (buildFiles[p] != null) {
+					buildFiles[p].delete();
+				}
+			}
+		} catch (IOException e) {
+			throw new QueryEvaluationException(e);
+		}
+	}
+
+	private SpillFile partitionFile(SpillFile[] files, int partition) throws IOException {
+		SpillFile file = files[partition];
+		if (file == null) {
+			file = new SpillFile();
+			files[partition] = file;
+			spillFiles.add(file);
+		}
+		return file;
+	}
+
+	/**
+	 * Determines the partition of a key. Each level of partitioning uses different bits of the hash code.
+	 */
+	static int partition(BindingSetHashKey key, int depth) {
+		int h = Integer.rotateLeft(key.hashCode(), depth * 8) * 0x9E3779B9;
+		return (h >>> 16) % PARTITIONS;
+	}
+
+	private BindingSet merge(BindingSet left, BindingSet right) {
+		QueryBindingSet result = new QueryBindingSet(left);
+		for (Binding binding : right) {
+			Value value = result.getValue(binding.getName());
+			if (value == null) {
+				result.addBinding(binding);
+			} else if (!value.equals(binding.getValue())) {
+				// incompatible bindings that are not part of the join key
+				return null;
+			}
+		}
+		return result;
+	}
+
+	static long estimateSize(BindingSet bs) {
+		long size = 64;
+		for (Binding binding : bs) {
+			Value value = binding.getValue();
+			if (value instanceof HasValue) {
+				Object data = ((HasValue) value).getValue();
+				size += 56 + (data instanceof KvinTuple ? KvinTuples.estimateSize((KvinTuple) data) : 64);
+			} else {
+				size += 56 + 2L * value.stringValue().length();
+			}
+		}
+		return size;
+	}
+
+	private void writeBindingSet(DataOutputStream out, BindingSet bs) throws IOException {
+		writeVarint(out, bs.size());
+		for (Binding binding : bs) {
+			Integer nameId = nameIds.get(binding.getName());
+			if (nameId == null) {
+				nameId = names.size();
+				names.add(binding.getName());
+				nameIds.put(binding.getName(), nameId);
+			}
+			writeVarint(out, nameId);
+			writeValue(out, binding.getValue());
+		}
+	}
+
+	private void writeValue(DataOutputStream out, Value value) throws IOException {
+		if (value instanceof HasValue && isSupportedData(((HasValue) value).getValue()) &&
+				(value instanceof BNodeWithValue || value instanceof IRIWithValue)) {
+			out.writeByte(value instanceof BNodeWithValue ? BNODE_WITH_VALUE : IRI_WITH_VALUE);
+			writeString(out, value instanceof BNodeWithValue ? ((BNode) value).getID() : value.stringValue());
+			writeData(out, ((HasValue) value).getValue());
+		} else if (value instanceof HasValue || !(value.isIRI() || value.isBNode() || value.isLiteral())) {
+			out.writeByte(REFERENCE);
+			writeVarint(out, references.size());
+			references.add(value);
+		} else if (value.isIRI()) {
+			out.writeByte(IRI_VALUE);
+			writeString(out, value.stringValue());
+		} else if (value.isBNode()) {
+			out.writeByte(BNODE_VALUE);
+			writeString(out, ((BNode) value).getID());
+		} else {
+			Literal literal = (Literal) value;
+			Optional<String> language = literal.getLanguage();
+			if (language.isPresent()) {
+				out.writeByte(LANG_LITERAL_VALUE);
+				writeString(out, literal.getLabel());
+				writeString(out, language.get());
+			} else {
+				out.writeByte(LITERAL_VALUE);
+				writeString(out, literal.getLabel());
+				writeString(out, literal.getDatatype().stringValue());
+			}
+		}
+	}
+
+	/**
+	 * Determines if the given data of a value can be serialized by {@link #writeData(DataOutputStream, Object)}.
+	 */
+	static boolean isSupportedData(Object data) {
+		if (data == null || data instanceof URI || data instanceof BigInteger || data instanceof BigDecimal) {
+			return true;
+		}
+		if (data instanceof KvinTuple) {
+			return isSupportedData(((KvinTuple) data).value);
+		}
+		if (data instanceof Record) {
+			for (Record r : (Record) data) {
+				if (!isSupportedData(r.getValue())) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (data instanceof Object[] || data instanceof List<?>) {
+			for (Object element : data instanceof Object[] ? Arrays.asList((Object[]) data) : (List<?>) data) {
+				if (!isSupportedData(element)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		// types that are supported by Values.encode
+		return data instanceof String || data instanceof Double || data instanceof Float ||
+				data instanceof Long || data instanceof Integer || data instanceof Short || data instanceof Byte ||
+				data instanceof Boolean || data instanceof Character;
+	}
+
+	static void writeData(DataOutputStream out, Object data) throws IOException {
+		if (data == null) {
+			out.writeByte(NULL_DATA);
+		} else if (data instanceof KvinTuple) {
+			KvinTuple tuple = (KvinTuple) data;
+			out.writeByte(TUPLE_DATA);
+			writeData(out, tuple.item);
+			writeData(out, tuple.property);
+			writeData(out, tuple.context);
+			writeVarint(out, tuple.time);
+			writeVarint(out, tuple.seqNr);
+			writeData(out, tuple.value);
+		} else if (data instanceof URI) {
+			out.writeByte(URI_DATA);
+			writeString(out, data.toString());
+		} else if (data instanceof Record) {
+			out.writeByte(RECORD_DATA);
+			writeVarint(out, ((Record) data).size());
+			for (Record r : (Record) data) {
+				writeString(out, r.getProperty().toString());
+				writeData(out, r.getValue());
+			}
+		} else if (data instanceof Object[] || data instanceof List<?>) {
+			List<?> elements = data instanceof Object[] ? Arrays.asList((Object[]) data) : (List<?>) data;
+			out.writeByte(data instanceof Object[] ? ARRAY_DATA : LIST_DATA);
+			writeVarint(out, elements.size());
+			for (Object element : elements) {
+				writeData(out, element);
+			}
+		} else if (data instanceof BigInteger || data instanceof BigDecimal) {
+			// written as strings as the binary encoding of values is lossy for these types
+			out.writeByte(data instanceof BigInteger ? BIG_INTEGER_DATA : BIG_DECIMAL_DATA);
+			writeString(out, data.toString());
+		} else {
+			byte[] bytes = Values.encode(data);
+			out.writeByte(PRIMITIVE_DATA);
+			writeVarint(out, bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	static Object readData(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case NULL_DATA:
+				return null;
+			case TUPLE_DATA: {
+				URI item = (URI) readData(in);
+				URI property = (URI) readData(in);
+				URI context = (URI) readData(in);
+				long time = readVarint(in);
+				int seqNr = (int) readVarint(in);
+				return new KvinTuple(item, property, context, time, seqNr, readData(in));
+			}
+			case URI_DATA:
+				return URIs.createURI(readString(in));
+			case RECORD_DATA: {
+				int size = (int) readVarint(in);
+				URI[] properties = new URI[size];
+				Object[] values = new Object[size];
+				for (int i = 0; i < size; i++) {
+					properties[i] = URIs.createURI(readString(in));
+					values[i] = readData(in);
+				}
+				Record record = null;
+				for (int i = size - 1; i >= 0; i--) {
+					record = new Record(properties[i], values[i], record);
+				}
+				return record == null ? Record.NULL : record;
+			}
+			case ARRAY_DATA:
+			case LIST_DATA: {
+				Object[] elements = new Object[(int) readVarint(in)];
+				for (int i = 0; i < elements.length; i++) {
+					elements[i] = readData(in);
+				}
+				return type == ARRAY_DATA ? elements : new ArrayList<>(Arrays.asList(elements));
+			}
+			case BIG_INTEGER_DATA:
+				return new BigInteger(readString(in));
+			case BIG_DECIMAL_DATA:
+				return new BigDecimal(readString(in));
+			case PRIMITIVE_DATA: {
+				byte[] bytes = new byte[(int) readVarint(in)];
+				in.readFully(bytes);
+				return Values.decode(bytes);
+			}
+			default:
+				throw new IOException("Invalid data type: " + type);
+		}
+	}
+
+	private BindingSet readBindingSet(DataInputStream in) throws IOException {
+		int size = (int) readVarint(in);
+		QueryBindingSet bs = new QueryBindingSet(size);
+		for (int i = 0; i < size; i++) {
+			String name = names.get((int) readVarint(in));
+			bs.addBinding(name, readValue(in));
+		}
+		return bs;
+	}
+
+	private Value readValue(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		switch (type) {
+			case IRI_VALUE:
+				return vf.createIRI(readString(in));
+			case BNODE_VALUE:
+				return vf.createBNode(readString(in));
+			case LANG_LITERAL_VALUE: {
+				String label = readString(in);
+				return vf.createLiteral(label, readString(in));
+			}
+			case LITERAL_VALUE: {
+				String label = readString(in);
+				IRI datatype = vf.createIRI(readString(in));
+				return vf.createLiteral(label, datatype);
+			}
+			case BNODE_WITH_VALUE: {
+				String id = readString(in);
+				return BNodeWithValue.createWithId(id, readData(in));
+			}
+			case IRI_WITH_VALUE: {
+				String iri = readString(in);
+				return IRIWithValue.create(iri, readData(in));
+			}
+			case REFERENCE:
+				return references.get((int) readVarint(in));
+			default:
+				throw new IOException("Invalid value type: " + type);
+		}
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeVarint(out, bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[(int) readVarint(in)];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	static void writeVarint(DataOutputStream out, long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = in.readByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	@Override
+	protected void handleClose() throws QueryEvaluationException {
+		try {
+			super.handleClose();
+		} finally {
+			try {
+				if (probe != null) {
+					probe.close();
+				}
+				for (Task task : tasks) {
+					try {
+						task.build.close();
+					} finally {
+						task.probe.close();
+					}
+				}
+			} finally {
+				probe = null;
+				hashTable = null;
+				tasks.clear();
+				for (SpillFile file : spillFiles) {
+					file.delete();
+				}
+				spillFiles.clear();
+			}
+		}
+	}
+
+	static class Task {
+		final CloseableIteration<BindingSet, QueryEvaluationException> build;
+		final CloseableIteration<BindingSet, QueryEvaluationException> probe;
+		final int depth;
+
+		Task(CloseableIteration<BindingSet, QueryEvaluationException> build,
+		     CloseableIteration<BindingSet, QueryEvaluationException> probe, int depth) {
+			this.build = build;
+			this.probe = probe;
+			this.depth = depth;
+		}
+	}
+
+	/**
+	 * Temporary file with encoded binding sets that is deleted after it has been read.
+	 */
+	class SpillFile {
+		final Path path;
+		DataOutputStream out;
+		long size;
+
+		SpillFile() throws IOException {
+			path = Files.createTempFile("kvin-join-", ".bin");
+			out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+		}
+
+		void write(BindingSet bs) throws IOException {
+			writeBindingSet(out, bs);
+			size++;
+		}
+
+		/**
+		 * Finishes writing and returns an iteration over the contents that is opened lazily.
+		 */
+		CloseableIteration<BindingSet, QueryEvaluationException> read() throws IOException {
+			out.close();
+			out = null;
+			return new LookAheadIteration<>() {
+				DataInputStream in;
+				long remaining = size;
+
+				@Override
+				protected BindingSet getNextElement() throws QueryEvaluationException {
+					if (remaining == 0) {
+						return null;
+					}
+					try {
+						if (in == null) {
+							in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+						}
+						remaining--;
+						return readBindingSet(in);
+					} catch (IOException e) {
+						throw new QueryEvaluationException(e);
+					}
+				}
+
+				@Override
+				protected void handleClose() throws QueryEvaluationException {
+					try {
+						super.handleClose();
+						if (in != null) {
+							in.close();
+						}
+					} catch (IOException e) {
+						// ignore
+					} finally {
+						delete();
+					}
+				}
+			};
+		}
+
+		void delete() {
+			try {
+				if (out != null) {
+					out.close();
+					out = null;
+				}
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+}
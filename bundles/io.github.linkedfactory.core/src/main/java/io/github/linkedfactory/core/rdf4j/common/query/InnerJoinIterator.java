@@ -1,5 +1,6 @@
 package io.github.linkedfactory.core.rdf4j.common.query;
 
+import io.github.linkedfactory.core.kvin.util.AsyncBuffer;
 import org.eclipse.rdf4j.common.iteration.CloseableIteration;
 import org.eclipse.rdf4j.common.iteration.EmptyIteration;
 import org.eclipse.rdf4j.common.iteration.LookAheadIteration;
@@ -7,17 +8,13 @@ import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.QueryEvaluationException;
 import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategy;
 import org.eclipse.rdf4j.query.algebra.evaluation.QueryEvaluationStep;
-import org.eclipse.rdf4j.query.impl.EmptyBindingSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
 
 public class InnerJoinIterator extends LookAheadIteration<BindingSet, QueryEvaluationException> {
@@ -29,13 +26,12 @@ public class InnerJoinIterator extends LookAheadIteration<BindingSet, QueryEvalu
 
 	public static final ThreadLocal<Integer> asyncDepth = new ThreadLocal<>();
 	public static final int MAX_ASYNC_DEPTH = 3;
-	private static final BindingSet NULL_BINDINGS = new EmptyBindingSet();
 	public static final int BATCH_SIZE = 200;
 	private final EvaluationStrategy strategy;
 	private final Supplier<ExecutorService> executorService;
 	private final CloseableIteration<BindingSet, QueryEvaluationException> leftIter;
 	private final QueryEvaluationStep preparedJoinArg;
-	private final List<BlockingQueue<BindingSet>> joined;
+	private final List<AsyncJoin> joined;
 	private volatile CloseableIteration<BindingSet, QueryEvaluationException> rightIter;
 
 	/*--------------*
@@ -111,19 +107,27 @@ public class InnerJoinIterator extends LookAheadIteration<BindingSet, QueryEvalu
 
 	protected BindingSet getNextElementAsync() throws QueryEvaluationException {
 		try {
-			while (!joined.isEmpty() || leftIter.hasNext()) {
+			while (rightIter.hasNext() || !joined.isEmpty() || leftIter.hasNext()) {
+				if (rightIter.hasNext()) {
+					// results of a join that has been evaluated synchronously
+					return rightIter.next();
+				}
 				enqueueNext();
 				if (!joined.isEmpty()) {
-					BlockingQueue<BindingSet> nextQueue = joined.get(0);
-					BindingSet next = nextQueue.take();
-					if (next == NULL_BINDINGS) {
+					AsyncJoin nextJoin = joined.get(0);
+					BindingSet next = nextJoin.results.next();
+					if (nextJoin.results.isClaimed()) {
 						joined.remove(0);
+						rightIter.close();
+						rightIter = evaluateJoin(nextJoin.lefts);
 						continue;
 					}
-					enqueueNext();
-					if (next != NULL_BINDINGS) {
-						return next;
+					if (next == null) {
+						joined.remove(0);
+						continue;
 					}
+					enqueueNext();
+					return next;
 				}
 			}
 		} catch (NoSuchElementException ignore) {
@@ -138,8 +142,6 @@ public class InnerJoinIterator extends LookAheadIteration<BindingSet, QueryEvalu
 
 	private void enqueueNext() {
 		while (joined.size() < 2 && leftIter.hasNext()) {
-			BlockingQueue<BindingSet> queue = new ArrayBlockingQueue<>(50);
-			joined.add(queue);
 			boolean useBatch = preparedJoinArg instanceof BatchQueryEvaluationStep;
 			List<BindingSet> nextLefts = useBatch ? new ArrayList<>(BATCH_SIZE) : List.of(leftIter.next());
 			if (useBatch) {
@@ -147,51 +149,64 @@ public class InnerJoinIterator extends LookAheadIteration<BindingSet, QueryEvalu
 					nextLefts.add(leftIter.next());
 				}
 			}
+			AsyncJoin join = new AsyncJoin(nextLefts, new AsyncBuffer<>(50, this::isClosed));
+			joined.add(join);
 			var currentAsync = asyncDepth.get();
-			executorService.get().submit(() -> {
+			join.results.submit(executorService.get(), buffer -> {
 				asyncDepth.set(currentAsync != null ? currentAsync + 1 : 1);
 				CloseableIteration<BindingSet, QueryEvaluationException> rightIt = null;
 				try {
-					rightIt = useBatch && nextLefts.size() > 1 ?
-							((BatchQueryEvaluationStep) preparedJoinArg).evaluate(nextLefts) :
-							preparedJoinArg.evaluate(nextLefts.get(0));
+					rightIt = evaluateJoin(nextLefts);
 
 					while (rightIt.hasNext()) {
-						BindingSet bindings = rightIt.next();
-						while (!queue.offer(bindings, 100, TimeUnit.MILLISECONDS)) {
-							if (isClosed()) {
-								return;
-							}
+						if (!buffer.put(rightIt.next())) {
+							return;
 						}
 					}
-					rightIt.close();
+				} catch (InterruptedException e) {
+					throw e;
 				} catch (Exception e) {
 					log.error("Exception in async iterator", e);
 				} finally {
 					if (rightIt != null) {
 						rightIt.close();
 					}
-					try {
-						while (!queue.offer(NULL_BINDINGS, 100, TimeUnit.MILLISECONDS)) {
-							if (isClosed()) {
-								return;
-							}
-						}
-					} catch (InterruptedException e) {
-						// ignore
-					} finally {
-						asyncDepth.remove();
-					}
+					asyncDepth.remove();
 				}
 			});
 		}
 	}
 
+	private CloseableIteration<BindingSet, QueryEvaluationException> evaluateJoin(List<BindingSet> lefts) {
+		return preparedJoinArg instanceof BatchQueryEvaluationStep && lefts.size() > 1 ?
+				((BatchQueryEvaluationStep) preparedJoinArg).evaluate(lefts) :
+				preparedJoinArg.evaluate(lefts.get(0));
+	}
+
 	@Override
 	protected void handleClose() throws QueryEvaluationException {
 		super.handleClose();
 
+		if (joined != null) {
+			// skip the tasks that have not been started yet
+			for (AsyncJoin join : joined) {
+				join.results.cancel();
+			}
+		}
 		leftIter.close();
 		rightIter.close();
 	}
+
+	/**
+	 * The results of an asynchronously evaluated join for a list of left bindings.
+	 */
+	static class AsyncJoin {
+		final List<BindingSet> lefts;
+		final AsyncBuffer<BindingSet> results;
+
+		AsyncJoin(List<BindingSet> lefts, AsyncBuffer<BindingSet> results) {
+			this.lefts = lefts;
+			this.results = results;
+		}
+	}
 }
\ No newline at end of file
@@ -27,6 +27,7 @@ import org.eclipse.rdf4j.query.algebra.TupleExpr;
 import org.eclipse.rdf4j.query.algebra.Var;
 import org.eclipse.rdf4j.query.algebra.ZeroLengthPath;
 import org.eclipse.rdf4j.query.algebra.evaluation.QueryOptimizer;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.EvaluationStatistics;
 import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
 import org.eclipse.rdf4j.query.algebra.helpers.TupleExprs;
 import org.eclipse.rdf4j.query.algebra.helpers.collectors.StatementPatternCollector;
@@ -39,6 +40,22 @@ import org.eclipse.rdf4j.query.algebra.helpers.collectors.StatementPatternCollec
  */
 public class QueryJoinOptimizer implements QueryOptimizer {
 
+	protected final EvaluationStatistics statistics;
+
+	public QueryJoinOptimizer() {
+		this(null);
+	}
+
+	/**
+	 * Creates an optimizer that orders fetches by their estimated cardinality.
+	 *
+	 * @param statistics The statistics used to estimate the cardinality of fetches or <code>null</code> to keep the
+	 *                   fetches in their original order.
+	 */
+	public QueryJoinOptimizer(EvaluationStatistics statistics) {
+		this.statistics = statistics;
+	}
+
 	/**
 	 * Applies generally applicable optimizations: path expressions are sorted from more to less specific.
 	 *
@@ -124,9 +141,11 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 				joinArgs.removeAll(fetches);
 				TupleExpr fetchJoins = null;
 				if (fetches.size() > 0) {
-					fetchJoins = fetches.get(0);
-					for (int i = 1; i < fetches.size(); i++) {
-						fetchJoins = new Join(fetches.get(i), fetchJoins);
+					List<TupleExpr> orderedFetches = reorderFetches(fetches);
+					int i = orderedFetches.size() - 1;
+					fetchJoins = orderedFetches.get(i);
+					for (i--; i >= 0; i--) {
+						fetchJoins = new Join(orderedFetches.get(i), fetchJoins);
 					}
 				}
 
@@ -253,6 +272,65 @@ public class QueryJoinOptimizer implements QueryOptimizer {
 			return fetches;
 		}
 
+		/**
+		 * Determines the evaluation order of fetches. Without statistics the fetches are evaluated in reverse order of
+		 * their occurrence. Otherwise, the fetch with the lowest estimated cardinality is evaluated first among those
+		 * whose required bindings are not provided by one of the remaining fetches.
+		 *
+		 * @param fetches the original ordering of fetches
+		 * @return the fetches in evaluation order
+		 */
+		protected List<TupleExpr> reorderFetches(List<TupleExpr> fetches) {
+			List<TupleExpr> remaining = new ArrayList<>(fetches.size());
+			for (int i = fetches.size() - 1; i >= 0; i--) {
+				remaining.add(fetches.get(i));
+			}
+			if (statistics == null || remaining.size() == 1) {
+				return remaining;
+			}
+
+			Map<TupleExpr, Double> cardinalityMap = new HashMap<>();
+			for (TupleExpr fetch : remaining) {
+				double cardinality = statistics.getCardinality(fetch);
+				fetch.setResultSizeEstimate(cardinality);
+				cardinalityMap.put(fetch, cardinality);
+			}
+
+			List<TupleExpr> result = new ArrayList<>(remaining.size());
+			while (!remaining.isEmpty()) {
+				TupleExpr selected = null;
+				for (TupleExpr candidate : remaining) {
+					if (dependsOnOthers((Fetch) candidate, remaining)) {
+						continue;
+					}
+					if (selected == null || cardinalityMap.get(candidate) < cardinalityMap.get(selected)) {
+						selected = candidate;
+					}
+				}
+				if (selected == null) {
+					// cyclic dependencies, keep the original order
+					selected = remaining.get(0);
+				}
+				remaining.remove(selected);
+				result.add(selected);
+			}
+			return result;
+		}
+
+		private boolean dependsOnOthers(Fetch fetch, List<TupleExpr> others) {
+			for (TupleExpr other : others) {
+				if (other != fetch) {
+					Set<String> otherBindings = other.getBindingNames();
+					for (String required : fetch.getRequiredBindings()) {
+						if (!boundVars.contains(required) && otherBindings.contains(required)) {
+							return true;
+						}
+					}
+				}
+			}
+			return false;
+		}
+
 		protected List<TupleExpr> getExtensions(List<TupleExpr> expressions) {
 			List<TupleExpr> extensions = new ArrayList<>();
 			for (TupleExpr expr : expressions) {
@@ -0,0 +1,153 @@
+package io.github.linkedfactory.core.rdf4j.common.query;
+
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.LookAheadIteration;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Evaluates an expression for batches of incoming bindings while keeping only a bounded number of batches in flight.
+ * <p>
+ * The incoming bindings are consumed lazily and the results are returned in the order of the batches. Each batch is
+ * evaluated asynchronously and buffers a bounded number of results, further batches are only dispatched if the
+ * results of earlier batches have been consumed. Duplicate incoming bindings within a batch are evaluated only once
+ * and their results are repeated for each duplicate.
+ */
+public class WindowedDispatchIteration extends LookAheadIteration<BindingSet, QueryEvaluationException> {
+	public static final int DEFAULT_WINDOW = 8;
+
+	final CloseableIteration<BindingSet, QueryEvaluationException> bindings;
+	final int batchSize;
+	final int window;
+	final Function<List<BindingSet>, CloseableIteration<BindingSet, QueryEvaluationException>> evaluator;
+	final Supplier<ExecutorService> executorService;
+	final Deque<CloseableIteration<BindingSet, QueryEvaluationException>> inFlight = new ArrayDeque<>();
+
+	/**
+	 * Creates an iteration over the results for all incoming bindings.
+	 *
+	 * @param bindings        The incoming bindings.
+	 * @param batchSize       The number of bindings that are evaluated together.
+	 * @param window          The maximum number of batches that are evaluated concurrently.
+	 * @param evaluator       Function that evaluates a batch of bindings.
+	 * @param executorService Executor for the asynchronous evaluation of batches.
+	 */
+	public WindowedDispatchIteration(CloseableIteration<BindingSet, QueryEvaluationException> bindings, int batchSize,
+	                                 int window,
+	                                 Function<List<BindingSet>, CloseableIteration<BindingSet, QueryEvaluationException>> evaluator,
+	                                 Supplier<ExecutorService> executorService) {
+		this.bindings = bindings;
+		this.batchSize = batchSize;
+		this.window = window;
+		this.evaluator = evaluator;
+		this.executorService = executorService;
+	}
+
+	@Override
+	protected BindingSet getNextElement() throws QueryEvaluationException {
+		while (true) {
+			dispatch();
+			CloseableIteration<BindingSet, QueryEvaluationException> head = inFlight.peek();
+			if (head == null) {
+				return null;
+			}
+			if (head.hasNext()) {
+				return head.next();
+			}
+			inFlight.poll().close();
+		}
+	}
+
+	private void dispatch() {
+		while (inFlight.size() < window && bindings.hasNext()) {
+			List<BindingSet> batch = new ArrayList<>(batchSize);
+			while (bindings.hasNext() && batch.size() < batchSize) {
+				batch.add(bindings.next());
+			}
+			if (inFlight.isEmpty() && !bindings.hasNext()) {
+				// evaluate the only remaining batch in the current thread
+				inFlight.add(evaluate(batch));
+			} else {
+				inFlight.add(new AsyncIterator<>(() -> evaluate(batch), executorService));
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the distinct bindings of a batch and repeats the results of duplicate bindings.
+	 * <p>
+	 * The results extend their incoming bindings and are hence assigned to them by their values of the incoming
+	 * variables. Therefore duplicates are only merged if all bindings of the batch have the same variables.
+	 */
+	private CloseableIteration<BindingSet, QueryEvaluationException> evaluate(List<BindingSet> batch) {
+		Map<BindingSet, Integer> counts = new LinkedHashMap<>();
+		Set<String> names = batch.get(0).getBindingNames();
+		for (BindingSet bs : batch) {
+			if (!names.equals(bs.getBindingNames())) {
+				return evaluator.apply(batch);
+			}
+			counts.merge(bs, 1, Integer::sum);
+		}
+		if (counts.size() == batch.size()) {
+			return evaluator.apply(batch);
+		}
+		CloseableIteration<BindingSet, QueryEvaluationException> results =
+				evaluator.apply(new ArrayList<>(counts.keySet()));
+		return new LookAheadIteration<>() {
+			BindingSet current;
+			int remaining;
+
+			@Override
+			protected BindingSet getNextElement() throws QueryEvaluationException {
+				if (remaining == 0) {
+					if (!results.hasNext()) {
+						return null;
+					}
+					current = results.next();
+					QueryBindingSet incoming = new QueryBindingSet(names.size());
+					for (String name : names) {
+						Value value = current.getValue(name);
+						if (value != null) {
+							incoming.addBinding(name, value);
+						}
+					}
+					remaining = counts.getOrDefault(incoming, 1);
+				}
+				remaining--;
+				return current;
+			}
+
+			@Override
+			protected void handleClose() throws QueryEvaluationException {
+				try {
+					super.handleClose();
+				} finally {
+					results.close();
+				}
+			}
+		};
+	}
+
+	@Override
+	protected void handleClose() throws QueryEvaluationException {
+		try {
+			super.handleClose();
+		} finally {
+			try {
+				for (CloseableIteration<BindingSet, QueryEvaluationException> it : inFlight) {
+					it.close();
+				}
+				inFlight.clear();
+			} finally {
+				bindings.close();
+			}
+		}
+	}
+}
@@ -6,14 +6,19 @@ import io.github.linkedfactory.core.kvin.Record;
 import io.github.linkedfactory.core.kvin.util.JsonFormatWriter;
 import io.github.linkedfactory.core.rdf4j.common.Conversions;
 import io.github.linkedfactory.core.rdf4j.common.HasValue;
+import io.github.linkedfactory.core.rdf4j.common.QueryExecutorService;
 import io.github.linkedfactory.core.rdf4j.common.query.CompositeBindingSet;
 import io.github.linkedfactory.core.rdf4j.common.query.InnerJoinIteratorEvaluationStep;
 import io.github.linkedfactory.core.rdf4j.common.query.BatchQueryEvaluationStep;
+import io.github.linkedfactory.core.rdf4j.common.query.GraceHashJoinIteration;
+import io.github.linkedfactory.core.rdf4j.common.query.WindowedDispatchIteration;
 import io.github.linkedfactory.core.rdf4j.kvin.query.*;
 import net.enilink.komma.core.URI;
 import net.enilink.vocab.rdf.RDF;
 import org.eclipse.rdf4j.common.iteration.AbstractCloseableIteration;
 import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.common.iteration.ConvertingIteration;
 import org.eclipse.rdf4j.common.iteration.EmptyIteration;
 import org.eclipse.rdf4j.common.iteration.SingletonIteration;
 import org.eclipse.rdf4j.model.IRI;
@@ -26,11 +31,14 @@ import org.eclipse.rdf4j.query.QueryEvaluationException;
 import org.eclipse.rdf4j.query.algebra.*;
 import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
 import org.eclipse.rdf4j.query.algebra.evaluation.QueryEvaluationStep;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryValueEvaluationStep;
 import org.eclipse.rdf4j.query.algebra.evaluation.federation.FederatedServiceResolver;
 import org.eclipse.rdf4j.query.algebra.evaluation.impl.QueryEvaluationContext;
 import org.eclipse.rdf4j.query.algebra.evaluation.impl.QueryEvaluationContext.Minimal;
 import org.eclipse.rdf4j.query.algebra.evaluation.impl.StrictEvaluationStrategy;
 import org.eclipse.rdf4j.query.algebra.evaluation.iterator.HashJoinIteration;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+import org.eclipse.rdf4j.query.impl.EmptyBindingSet;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -38,6 +46,7 @@ import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -67,10 +76,28 @@ public class KvinEvaluationStrategy extends StrictEvaluationStrategy {
         }
     }
 
+    /**
+     * Factor by which the estimated size of the right join argument must exceed the size of the left argument to
+     * prefer point lookups per left binding over scanning both arguments.
+     */
+    static final double POINT_LOOKUP_FACTOR = 10;
+
+    /**
+     * Number of time segments of merge joins that are evaluated in parallel.
+     */
+    static final int MERGE_JOIN_SEGMENTS = QueryExecutorService.DEFAULT_PARALLELISM;
+
     final Kvin kvin;
     final ParameterScanner scanner;
     final ValueFactory vf;
     final Supplier<ExecutorService> executorService;
+    // fetch results that are shared by all evaluation steps of a query
+    final KvinFetchMemo fetchMemo;
+    // request keys of the fetch operators that occur more than once within the plan
+    Set<List<Object>> repeatedFetches;
+    QueryProfile profile;
+    // values of the parameters of a shared plan
+    BindingSet parameters = EmptyBindingSet.getInstance();
 
     public KvinEvaluationStrategy(Kvin kvin, Supplier<ExecutorService> executorService, ParameterScanner scanner, ValueFactory vf, Dataset dataset,
                                   FederatedServiceResolver serviceResolver, Map<Value, Object> valueToData) {
@@ -79,6 +106,7 @@ public class KvinEvaluationStrategy extends StrictEvaluationStrategy {
         this.scanner = scanner;
         this.vf = vf;
         this.executorService = executorService;
+        this.fetchMemo = new KvinFetchMemo(kvin);
     }
 
     @Override
@@ -228,7 +256,7 @@ public class KvinEvaluationStrategy extends StrictEvaluationStrategy {
 
             if (subjectValue != null && subjectValue.isIRI()) {
                 Parameters params = scanner.getParameters(stmt.getObjectVar());
-                return new KvinEvaluationUtil(kvin, executorService).evaluate(vf, bs, params == null ? new Parameters() : params, stmt, dataset);
+                return new KvinEvaluationUtil(kvin, executorService, fetchMemo, profile).evaluate(vf, bs, params == null ? new Parameters() : params, stmt, dataset);
             }
         }
         return new EmptyIteration<>();
@@ -283,30 +311,51 @@ public class KvinEvaluationStrategy extends StrictEvaluationStrategy {
             }
 
             if (!compareParams.isEmpty()) {
+                LongArrayComparator cmp = new LongArrayComparator(compareSigns);
+                Function<BindingSet, long[]> value = bs -> {
+                    long[] values = new long[compareParams.size()];
+                    int i = 0;
+                    for (String name : compareParams) {
+                        values[i++] = ((Literal) bs.getValue(name)).longValue();
+                    }
+                    return values;
+                };
+                // join disjoint time segments in parallel if time is the primary sort key
+                SegmentedMergeJoin segmented = params.time != null && compareParams.get(0).equals(params.time.getName()) ?
+                        SegmentedMergeJoin.create(join, params.time.getName(), parameters) : null;
+                if (segmented != null) {
+                    QueryEvaluationStep leftSegment = precompile(segmented.getLeftArg(), context);
+                    QueryEvaluationStep rightSegment = precompile(segmented.getRightArg(), context);
+                    return bindingSet -> new WindowedDispatchIteration(new CloseableIteratorIteration<>(
+                            segmented.createSegments(bindingSet, MERGE_JOIN_SEGMENTS).iterator()), 1, MERGE_JOIN_SEGMENTS,
+                            segment -> new ConvertingIteration<>(InnerMergeJoinIterator.getInstance(leftSegment,
+                                    rightSegment, segment.get(0), cmp, value, context, executorService)) {
+                                @Override
+                                protected BindingSet convert(BindingSet bs) {
+                                    return SegmentedMergeJoin.removeSegmentBindings(bs);
+                                }
+                            }, executorService);
+                }
                 return bindingSet -> InnerMergeJoinIterator.getInstance(leftPrepared, rightPrepared, bindingSet,
-                        new LongArrayComparator(compareSigns),
-                        bs -> {
-                            long[] values = new long[compareParams.size()];
-                            int i = 0;
-                            for (String name : compareParams) {
-                                values[i++] = ((Literal) bs.getValue(name)).longValue();
-                            }
-                            return values;
-                        }, context, executorService);
+                        cmp, value, context, executorService);
             } else {
+                // the hash table is spilled to disk if it gets too large
                 return new BatchQueryEvaluationStep() {
                     @Override
                     public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(BindingSet bindingSet) {
-                        return new HashJoinIteration(leftPrepared, rightPrepared, bindingSet, false, joinAttributes, context);
+                        return new GraceHashJoinIteration(leftPrepared.evaluate(bindingSet),
+                                rightPrepared.evaluate(bindingSet), joinAttributes);
                     }
 
                     @Override
                     public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(List<BindingSet> bindingSets) {
-                        return new HashJoinIteration(
+                        // also join on the incoming bindings to not mix results of different binding sets
+                        Set<String> batchJoinAttributes = new LinkedHashSet<>(joinAttributesSet);
+                        bindingSets.forEach(bs -> batchJoinAttributes.addAll(bs.getBindingNames()));
+                        return new GraceHashJoinIteration(
                                 BatchQueryEvaluationStep.evaluate(leftPrepared, bindingSets),
-                                join.getLeftArg().getBindingNames(),
                                 BatchQueryEvaluationStep.evaluate(rightPrepared, bindingSets),
-                                join.getRightArg().getBindingNames(), false);
+                                batchJoinAttributes.toArray(new String[0]));
                     }
                 };
             }
@@ -349,22 +398,60 @@ public class KvinEvaluationStrategy extends StrictEvaluationStrategy {
                 // in case of projections with aggregates we just use the projected binding names
                 Set<String> leftAssured = leftArg instanceof Projection ? leftArg.getBindingNames() :
                         leftArg.getAssuredBindingNames();
-                return !rightFetch.getRequiredBindings().stream().anyMatch(required -> leftAssured.contains(required));
+                if (rightFetch.getRequiredBindings().stream().anyMatch(required -> leftAssured.contains(required))) {
+                    return false;
+                }
+                // use point lookups for the few values of the left argument instead of scanning a large right argument
+                return !(leftArg instanceof KvinFetch && preferPointLookups((KvinFetch) leftArg, rightFetch));
             }
         }
         return false;
     }
 
+    boolean preferPointLookups(KvinFetch leftFetch, KvinFetch rightFetch) {
+        Parameters rightParams = rightFetch.getParams();
+        if (rightParams.time == null || rightParams.aggregationFunction != null ||
+                !leftFetch.getAssuredBindingNames().contains(rightParams.time.getName())) {
+            return false;
+        }
+        double leftSize = leftFetch.getResultSizeEstimate();
+        double rightSize = rightFetch.getResultSizeEstimate();
+        return leftSize >= 0 && rightSize >= 0 && leftSize * POINT_LOOKUP_FACTOR < rightSize;
+    }
+
     protected QueryEvaluationStep prepare(StatementPattern node, QueryEvaluationContext context) throws QueryEvaluationException {
         return bindingSet -> evaluate(node, bindingSet);
     }
 
+    @Override
+    protected QueryValueEvaluationStep prepare(Var var, QueryEvaluationContext context) throws QueryEvaluationException {
+        // parameters are also resolved within expressions that only see the variables of their scope (e.g. filters)
+        Value parameter = var.hasValue() ? null : parameters.getValue(var.getName());
+        if (parameter != null) {
+            return new QueryValueEvaluationStep.ConstantQueryValueEvaluationStep(parameter);
+        }
+        return super.prepare(var, context);
+    }
+
+    @Override
+    public Value evaluate(Var var, BindingSet bindings) throws QueryEvaluationException {
+        Value parameter = var.hasValue() ? null : parameters.getValue(var.getName());
+        return parameter != null ? parameter : super.evaluate(var, bindings);
+    }
+
     @Override
     public QueryEvaluationStep precompile(TupleExpr expr, QueryEvaluationContext context) {
+        if (repeatedFetches == null) {
+            // the first precompiled expression is the root of the plan
+            repeatedFetches = findRepeatedFetches(expr);
+        }
+        QueryEvaluationStep step;
         if (expr instanceof KvinFetch) {
-            return new KvinFetchEvaluationStep(KvinEvaluationStrategy.this, (KvinFetch) expr, context);
+            step = new KvinFetchEvaluationStep(KvinEvaluationStrategy.this, (KvinFetch) expr, context);
+        } else {
+            step = super.precompile(expr, context);
         }
-        return super.precompile(expr, context);
+        return profile != null ? profile.instrument(expr, step) : step;
     }
 
     public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(TupleExpr expr, BindingSet bindings)
@@ -392,6 +479,54 @@ public class KvinEvaluationStrategy extends StrictEvaluationStrategy {
         return executorService;
     }
 
+    /**
+     * Returns the memo table for the given fetch operator or <code>null</code> if its requests occur only once within
+     * the plan and memoizing their results would only copy them.
+     */
+    public KvinFetchMemo getFetchMemo(KvinFetch fetch) {
+        return repeatedFetches != null && repeatedFetches.contains(fetch.getRequestKey()) ? fetchMemo : null;
+    }
+
+    static Set<List<Object>> findRepeatedFetches(TupleExpr expr) {
+        Set<List<Object>> seen = new HashSet<>();
+        Set<List<Object>> repeated = new HashSet<>();
+        expr.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meetOther(QueryModelNode node) {
+                if (node instanceof KvinFetch) {
+                    List<Object> key = ((KvinFetch) node).getRequestKey();
+                    if (!seen.add(key)) {
+                        repeated.add(key);
+                    }
+                }
+                super.meetOther(node);
+            }
+        });
+        return repeated;
+    }
+
+    public QueryProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Sets a profile that records the statistics of all operators that are precompiled afterwards.
+     */
+    public void setProfile(QueryProfile profile) {
+        this.profile = profile;
+    }
+
+    public BindingSet getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Sets the values of the parameter variables that are bound by each evaluation of the plan.
+     */
+    public void setParameters(BindingSet parameters) {
+        this.parameters = parameters;
+    }
+
     static class LongArrayComparator implements Comparator<long[]> {
         final int[] signs;
 
@@ -5,6 +5,7 @@ import io.github.linkedfactory.core.kvin.KvinTuple;
 import io.github.linkedfactory.core.rdf4j.common.BNodeWithValue;
 import io.github.linkedfactory.core.rdf4j.common.query.AsyncIterator;
 import io.github.linkedfactory.core.rdf4j.common.query.CompositeBindingSet;
+import io.github.linkedfactory.core.rdf4j.kvin.query.KvinFetch;
 import io.github.linkedfactory.core.rdf4j.kvin.query.Parameters;
 import net.enilink.commons.iterator.IExtendedIterator;
 import net.enilink.komma.core.URI;
@@ -20,6 +21,7 @@ import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.Dataset;
 import org.eclipse.rdf4j.query.MutableBindingSet;
 import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.QueryModelNode;
 import org.eclipse.rdf4j.query.algebra.StatementPattern;
 import org.eclipse.rdf4j.query.algebra.Var;
 import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
@@ -37,10 +39,42 @@ public class KvinEvaluationUtil {
 
 	private final Kvin kvin;
 	private final Supplier<ExecutorService> executorService;
+	private final KvinFetchMemo fetchMemo;
+	private final QueryProfile profile;
 
 	public KvinEvaluationUtil(Kvin kvin, Supplier<ExecutorService> executorService) {
+		this(kvin, executorService, null, null);
+	}
+
+	/**
+	 * Creates an evaluation util that serves repeated fetch requests from the given memo table and records them in
+	 * the given profile.
+	 *
+	 * @param fetchMemo The memo table or <code>null</code>.
+	 * @param profile   The query profile or <code>null</code>.
+	 */
+	public KvinEvaluationUtil(Kvin kvin, Supplier<ExecutorService> executorService, KvinFetchMemo fetchMemo,
+	                          QueryProfile profile) {
 		this.kvin = kvin;
 		this.executorService = executorService;
+		this.fetchMemo = fetchMemo;
+		this.profile = profile;
+	}
+
+	private IExtendedIterator<KvinTuple> fetch(StatementPattern stmt, List<URI> items, List<URI> properties,
+	                                           URI context, long end, long begin, long limit, long interval, String op) {
+		IExtendedIterator<KvinTuple> it;
+		if (fetchMemo != null) {
+			it = fetchMemo.fetch(items, properties, context, end, begin, limit, interval, op);
+		} else {
+			it = kvin.fetch(items, properties, context, end, begin, limit, interval, op);
+		}
+		if (profile != null) {
+			// attribute the fetch to the fetch operator of the statement
+			QueryModelNode node = stmt.getParentNode() instanceof KvinFetch ? stmt.getParentNode() : stmt;
+			it = profile.recordFetch(node, it);
+		}
+		return it;
 	}
 
 	public static net.enilink.komma.core.URI toKommaUri(Value value) {
@@ -149,11 +183,11 @@ public class KvinEvaluationUtil {
 
 					// create iterator with values for property
 					if (finalContext[0] != null) {
-						it = kvin.fetch(items, properties, finalContext[0], endFinal, beginFinal, limitFinal, interval, aggregationFunc);
+						it = fetch(stmt, items, properties, finalContext[0], endFinal, beginFinal, limitFinal, interval, aggregationFunc);
 					} else {
 						for (IRI defaultGraph : dataset.getDefaultGraphs()) {
 							URI contextUri = toKommaUri(defaultGraph);
-							it = kvin.fetch(items, properties, contextUri, endFinal, beginFinal, limitFinal, interval, aggregationFunc);
+							it = fetch(stmt, items, properties, contextUri, endFinal, beginFinal, limitFinal, interval, aggregationFunc);
 							if (it.hasNext()) {
 								break;
 							}
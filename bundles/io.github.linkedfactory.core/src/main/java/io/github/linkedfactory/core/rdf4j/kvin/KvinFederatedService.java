@@ -1,38 +1,60 @@
 package io.github.linkedfactory.core.rdf4j.kvin;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import io.github.linkedfactory.core.kvin.Kvin;
 import io.github.linkedfactory.core.rdf4j.ContextProvider;
+import io.github.linkedfactory.core.rdf4j.common.QueryExecutorService;
 import io.github.linkedfactory.core.rdf4j.common.query.*;
+import io.github.linkedfactory.core.rdf4j.kvin.query.KvinEvaluationStatistics;
+import io.github.linkedfactory.core.rdf4j.kvin.query.KvinFetch;
 import io.github.linkedfactory.core.rdf4j.kvin.query.KvinFetchOptimizer;
 import io.github.linkedfactory.core.rdf4j.kvin.query.ParameterScanner;
+import io.github.linkedfactory.core.rdf4j.kvin.query.Parameters;
+import net.enilink.komma.core.URI;
 import org.eclipse.rdf4j.common.exception.RDF4JException;
 import org.eclipse.rdf4j.common.iteration.*;
+import org.eclipse.rdf4j.model.Literal;
 import org.eclipse.rdf4j.model.Value;
 import org.eclipse.rdf4j.model.ValueFactory;
 import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
 import org.eclipse.rdf4j.query.BindingSet;
 import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.QueryModelNode;
 import org.eclipse.rdf4j.query.algebra.Service;
 import org.eclipse.rdf4j.query.algebra.TupleExpr;
-import org.eclipse.rdf4j.query.algebra.evaluation.EvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.ValueConstant;
+import org.eclipse.rdf4j.query.algebra.Var;
 import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
 import org.eclipse.rdf4j.query.algebra.evaluation.QueryOptimizer;
 import org.eclipse.rdf4j.query.algebra.evaluation.federation.FederatedService;
 import org.eclipse.rdf4j.query.algebra.evaluation.util.QueryEvaluationUtil;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
 import org.eclipse.rdf4j.query.impl.SimpleDataset;
 
 import java.util.*;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class KvinFederatedService implements FederatedService {
 
     static final ValueFactory vf = SimpleValueFactory.getInstance();
+    static final int PLAN_CACHE_SIZE = 1000;
+    // plans depend on the cardinality estimates of the store and are prepared again after this time
+    static final long PLAN_EXPIRY_SECONDS = 60;
+    static final String PARAMETER_PREFIX = "_param_";
+    static final Pattern ANON_VAR = Pattern.compile("_anon_[A-Za-z0-9_-]+");
     protected boolean initialized = false;
     Kvin kvin;
     boolean closeKvinOnShutdown;
     Supplier<ExecutorService> executorService;
     ContextProvider contextProvider;
+    // optimized service expressions, the expressions are only read while being evaluated
+    final Cache<String, PreparedPlan> planCache = CacheBuilder.newBuilder()
+            .maximumSize(PLAN_CACHE_SIZE).expireAfterWrite(PLAN_EXPIRY_SECONDS, TimeUnit.SECONDS).build();
 
     public KvinFederatedService(Kvin kvin, Supplier<ExecutorService> executorService, ContextProvider contextProvider, boolean closeKvinOnShutdown) {
         this.kvin = kvin;
@@ -66,10 +88,219 @@ public class KvinFederatedService implements FederatedService {
             return new EmptyIteration<>();
         }
 
-        TupleExpr expr = service.getArg();
+        List<Value> parameterValues = new ArrayList<>();
+        PreparedPlan plan = getPlan(service, parameterValues);
+
+        Map<Value, Object> valueToData = new WeakHashMap<>();
+        SimpleDataset dataset = new SimpleDataset();
+        if (this.contextProvider != null) {
+            dataset.addDefaultGraph(vf.createIRI(this.contextProvider.getContext().toString()));
+        }
+        // limit the number of parallel tasks of this query
+        QueryExecutorService queryExecutorService = new QueryExecutorService(executorService.get());
+        Supplier<ExecutorService> queryExecutor = () -> queryExecutorService;
+        KvinEvaluationStrategy strategy = new KvinEvaluationStrategy(kvin, queryExecutor, plan.scanner, vf, dataset,
+                null, valueToData);
+        QueryProfile profile = QueryProfile.current();
+        if (profile != null) {
+            strategy.setProfile(profile);
+            profile.addService(plan.expr, queryExecutorService);
+        }
+
+        QueryBindingSet parameters = null;
+        if (plan.parameterized) {
+            // the literals of the query are passed as bindings to the shared plan
+            parameters = new QueryBindingSet(parameterValues.size());
+            for (int i = 0; i < parameterValues.size(); i++) {
+                parameters.addBinding(PARAMETER_PREFIX + i, parameterValues.get(i));
+            }
+            strategy.setParameters(parameters);
+            bindings = addBindings(bindings, parameters);
+        }
+
+        var precompiled = strategy.precompile(plan.expr);
+        // the incoming bindings are consumed lazily and only a bounded number of batches is evaluated concurrently
+        CloseableIteration<BindingSet, QueryEvaluationException> result;
+        if (precompiled instanceof BatchQueryEvaluationStep) {
+            result = new WindowedDispatchIteration(bindings, InnerJoinIterator.BATCH_SIZE,
+                    WindowedDispatchIteration.DEFAULT_WINDOW,
+                    batch -> ((BatchQueryEvaluationStep) precompiled).evaluate(batch), queryExecutor);
+        } else {
+            result = new WindowedDispatchIteration(bindings, 1, WindowedDispatchIteration.DEFAULT_WINDOW,
+                    batch -> precompiled.evaluate(batch.get(0)), queryExecutor);
+        }
+        return parameters != null ? removeBindings(result, parameters.getBindingNames()) : result;
+    }
+
+    static CloseableIteration<BindingSet, QueryEvaluationException> addBindings(
+            CloseableIteration<BindingSet, QueryEvaluationException> bindings, BindingSet added) {
+        return new ConvertingIteration<>(bindings) {
+            @Override
+            protected BindingSet convert(BindingSet bs) {
+                QueryBindingSet result = new QueryBindingSet(bs);
+                result.addAll(added);
+                return result;
+            }
+        };
+    }
+
+    static CloseableIteration<BindingSet, QueryEvaluationException> removeBindings(
+            CloseableIteration<BindingSet, QueryEvaluationException> results, Set<String> names) {
+        return new ConvertingIteration<>(results) {
+            @Override
+            protected BindingSet convert(BindingSet bs) {
+                QueryBindingSet result = new QueryBindingSet(bs);
+                result.removeAll(names);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * Returns the optimized expression of a service from the cache or prepares it.
+     * <p>
+     * The literals of the service are replaced by the variables <code>_param_0, _param_1, ...</code> and their values
+     * are added to <code>parameterValues</code>. The plans are keyed by the resulting expression so that queries which
+     * only differ in their literals (e.g. the time range of a dashboard) share the same plan. If the optimizers
+     * derive new constants from the literals (e.g. for pushed-down filters) then the plan is only valid for the given
+     * values and it is additionally keyed by these values. The service itself is not modified. Cached plans expire
+     * after {@link #PLAN_EXPIRY_SECONDS} so that the join order follows changes of the store's cardinality estimates.
+     */
+    protected PreparedPlan getPlan(Service service, List<Value> parameterValues) throws QueryEvaluationException {
+        Service copy = service.clone();
+        List<Var> parameters = extractParameters(copy.getArg());
+        for (Var parameter : parameters) {
+            parameterValues.add(parameter.getValue());
+        }
+        String key = planKey(copy.getArg(), parameters);
+        PreparedPlan plan = planCache.getIfPresent(key);
+        if (plan == null) {
+            plan = prepare(copy, parameters);
+            planCache.put(key, plan);
+            if (!plan.parameterized) {
+                planCache.put(key + parameterValues, plan);
+            }
+        } else if (!plan.parameterized) {
+            String valuesKey = key + parameterValues;
+            plan = planCache.getIfPresent(valuesKey);
+            if (plan == null) {
+                plan = prepare(copy, parameters);
+                planCache.put(valuesKey, plan);
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Renames all variables with literal values to <code>_param_0, _param_1, ...</code> and converts literal
+     * constants to such variables.
+     *
+     * @return the variables in the order of their occurrence
+     */
+    static List<Var> extractParameters(TupleExpr expr) {
+        List<Var> parameters = new ArrayList<>();
+        expr.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(Var node) {
+                if (node.getValue() instanceof Literal) {
+                    node.setName(PARAMETER_PREFIX + parameters.size());
+                    parameters.add(node);
+                }
+            }
+
+            @Override
+            public void meet(ValueConstant node) {
+                if (node.getValue() instanceof Literal) {
+                    Var var = new Var(PARAMETER_PREFIX + parameters.size(), node.getValue(), true, true);
+                    node.replaceWith(var);
+                    parameters.add(var);
+                }
+            }
+        });
+        return parameters;
+    }
+
+    /**
+     * Creates a key for the given expression where the values of the parameters are omitted and the generated names
+     * of anonymous variables are replaced by their position.
+     */
+    static String planKey(TupleExpr expr, List<Var> parameters) {
+        List<Value> values = new ArrayList<>(parameters.size());
+        for (Var parameter : parameters) {
+            values.add(parameter.getValue());
+            parameter.setValue(null);
+        }
+        String exprString = expr.toString();
+        for (int i = 0; i < parameters.size(); i++) {
+            parameters.get(i).setValue(values.get(i));
+        }
+
+        Matcher matcher = ANON_VAR.matcher(exprString);
+        Map<String, String> anonNames = new HashMap<>();
+        StringBuilder key = new StringBuilder();
+        while (matcher.find()) {
+            matcher.appendReplacement(key, anonNames.computeIfAbsent(matcher.group(), name -> "_anon_" + anonNames.size()));
+        }
+        matcher.appendTail(key);
+        return key.toString();
+    }
+
+    /**
+     * Optimizes the service and turns the parameters into unbound variables if the plan does not depend on their
+     * values.
+     */
+    protected PreparedPlan prepare(Service service, List<Var> parameters) throws QueryEvaluationException {
+        PreparedPlan plan = prepare(service);
+        Set<Var> parameterSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        parameterSet.addAll(parameters);
+        boolean[] parameterized = {!parameters.isEmpty()};
+        plan.expr.visit(new AbstractQueryModelVisitor<RuntimeException>() {
+            @Override
+            public void meet(Var node) {
+                check(node);
+            }
+
+            @Override
+            public void meet(ValueConstant node) {
+                if (node.getValue() instanceof Literal) {
+                    parameterized[0] = false;
+                }
+            }
+
+            @Override
+            public void meetOther(QueryModelNode node) {
+                if (node instanceof KvinFetch) {
+                    Parameters params = ((KvinFetch) node).getParams();
+                    for (Var var : Arrays.asList(params.from, params.to, params.limit, params.interval,
+                            params.aggregationFunction, params.time, params.seqNr, params.index)) {
+                        if (var != null) {
+                            check(var);
+                        }
+                    }
+                }
+                super.meetOther(node);
+            }
+
+            void check(Var var) {
+                // literals that have been created by the optimizers depend on the parameter values
+                if (var.getValue() instanceof Literal && !parameterSet.contains(var)) {
+                    parameterized[0] = false;
+                }
+            }
+        });
+        if (parameterized[0]) {
+            for (Var parameter : parameters) {
+                parameter.setValue(null);
+                parameter.setConstant(false);
+            }
+        }
+        return new PreparedPlan(plan.expr, plan.scanner, parameterized[0]);
+    }
+
+    protected PreparedPlan prepare(Service service) throws QueryEvaluationException {
         final ParameterScanner scanner = new ParameterScanner();
         try {
-            scanner.process(expr);
+            scanner.process(service.getArg());
         } catch (RDF4JException e) {
             throw new QueryEvaluationException(e);
         }
@@ -83,7 +314,9 @@ public class KvinFederatedService implements FederatedService {
 
         List<QueryOptimizer> optimizers = new ArrayList<>();
         optimizers.add(new QueryModelPruner());
-        final QueryJoinOptimizer queryJoinOptimizer = new QueryJoinOptimizer();
+        // fetches are ordered by the cardinality estimates of the store
+        URI context = contextProvider != null ? contextProvider.getContext() : Kvin.DEFAULT_CONTEXT;
+        final QueryJoinOptimizer queryJoinOptimizer = new QueryJoinOptimizer(new KvinEvaluationStatistics(kvin, context));
         optimizers.add(queryJoinOptimizer);
         try {
             for (QueryOptimizer optimizer : optimizers) {
@@ -96,40 +329,7 @@ public class KvinFederatedService implements FederatedService {
         // for debugging purposes
         // System.out.println(service);
 
-        Map<Value, Object> valueToData = new WeakHashMap<>();
-        SimpleDataset dataset = new SimpleDataset();
-        if (this.contextProvider != null) {
-            dataset.addDefaultGraph(vf.createIRI(this.contextProvider.getContext().toString()));
-        }
-        EvaluationStrategy strategy = new KvinEvaluationStrategy(kvin, executorService, scanner, vf, dataset, null, valueToData);
-        List<CloseableIteration<BindingSet, QueryEvaluationException>> resultIters = new ArrayList<>();
-
-        var precompiled = strategy.precompile(service.getArg());
-        if (precompiled instanceof BatchQueryEvaluationStep) {
-            while (bindings.hasNext()) {
-                List<BindingSet> bindingSetList = new ArrayList<>();
-                while (bindings.hasNext() && bindingSetList.size() < InnerJoinIterator.BATCH_SIZE) {
-                    bindingSetList.add(bindings.next());
-                }
-                if (! bindings.hasNext()) {
-                    resultIters.add(((BatchQueryEvaluationStep) precompiled).evaluate(bindingSetList));
-                } else {
-                    resultIters.add(new AsyncIterator<>(() -> ((BatchQueryEvaluationStep) precompiled)
-                            .evaluate(bindingSetList), executorService));
-                }
-            }
-        } else {
-            while (bindings.hasNext()) {
-                BindingSet bs = bindings.next();
-                if (! bindings.hasNext()) {
-                    resultIters.add(precompiled.evaluate(bs));
-                } else {
-                    resultIters.add(new AsyncIterator<>(() -> precompiled.evaluate(bs), executorService));
-                }
-            }
-        }
-
-        return resultIters.size() > 1 ? new DistinctIteration<>(new UnionIteration<>(resultIters)) : resultIters.get(0);
+        return new PreparedPlan(service.getArg(), scanner);
     }
 
     @Override
@@ -186,8 +386,29 @@ public class KvinFederatedService implements FederatedService {
 
     @Override
     public void shutdown() throws QueryEvaluationException {
+        planCache.invalidateAll();
         if (this.closeKvinOnShutdown) {
             this.kvin.close();
         }
     }
+
+    /**
+     * An optimized service expression with its parameters.
+     */
+    protected static class PreparedPlan {
+        final TupleExpr expr;
+        final ParameterScanner scanner;
+        // the literals are replaced by variables that are bound on evaluation
+        final boolean parameterized;
+
+        PreparedPlan(TupleExpr expr, ParameterScanner scanner) {
+            this(expr, scanner, false);
+        }
+
+        PreparedPlan(TupleExpr expr, ParameterScanner scanner, boolean parameterized) {
+            this.expr = expr;
+            this.scanner = scanner;
+            this.parameterized = parameterized;
+        }
+    }
 }
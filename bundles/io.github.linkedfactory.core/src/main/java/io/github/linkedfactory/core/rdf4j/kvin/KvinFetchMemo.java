@@ -0,0 +1,137 @@
+package io.github.linkedfactory.core.rdf4j.kvin;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import io.github.linkedfactory.core.kvin.Kvin;
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import io.github.linkedfactory.core.kvin.KvinTuples;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.commons.iterator.NiceIterator;
+import net.enilink.commons.iterator.WrappedIterator;
+import net.enilink.komma.core.URI;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Memo table for the results of fetch requests that is used for the duration of a single query.
+ * <p>
+ * The results are recorded while they are consumed and are memoized if they have been consumed completely. Results
+ * that exceed a fraction of the maximum weight are not memoized and repeated requests are forwarded to the store.
+ * The evaluation strategy only uses the memo table for fetch patterns that occur more than once within a plan.
+ */
+public class KvinFetchMemo {
+	public static final long DEFAULT_MAX_WEIGHT = 32 * 1048576L; // 32 MB
+
+	final Kvin kvin;
+	final long maxEntryWeight;
+	final Cache<FetchKey, List<KvinTuple>> results;
+
+	public KvinFetchMemo(Kvin kvin) {
+		this(kvin, DEFAULT_MAX_WEIGHT);
+	}
+
+	/**
+	 * Creates a memo table for the given store.
+	 *
+	 * @param maxWeight The maximum estimated size of all memoized results in bytes.
+	 */
+	public KvinFetchMemo(Kvin kvin, long maxWeight) {
+		this.kvin = kvin;
+		this.maxEntryWeight = Math.min(maxWeight / 4, Integer.MAX_VALUE);
+		this.results = CacheBuilder.newBuilder()
+				.maximumWeight(maxWeight)
+				.<FetchKey, List<KvinTuple>>weigher((key, tuples) -> KvinTuples.weigh(tuples))
+				.build();
+	}
+
+	/**
+	 * Fetches the values from the memo table or from the store.
+	 *
+	 * @see Kvin#fetch(List, List, URI, long, long, long, long, String)
+	 */
+	public IExtendedIterator<KvinTuple> fetch(List<URI> items, List<URI> properties, URI context, long end, long begin,
+	                                          long limit, long interval, String op) {
+		FetchKey key = new FetchKey(items, properties, context, end, begin, limit, interval, op);
+		List<KvinTuple> memoized = results.getIfPresent(key);
+		if (memoized != null) {
+			return WrappedIterator.create(memoized.iterator());
+		}
+		IExtendedIterator<KvinTuple> base = kvin.fetch(items, properties, context, end, begin, limit, interval, op);
+		return new NiceIterator<>() {
+			List<KvinTuple> recorded = new ArrayList<>();
+			long weight;
+
+			@Override
+			public boolean hasNext() {
+				boolean hasNext = base.hasNext();
+				if (!hasNext && recorded != null) {
+					// the results have been consumed completely
+					results.put(key, recorded);
+					recorded = null;
+				}
+				return hasNext;
+			}
+
+			@Override
+			public KvinTuple next() {
+				KvinTuple tuple = base.next();
+				if (recorded != null) {
+					weight += KvinTuples.estimateSize(tuple);
+					if (weight > maxEntryWeight) {
+						// fall back to the store for large results
+						recorded = null;
+					} else {
+						recorded.add(tuple);
+					}
+				}
+				return tuple;
+			}
+
+			@Override
+			public void close() {
+				recorded = null;
+				base.close();
+			}
+		};
+	}
+
+	static final class FetchKey {
+		final List<URI> items, properties;
+		final URI context;
+		final long end, begin, limit, interval;
+		final String op;
+
+		FetchKey(List<URI> items, List<URI> properties, URI context, long end, long begin, long limit, long interval,
+		         String op) {
+			this.items = items;
+			this.properties = properties;
+			this.context = context;
+			this.end = end;
+			this.begin = begin;
+			this.limit = limit;
+			this.interval = interval;
+			this.op = op;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof FetchKey)) {
+				return false;
+			}
+			FetchKey other = (FetchKey) o;
+			return end == other.end && begin == other.begin && limit == other.limit && interval == other.interval &&
+					items.equals(other.items) && properties.equals(other.properties) &&
+					Objects.equals(context, other.context) && Objects.equals(op, other.op);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(items, properties, context, end, begin, limit, interval, op);
+		}
+	}
+}
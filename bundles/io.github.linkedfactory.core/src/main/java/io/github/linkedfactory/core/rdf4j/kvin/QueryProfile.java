@@ -0,0 +1,248 @@
+package io.github.linkedfactory.core.rdf4j.kvin;
+
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import io.github.linkedfactory.core.kvin.KvinTuples;
+import io.github.linkedfactory.core.rdf4j.common.QueryExecutorService;
+import io.github.linkedfactory.core.rdf4j.common.query.BatchQueryEvaluationStep;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.commons.iterator.NiceIterator;
+import org.eclipse.rdf4j.common.iteration.CloseableIteration;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.QueryModelNode;
+import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryEvaluationStep;
+import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics about the evaluation of KVIN service expressions.
+ * <p>
+ * A profile is activated for the current thread with {@link #activate()}. All service invocations that are
+ * started by this thread while the profile is active record the number of evaluations, the result rows and the
+ * inclusive wall-clock time of each operator. Fetches additionally record the number of store requests and the
+ * number and estimated size of the returned values. The {@link #toString()} representation renders the evaluated
+ * plans together with these statistics.
+ */
+public class QueryProfile {
+	static final ThreadLocal<QueryProfile> currentProfile = new ThreadLocal<>();
+
+	final Map<QueryModelNode, Stats> stats = new IdentityHashMap<>();
+	final List<TupleExpr> plans = new CopyOnWriteArrayList<>();
+	final List<QueryExecutorService> executors = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Returns the profile that is active for the current thread or <code>null</code>.
+	 */
+	public static QueryProfile current() {
+		return currentProfile.get();
+	}
+
+	public void activate() {
+		currentProfile.set(this);
+	}
+
+	public void deactivate() {
+		if (currentProfile.get() == this) {
+			currentProfile.remove();
+		}
+	}
+
+	/**
+	 * Returns the statistics of the given operator.
+	 */
+	public Stats getStats(QueryModelNode node) {
+		synchronized (stats) {
+			return stats.computeIfAbsent(node, n -> new Stats());
+		}
+	}
+
+	/**
+	 * Registers a service plan and the executor of its asynchronous tasks.
+	 */
+	void addService(TupleExpr plan, QueryExecutorService executor) {
+		if (!plans.contains(plan)) {
+			plans.add(plan);
+		}
+		executors.add(executor);
+	}
+
+	/**
+	 * Wraps an evaluation step to record the statistics of the given operator.
+	 */
+	QueryEvaluationStep instrument(TupleExpr expr, QueryEvaluationStep step) {
+		Stats s = getStats(expr);
+		if (step instanceof BatchQueryEvaluationStep) {
+			return new BatchQueryEvaluationStep() {
+				@Override
+				public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(BindingSet bindings) {
+					return s.record(step.evaluate(bindings));
+				}
+
+				@Override
+				public CloseableIteration<BindingSet, QueryEvaluationException> evaluate(List<BindingSet> bindingSets) {
+					return s.record(((BatchQueryEvaluationStep) step).evaluate(bindingSets));
+				}
+			};
+		}
+		return bindings -> s.record(step.evaluate(bindings));
+	}
+
+	/**
+	 * Records a fetch request of the given operator and the values that are returned by the store.
+	 */
+	IExtendedIterator<KvinTuple> recordFetch(QueryModelNode node, IExtendedIterator<KvinTuple> it) {
+		Stats s = getStats(node);
+		s.fetches.increment();
+		return new NiceIterator<>() {
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public KvinTuple next() {
+				KvinTuple tuple = it.next();
+				s.fetchedValues.increment();
+				s.fetchedBytes.add(KvinTuples.estimateSize(tuple));
+				return tuple;
+			}
+
+			@Override
+			public void close() {
+				it.close();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (TupleExpr plan : plans) {
+			print(sb, plan, 0);
+		}
+		long tasks = 0, queueWaitNanos = 0;
+		for (QueryExecutorService executor : executors) {
+			tasks += executor.getExecutedTasks();
+			queueWaitNanos += executor.getQueueWaitNanos();
+		}
+		Stats total = new Stats();
+		synchronized (stats) {
+			for (Stats s : stats.values()) {
+				total.fetches.add(s.fetches.sum());
+				total.fetchedValues.add(s.fetchedValues.sum());
+				total.fetchedBytes.add(s.fetchedBytes.sum());
+			}
+		}
+		sb.append(String.format("fetches=%d, fetchedValues=%d, fetchedBytes=%d, asyncTasks=%d, queueWait=%.3f ms%n",
+				total.getFetches(), total.getFetchedValues(), total.getFetchedBytes(), tasks, queueWaitNanos / 1e6));
+		return sb.toString();
+	}
+
+	private void print(StringBuilder sb, QueryModelNode node, int depth) {
+		for (int i = 0; i < depth; i++) {
+			sb.append("   ");
+		}
+		sb.append(node.getSignature());
+		Stats s;
+		synchronized (stats) {
+			s = stats.get(node);
+		}
+		if (s != null) {
+			sb.append(String.format(" [evaluations=%d, rows=%d, time=%.3f ms", s.getEvaluations(), s.getRows(),
+					s.getTimeNanos() / 1e6));
+			if (s.getFetches() > 0) {
+				sb.append(String.format(", fetches=%d, fetchedValues=%d, fetchedBytes=%d", s.getFetches(),
+						s.getFetchedValues(), s.getFetchedBytes()));
+			}
+			sb.append("]");
+		}
+		sb.append(System.lineSeparator());
+		node.visitChildren(new AbstractQueryModelVisitor<RuntimeException>() {
+			@Override
+			protected void meetNode(QueryModelNode child) {
+				print(sb, child, depth + 1);
+			}
+		});
+	}
+
+	/**
+	 * Statistics of a single operator.
+	 */
+	public static class Stats {
+		final LongAdder evaluations = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder timeNanos = new LongAdder();
+		final LongAdder fetches = new LongAdder();
+		final LongAdder fetchedValues = new LongAdder();
+		final LongAdder fetchedBytes = new LongAdder();
+
+		CloseableIteration<BindingSet, QueryEvaluationException> record(
+				CloseableIteration<BindingSet, QueryEvaluationException> it) {
+			evaluations.increment();
+			if (it == QueryEvaluationStep.EMPTY_ITERATION) {
+				return it;
+			}
+			return new CloseableIteration<>() {
+				@Override
+				public boolean hasNext() throws QueryEvaluationException {
+					long start = System.nanoTime();
+					try {
+						return it.hasNext();
+					} finally {
+						timeNanos.add(System.nanoTime() - start);
+					}
+				}
+
+				@Override
+				public BindingSet next() throws QueryEvaluationException {
+					long start = System.nanoTime();
+					try {
+						BindingSet next = it.next();
+						rows.increment();
+						return next;
+					} finally {
+						timeNanos.add(System.nanoTime() - start);
+					}
+				}
+
+				@Override
+				public void remove() throws QueryEvaluationException {
+					it.remove();
+				}
+
+				@Override
+				public void close() throws QueryEvaluationException {
+					it.close();
+				}
+			};
+		}
+
+		public long getEvaluations() {
+			return evaluations.sum();
+		}
+
+		public long getRows() {
+			return rows.sum();
+		}
+
+		public long getTimeNanos() {
+			return timeNanos.sum();
+		}
+
+		public long getFetches() {
+			return fetches.sum();
+		}
+
+		public long getFetchedValues() {
+			return fetchedValues.sum();
+		}
+
+		public long getFetchedBytes() {
+			return fetchedBytes.sum();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package io.github.linkedfactory.core.rdf4j.kvin.query;
+
+import io.github.linkedfactory.core.kvin.Kvin;
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import net.enilink.komma.core.URI;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.algebra.QueryModelNode;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.EvaluationStatistics;
+
+import static io.github.linkedfactory.core.rdf4j.common.Conversions.getLongValue;
+import static io.github.linkedfactory.core.rdf4j.kvin.KvinEvaluationUtil.toKommaUri;
+
+/**
+ * Estimates the cardinality of KVIN fetches by using the statistics of the underlying store.
+ * <p>
+ * Fetches whose item is not known at planning time or whose store does not provide an estimate are assigned
+ * {@link #UNKNOWN_CARDINALITY}.
+ */
+public class KvinEvaluationStatistics extends EvaluationStatistics {
+    public static final double UNKNOWN_CARDINALITY = 1000;
+
+    final Kvin kvin;
+    final URI context;
+
+    public KvinEvaluationStatistics(Kvin kvin, URI context) {
+        this.kvin = kvin;
+        this.context = context;
+    }
+
+    @Override
+    protected CardinalityCalculator createCardinalityCalculator() {
+        return new CardinalityCalculator() {
+            @Override
+            public void meetOther(QueryModelNode node) {
+                if (node instanceof KvinFetch) {
+                    cardinality = KvinEvaluationStatistics.this.getCardinality((KvinFetch) node);
+                } else {
+                    super.meetOther(node);
+                }
+            }
+        };
+    }
+
+    protected double getCardinality(KvinFetch fetch) {
+        StatementPattern stmt = fetch.getStatement();
+        Parameters params = fetch.getParams();
+        Value subject = constantValue(stmt.getSubjectVar());
+        Value predicate = constantValue(stmt.getPredicateVar());
+        if (!(subject instanceof IRI) || stmt.getPredicateVar().hasValue() && !(predicate instanceof IRI) ||
+                !isConstantOrNull(params.from) || !isConstantOrNull(params.to) ||
+                !isConstantOrNull(params.limit) || !isConstantOrNull(params.interval)) {
+            return UNKNOWN_CARDINALITY;
+        }
+
+        long begin = getLongValue(constantValue(params.from), 0L);
+        long end = getLongValue(constantValue(params.to), KvinTuple.TIME_MAX_VALUE);
+        Value timeValue = constantValue(params.time);
+        if (timeValue != null && params.aggregationFunction == null) {
+            // point lookup
+            begin = end = getLongValue(timeValue, 0L);
+        }
+        Value contextValue = constantValue(stmt.getContextVar());
+        long count = kvin.estimateCount(toKommaUri(subject), predicate == null ? null : toKommaUri(predicate),
+                contextValue instanceof IRI ? toKommaUri(contextValue) : context, end, begin);
+        if (count < 0) {
+            return UNKNOWN_CARDINALITY;
+        }
+
+        long limit = getLongValue(constantValue(params.limit), 0L);
+        if (limit > 0 && predicate != null) {
+            count = Math.min(count, limit);
+        }
+        long interval = getLongValue(constantValue(params.interval), 0L);
+        if (interval > 0 && end >= begin && end != KvinTuple.TIME_MAX_VALUE) {
+            count = Math.min(count, (end - begin) / interval + 1);
+        }
+        return count;
+    }
+
+    private static boolean isConstantOrNull(Var var) {
+        return var == null || var.hasValue();
+    }
+
+    private static Value constantValue(Var var) {
+        return var != null ? var.getValue() : null;
+    }
+}
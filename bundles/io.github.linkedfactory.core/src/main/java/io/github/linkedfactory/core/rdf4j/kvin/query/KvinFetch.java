@@ -1,6 +1,7 @@
 package io.github.linkedfactory.core.rdf4j.kvin.query;
 
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -65,6 +66,18 @@ public class KvinFetch extends UnaryTupleOperator implements Fetch {
         return requiredBindings;
     }
 
+    /**
+     * Returns a key that is equal for fetch operators which send the same requests to the store, regardless of the
+     * variables that receive the values.
+     */
+    public List<Object> getRequestKey() {
+        return Stream.of(getStatement().getSubjectVar(), getStatement().getPredicateVar(),
+                getStatement().getContextVar(), params.from, params.to, params.limit, params.interval,
+                params.aggregationFunction)
+            .map(v -> v == null ? null : v.hasValue() ? v.getValue() : "?" + v.getName())
+            .collect(Collectors.toList());
+    }
+
     Set<String> computeRequiredBindings() {
         return Stream.of(getStatement().getSubjectVar(), params.from, params.to, params.interval, params.aggregationFunction)
             .filter(p -> p != null).map(p -> p.getName()).collect(
@@ -23,7 +23,8 @@ public class KvinFetchEvaluationStep implements QueryEvaluationStep, BatchQueryE
 		this.strategy = strategy;
 		this.fetch = fetch;
 		this.context = context;
-		this.evalUtil = new KvinEvaluationUtil(strategy.getKvin(), strategy.getExecutorService());
+		this.evalUtil = new KvinEvaluationUtil(strategy.getKvin(), strategy.getExecutorService(),
+				strategy.getFetchMemo(fetch), strategy.getProfile());
 	}
 
 	@Override
@@ -1,15 +1,51 @@
 package io.github.linkedfactory.core.rdf4j.kvin.query;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
+import io.github.linkedfactory.core.rdf4j.kvin.KVIN;
 import org.eclipse.rdf4j.common.exception.RDF4JException;
+import org.eclipse.rdf4j.model.Literal;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.datatypes.XMLDatatypeUtil;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.vocabulary.FN;
+import org.eclipse.rdf4j.query.algebra.AggregateOperator;
+import org.eclipse.rdf4j.query.algebra.And;
+import org.eclipse.rdf4j.query.algebra.Avg;
+import org.eclipse.rdf4j.query.algebra.BindingSetAssignment;
+import org.eclipse.rdf4j.query.algebra.Compare;
+import org.eclipse.rdf4j.query.algebra.Compare.CompareOp;
+import org.eclipse.rdf4j.query.algebra.Count;
+import org.eclipse.rdf4j.query.algebra.Extension;
+import org.eclipse.rdf4j.query.algebra.ExtensionElem;
 import org.eclipse.rdf4j.query.algebra.Filter;
+import org.eclipse.rdf4j.query.algebra.FunctionCall;
+import org.eclipse.rdf4j.query.algebra.Group;
+import org.eclipse.rdf4j.query.algebra.GroupElem;
 import org.eclipse.rdf4j.query.algebra.Join;
+import org.eclipse.rdf4j.query.algebra.LeftJoin;
+import org.eclipse.rdf4j.query.algebra.MathExpr;
+import org.eclipse.rdf4j.query.algebra.Max;
+import org.eclipse.rdf4j.query.algebra.Min;
+import org.eclipse.rdf4j.query.algebra.Order;
+import org.eclipse.rdf4j.query.algebra.OrderElem;
+import org.eclipse.rdf4j.query.algebra.Projection;
 import org.eclipse.rdf4j.query.algebra.SingletonSet;
+import org.eclipse.rdf4j.query.algebra.Slice;
 import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Sum;
 import org.eclipse.rdf4j.query.algebra.TupleExpr;
+import org.eclipse.rdf4j.query.algebra.UnaryTupleOperator;
+import org.eclipse.rdf4j.query.algebra.UnaryValueOperator;
+import org.eclipse.rdf4j.query.algebra.Union;
+import org.eclipse.rdf4j.query.algebra.ValueConstant;
+import org.eclipse.rdf4j.query.algebra.ValueExpr;
+import org.eclipse.rdf4j.query.algebra.Var;
 import org.eclipse.rdf4j.query.algebra.helpers.AbstractQueryModelVisitor;
 
 public class KvinFetchOptimizer extends AbstractQueryModelVisitor<RDF4JException> {
@@ -42,6 +78,444 @@ public class KvinFetchOptimizer extends AbstractQueryModelVisitor<RDF4JException
         } else {
             node.visitChildren(this);
         }
+        pushDownRanges(node);
+    }
+
+    /**
+     * Folds comparisons of <code>kvin:time</code> and <code>kvin:index</code> with constants into the
+     * <code>from</code>, <code>to</code> and <code>limit</code> parameters of the fetches below the given filter.
+     * <p>
+     * The filter itself is kept as the parameters only narrow the range that is scanned by the store. Time ranges
+     * are not narrowed for fetches that bind <code>kvin:index</code> as this would change the indexes.
+     *
+     * @param filter The filter whose condition is analyzed.
+     */
+    protected void pushDownRanges(Filter filter) {
+        List<Compare> comparisons = new ArrayList<>();
+        collectComparisons(filter.getCondition(), comparisons);
+        if (comparisons.isEmpty()) {
+            return;
+        }
+        List<KvinFetch> fetches = new ArrayList<>();
+        collectFetches(filter.getArg(), fetches);
+        for (KvinFetch fetch : fetches) {
+            Parameters params = fetch.params;
+            // aggregated values do not correspond to single tuples within the range
+            if (params.interval != null || params.aggregationFunction != null) {
+                continue;
+            }
+            Parameters newParams = params.clone();
+            for (Compare compare : comparisons) {
+                restrict(newParams, compare);
+            }
+            if (newParams.from != params.from || newParams.to != params.to || newParams.limit != params.limit) {
+                fetch.replaceWith(new KvinFetch(fetch.getStatement(), newParams));
+            }
+        }
+    }
+
+    /**
+     * Narrows the parameters according to a comparison of the form <code>?var op constant</code>.
+     */
+    protected void restrict(Parameters params, Compare compare) {
+        CompareOp op = compare.getOperator();
+        String varName = varName(compare.getLeftArg());
+        Value value = constantValue(compare.getRightArg());
+        if (varName == null || value == null) {
+            // normalize to ?var op constant
+            varName = varName(compare.getRightArg());
+            value = constantValue(compare.getLeftArg());
+            op = swap(op);
+        }
+        if (varName == null || !(value instanceof Literal) ||
+            !XMLDatatypeUtil.isNumericDatatype(((Literal) value).getDatatype())) {
+            return;
+        }
+        Literal literal = (Literal) value;
+        boolean integer = XMLDatatypeUtil.isIntegerDatatype(literal.getDatatype());
+        long floor, ceil;
+        try {
+            floor = integer ? literal.longValue() : (long) Math.floor(literal.doubleValue());
+            ceil = integer ? floor : (long) Math.ceil(literal.doubleValue());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        // the index is relative to the scanned range and hence the range may not be changed if it is used
+        if (params.time != null && params.index == null && varName.equals(params.time.getName())) {
+            switch (op) {
+                case EQ:
+                    params.from = lowerBound(params.from, ceil);
+                    params.to = upperBound(params.to, floor);
+                    break;
+                case GT:
+                    params.from = lowerBound(params.from, floor + 1);
+                    break;
+                case GE:
+                    params.from = lowerBound(params.from, ceil);
+                    break;
+                case LT:
+                    params.to = upperBound(params.to, ceil - 1);
+                    break;
+                case LE:
+                    params.to = upperBound(params.to, floor);
+                    break;
+                default:
+            }
+        } else if (params.index != null && varName.equals(params.index.getName())) {
+            // the index is zero-based and counts the tuples of each series in descending order
+            switch (op) {
+                case EQ:
+                case LE:
+                    params.limit = limit(params.limit, floor + 1);
+                    break;
+                case LT:
+                    params.limit = limit(params.limit, ceil);
+                    break;
+                default:
+            }
+        }
+    }
+
+    protected Var lowerBound(Var current, long value) {
+        if (current == null) {
+            return constantVar(value);
+        } else if (current.hasValue() && current.getValue() instanceof Literal) {
+            return ((Literal) current.getValue()).longValue() < value ? constantVar(value) : current;
+        }
+        // the current bound is only known at runtime
+        return current;
+    }
+
+    protected Var upperBound(Var current, long value) {
+        if (current == null) {
+            return constantVar(value);
+        } else if (current.hasValue() && current.getValue() instanceof Literal) {
+            return ((Literal) current.getValue()).longValue() > value ? constantVar(value) : current;
+        }
+        // the current bound is only known at runtime
+        return current;
+    }
+
+    protected Var limit(Var current, long value) {
+        if (value < 1) {
+            // a limit of zero would return all values
+            return current;
+        } else if (current == null) {
+            return constantVar(value);
+        } else if (current.hasValue() && current.getValue() instanceof Literal) {
+            long currentValue = ((Literal) current.getValue()).longValue();
+            return currentValue == 0 || currentValue > value ? constantVar(value) : current;
+        }
+        return current;
+    }
+
+    protected Var constantVar(long value) {
+        Literal literal = SimpleValueFactory.getInstance().createLiteral(value);
+        return new Var("_const_" + Long.toHexString(value), literal, true, true);
+    }
+
+    protected String varName(ValueExpr expr) {
+        return expr instanceof Var && !((Var) expr).hasValue() ? ((Var) expr).getName() : null;
+    }
+
+    protected Value constantValue(ValueExpr expr) {
+        if (expr instanceof ValueConstant) {
+            return ((ValueConstant) expr).getValue();
+        } else if (expr instanceof Var) {
+            return ((Var) expr).getValue();
+        }
+        return null;
+    }
+
+    protected CompareOp swap(CompareOp op) {
+        switch (op) {
+            case LT:
+                return CompareOp.GT;
+            case LE:
+                return CompareOp.GE;
+            case GT:
+                return CompareOp.LT;
+            case GE:
+                return CompareOp.LE;
+            default:
+                return op;
+        }
+    }
+
+    /**
+     * Collect the comparisons of a conjunctive filter condition.
+     */
+    protected void collectComparisons(ValueExpr condition, List<Compare> comparisons) {
+        if (condition instanceof And) {
+            collectComparisons(((And) condition).getLeftArg(), comparisons);
+            collectComparisons(((And) condition).getRightArg(), comparisons);
+        } else if (condition instanceof Compare) {
+            comparisons.add((Compare) condition);
+        }
+    }
+
+    /**
+     * Collect the fetches whose results are all subject to a filter.
+     */
+    protected void collectFetches(TupleExpr expr, List<KvinFetch> fetches) {
+        if (expr instanceof KvinFetch) {
+            fetches.add((KvinFetch) expr);
+        } else if (expr instanceof Join) {
+            collectFetches(((Join) expr).getLeftArg(), fetches);
+            collectFetches(((Join) expr).getRightArg(), fetches);
+        } else if (expr instanceof Union) {
+            collectFetches(((Union) expr).getLeftArg(), fetches);
+            collectFetches(((Union) expr).getRightArg(), fetches);
+        } else if (expr instanceof LeftJoin) {
+            collectFetches(((LeftJoin) expr).getLeftArg(), fetches);
+        } else if (expr instanceof Filter) {
+            collectFetches(((Filter) expr).getArg(), fetches);
+        } else if (expr instanceof Extension) {
+            collectFetches(((Extension) expr).getArg(), fetches);
+        }
+    }
+
+    /*
+     * service <kvin:> { select ?bucket (avg(?v) as ?avg) {
+     *   <some:item> <some:prop> [ kvin:time ?t; kvin:value ?v ]
+     * } group by (floor(?t / 60000) as ?bucket) }
+     */
+
+    @Override
+    public void meet(Group node) throws RDF4JException {
+        node.visitChildren(this);
+        pushDownAggregation(node);
+    }
+
+    /**
+     * Replaces the aggregation of raw values within time buckets by an aggregating fetch with
+     * <code>interval</code> and <code>op</code> parameters.
+     * <p>
+     * This is done if the group only consists of time buckets of the form <code>floor(?time / interval)</code> and
+     * of the item or property of a single fetch and if all aggregates use the same operator on the fetched value.
+     * The group is kept as each bucket is then represented by a single pre-aggregated value.
+     *
+     * @param group The group that is possibly aggregated by the store.
+     */
+    protected void pushDownAggregation(Group group) {
+        if (!(group.getArg() instanceof Extension)) {
+            return;
+        }
+        Extension extension = (Extension) group.getArg();
+        List<StatementPattern> valueStmts = new ArrayList<>();
+        KvinFetch fetch = findSingleFetch(extension.getArg(), valueStmts);
+        if (fetch == null || valueStmts.size() != 1 ||
+            !KVIN.VALUE.equals(valueStmts.get(0).getPredicateVar().getValue())) {
+            return;
+        }
+        StatementPattern valueStmt = valueStmts.get(0);
+        Parameters params = fetch.params;
+        if (params.time == null || params.interval != null || params.aggregationFunction != null ||
+            params.limit != null || params.seqNr != null || params.index != null) {
+            return;
+        }
+
+        Long interval = null;
+        Set<String> bucketNames = new HashSet<>();
+        for (ExtensionElem elem : extension.getElements()) {
+            Long elemInterval = bucketInterval(elem.getExpr(), params.time.getName());
+            if (elemInterval == null || interval != null && !interval.equals(elemInterval)) {
+                return;
+            }
+            interval = elemInterval;
+            bucketNames.add(elem.getName());
+        }
+        Set<String> groupNames = group.getGroupBindingNames();
+        if (interval == null || groupNames.stream().noneMatch(bucketNames::contains)) {
+            return;
+        }
+        StatementPattern stmt = fetch.getStatement();
+        boolean perSeries = true;
+        for (Var var : List.of(stmt.getSubjectVar(), stmt.getPredicateVar())) {
+            if (!var.hasValue() && !groupNames.contains(var.getName())) {
+                perSeries = false;
+            }
+        }
+        for (String name : groupNames) {
+            if (!bucketNames.contains(name) && !name.equals(stmt.getSubjectVar().getName()) &&
+                !name.equals(stmt.getPredicateVar().getName())) {
+                return;
+            }
+        }
+
+        String valueName = valueStmt.getObjectVar().getName();
+        String op = null;
+        for (GroupElem elem : group.getGroupElements()) {
+            String elemOp = aggregationOp(elem.getOperator(), valueName);
+            if (elemOp == null || op != null && !op.equals(elemOp)) {
+                return;
+            }
+            op = elemOp;
+        }
+        // averages of multiple series can not be combined
+        if (op == null || "avg".equals(op) && !perSeries) {
+            return;
+        }
+
+        Parameters newParams = params.clone();
+        newParams.interval = constantVar(interval);
+        newParams.aggregationFunction = new Var("_const_" + op, SimpleValueFactory.getInstance().createLiteral(op),
+            true, true);
+        fetch.replaceWith(new KvinFetch(stmt, newParams));
+        if ("count".equals(op)) {
+            // the values are the counts of the buckets
+            for (GroupElem elem : group.getGroupElements()) {
+                elem.setOperator(new Sum(new Var(valueName)));
+            }
+        }
+    }
+
+    /*
+     * service <kvin:> { select * {
+     *   ?item <some:prop> [ kvin:time ?t; kvin:value ?v ]
+     * } order by desc(?t) limit 10 }
+     */
+
+    @Override
+    public void meet(Slice node) throws RDF4JException {
+        node.visitChildren(this);
+        pushDownLimit(node);
+    }
+
+    /**
+     * Passes the limit of a slice over the values of a single fetch that are ordered from newest to oldest (by
+     * descending <code>kvin:time</code> or ascending <code>kvin:index</code>) as limit to the store.
+     * <p>
+     * The store returns the values of each series from newest to oldest and hence only the first
+     * <code>offset + limit</code> values of each series can be part of the result. The order is kept to merge the
+     * values of multiple series which is cheap as it only needs to keep the top values.
+     *
+     * @param slice The slice with a limit.
+     */
+    protected void pushDownLimit(Slice slice) {
+        if (!slice.hasLimit()) {
+            return;
+        }
+        TupleExpr arg = slice.getArg();
+        while (arg instanceof Projection || arg instanceof Extension) {
+            arg = ((UnaryTupleOperator) arg).getArg();
+        }
+        if (!(arg instanceof Order) || ((Order) arg).getElements().size() != 1) {
+            return;
+        }
+        Order order = (Order) arg;
+        KvinFetch fetch = findSingleFetch(order.getArg(), new ArrayList<>());
+        if (fetch == null) {
+            return;
+        }
+        Parameters params = fetch.params;
+        OrderElem elem = order.getElements().get(0);
+        String name = varName(elem.getExpr());
+        boolean newestFirst = name != null &&
+            (!elem.isAscending() && params.time != null && name.equals(params.time.getName()) ||
+                elem.isAscending() && params.index != null && name.equals(params.index.getName()));
+        if (newestFirst) {
+            Parameters newParams = params.clone();
+            newParams.limit = limit(params.limit, Math.max(slice.getOffset(), 0) + slice.getLimit());
+            if (newParams.limit != params.limit) {
+                fetch.replaceWith(new KvinFetch(fetch.getStatement(), newParams));
+            }
+        }
+    }
+
+    /**
+     * Returns the fetch if the given expression only consists of a single fetch that is joined with statements
+     * about its values (e.g. <code>?v kvin:value ?value</code>).
+     *
+     * @param expr       The expression that is inspected.
+     * @param valueStmts List that is filled with the statements about the values.
+     * @return the fetch or <code>null</code> if other patterns or filters may remove some of its results.
+     */
+    protected KvinFetch findSingleFetch(TupleExpr expr, List<StatementPattern> valueStmts) {
+        List<TupleExpr> args = new ArrayList<>();
+        collectJoinArgs(expr, args);
+        KvinFetch fetch = null;
+        List<BindingSetAssignment> assignments = new ArrayList<>();
+        for (TupleExpr arg : args) {
+            if (arg instanceof KvinFetch && fetch == null) {
+                fetch = (KvinFetch) arg;
+            } else if (arg instanceof StatementPattern) {
+                valueStmts.add((StatementPattern) arg);
+            } else if (arg instanceof BindingSetAssignment) {
+                assignments.add((BindingSetAssignment) arg);
+            } else if (!(arg instanceof SingletonSet)) {
+                return null;
+            }
+        }
+        if (fetch == null) {
+            return null;
+        }
+        String valueName = fetch.getStatement().getObjectVar().getName();
+        for (StatementPattern stmt : valueStmts) {
+            Value pred = stmt.getPredicateVar().getValue();
+            if (!valueName.equals(stmt.getSubjectVar().getName()) ||
+                !(KVIN.VALUE.equals(pred) || KVIN.VALUE_JSON.equals(pred))) {
+                return null;
+            }
+        }
+        // values for items or properties only select the series, item and property may be the same variable
+        Set<String> seriesNames = new HashSet<>(Arrays.asList(fetch.getStatement().getSubjectVar().getName(),
+            fetch.getStatement().getPredicateVar().getName()));
+        for (BindingSetAssignment assignment : assignments) {
+            if (!seriesNames.containsAll(assignment.getBindingNames())) {
+                return null;
+            }
+        }
+        return fetch;
+    }
+
+    /**
+     * Returns the interval of a time bucket expression of the form <code>floor(?time / interval)</code>.
+     */
+    protected Long bucketInterval(ValueExpr expr, String timeName) {
+        if (!(expr instanceof FunctionCall) || !FN.NUMERIC_FLOOR.stringValue().equals(((FunctionCall) expr).getURI()) ||
+            ((FunctionCall) expr).getArgs().size() != 1) {
+            return null;
+        }
+        ValueExpr arg = ((FunctionCall) expr).getArgs().get(0);
+        if (!(arg instanceof MathExpr) || ((MathExpr) arg).getOperator() != MathExpr.MathOp.DIVIDE ||
+            !timeName.equals(varName(((MathExpr) arg).getLeftArg()))) {
+            return null;
+        }
+        Value divisor = constantValue(((MathExpr) arg).getRightArg());
+        if (divisor instanceof Literal && XMLDatatypeUtil.isIntegerDatatype(((Literal) divisor).getDatatype())) {
+            try {
+                long interval = ((Literal) divisor).longValue();
+                return interval > 0 ? interval : null;
+            } catch (NumberFormatException e) {
+                // invalid literal
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the name of the store operator that corresponds to the given aggregate of the value variable.
+     */
+    protected String aggregationOp(AggregateOperator operator, String valueName) {
+        if (operator.isDistinct() || !(operator instanceof UnaryValueOperator)) {
+            return null;
+        }
+        ValueExpr arg = ((UnaryValueOperator) operator).getArg();
+        if (operator instanceof Count) {
+            return arg == null || valueName.equals(varName(arg)) ? "count" : null;
+        } else if (!valueName.equals(varName(arg))) {
+            return null;
+        } else if (operator instanceof Avg) {
+            return "avg";
+        } else if (operator instanceof Min) {
+            return "min";
+        } else if (operator instanceof Max) {
+            return "max";
+        } else if (operator instanceof Sum) {
+            return "sum";
+        }
+        return null;
     }
 
     /*
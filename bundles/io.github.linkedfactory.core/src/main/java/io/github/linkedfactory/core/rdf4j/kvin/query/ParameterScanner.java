@@ -20,9 +20,51 @@ public class ParameterScanner extends AbstractQueryModelVisitor<RDF4JException>
 	 * @param expr The expression with parameter statements.
 	 */
 	public void process(TupleExpr expr) throws RDF4JException {
+		liftFilters(expr);
 		expr.visit(this);
 	}
 
+	/**
+	 * Moves filters that have been pushed down to parameter statements (e.g. <code>?v kvin:time ?t</code>) to the
+	 * top of their join group as the parameter statements are removed and their variables are bound by the fetch of
+	 * the corresponding value.
+	 *
+	 * @param expr The expression with parameter statements.
+	 */
+	protected void liftFilters(TupleExpr expr) throws RDF4JException {
+		List<Filter> filters = new ArrayList<>();
+		expr.visit(new AbstractQueryModelVisitor<RDF4JException>() {
+			@Override
+			public void meet(Filter node) throws RDF4JException {
+				TupleExpr arg = node.getArg();
+				while (arg instanceof Filter) {
+					arg = ((Filter) arg).getArg();
+				}
+				if (arg instanceof StatementPattern && isParameter(((StatementPattern) arg).getPredicateVar().getValue())) {
+					filters.add(node);
+				}
+				super.meet(node);
+			}
+		});
+		for (Filter filter : filters) {
+			QueryModelNode group = filter;
+			while (group.getParentNode() instanceof Join || group.getParentNode() instanceof Filter) {
+				group = group.getParentNode();
+			}
+			if (group != filter) {
+				filter.replaceWith(filter.getArg());
+				group.replaceWith(filter);
+				filter.setArg((TupleExpr) group);
+			}
+		}
+	}
+
+	protected boolean isParameter(Value predicate) {
+		return KVIN.FROM.equals(predicate) || KVIN.TO.equals(predicate) || KVIN.LIMIT.equals(predicate) ||
+				KVIN.INTERVAL.equals(predicate) || KVIN.OP.equals(predicate) || KVIN.TIME.equals(predicate) ||
+				KVIN.SEQNR.equals(predicate) || KVIN.INDEX.equals(predicate) || KVIN.PARAMS.equals(predicate);
+	}
+
 	@Override
 	public void meet(StatementPattern node) throws RDF4JException {
 		processGraphPattern(node);
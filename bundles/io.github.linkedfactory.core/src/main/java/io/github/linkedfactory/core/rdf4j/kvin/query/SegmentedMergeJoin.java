@@ -0,0 +1,162 @@
+package io.github.linkedfactory.core.rdf4j.kvin.query;
+
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.Binding;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.algebra.*;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
+import org.eclipse.rdf4j.query.algebra.evaluation.impl.StrictEvaluationStrategy;
+import org.eclipse.rdf4j.query.algebra.helpers.TupleExprs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static io.github.linkedfactory.core.rdf4j.common.Conversions.getLongValue;
+
+/**
+ * Splits a merge join on the time of KVIN fetches into joins over disjoint time segments.
+ * <p>
+ * The fetches of both join arguments are rewritten to read their time range from the bindings
+ * {@link #SEGMENT_BEGIN} and {@link #SEGMENT_END} which allows to evaluate the segments in parallel. The segments
+ * are created from the newest to the oldest values so that the concatenated results retain the order of the merge
+ * join.
+ */
+public class SegmentedMergeJoin {
+    public static final String SEGMENT_BEGIN = "_segment_begin";
+    public static final String SEGMENT_END = "_segment_end";
+
+    /**
+     * The minimum estimated number of values of the join arguments that justifies a parallel evaluation.
+     */
+    public static final double MIN_ESTIMATED_SIZE = 10000;
+
+    static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+    final TupleExpr leftArg;
+    final TupleExpr rightArg;
+    final long begin;
+    final long end;
+
+    SegmentedMergeJoin(TupleExpr leftArg, TupleExpr rightArg, long begin, long end) {
+        this.leftArg = leftArg;
+        this.rightArg = rightArg;
+        this.begin = begin;
+        this.end = end;
+    }
+
+    /**
+     * Creates a segmented variant of the given join if all its fetches are joined on the given time variable and
+     * their common time range is bounded by constants or by the values of parameters.
+     *
+     * @param parameters The values of the parameter variables.
+     * @return the segmented join or <code>null</code> if the join can not be segmented
+     */
+    public static SegmentedMergeJoin create(Join join, String timeName, BindingSet parameters) {
+        List<KvinFetch> fetches = new ArrayList<>();
+        if (!collectFetches(join, fetches)) {
+            return null;
+        }
+        long begin = Long.MIN_VALUE, end = Long.MAX_VALUE;
+        double estimatedSize = -1;
+        for (KvinFetch fetch : fetches) {
+            Parameters params = fetch.getParams();
+            Value from = params.from != null ? StrictEvaluationStrategy.getVarValue(params.from, parameters) : null;
+            Value to = params.to != null ? StrictEvaluationStrategy.getVarValue(params.to, parameters) : null;
+            // limits, aggregates and indexes depend on the whole time range
+            if (params.time == null || !params.time.getName().equals(timeName) || params.limit != null ||
+                    params.interval != null || params.aggregationFunction != null || params.index != null ||
+                    params.from != null && from == null || params.to != null && to == null) {
+                return null;
+            }
+            if (from != null) {
+                begin = Math.max(begin, getLongValue(from, Long.MIN_VALUE));
+            }
+            if (to != null) {
+                end = Math.min(end, getLongValue(to, Long.MAX_VALUE));
+            }
+            estimatedSize = fetch.getResultSizeEstimate() < 0 ? Double.POSITIVE_INFINITY :
+                    Math.max(estimatedSize, fetch.getResultSizeEstimate());
+        }
+        if (fetches.isEmpty() || begin == Long.MIN_VALUE || end == Long.MAX_VALUE || end <= begin ||
+                estimatedSize < MIN_ESTIMATED_SIZE) {
+            return null;
+        }
+
+        // rewrite the fetches of a copy of the join
+        Join copy = join.clone();
+        List<KvinFetch> copiedFetches = new ArrayList<>();
+        collectFetches(copy, copiedFetches);
+        for (KvinFetch fetch : copiedFetches) {
+            Parameters params = fetch.getParams().clone();
+            params.from = new Var(SEGMENT_BEGIN);
+            params.to = new Var(SEGMENT_END);
+            KvinFetch segmentFetch = new KvinFetch(fetch.getStatement(), params);
+            segmentFetch.setResultSizeEstimate(fetch.getResultSizeEstimate());
+            fetch.replaceWith(segmentFetch);
+        }
+        return new SegmentedMergeJoin(copy.getLeftArg(), copy.getRightArg(), begin, end);
+    }
+
+    /**
+     * Collects the fetches of the given expression and returns <code>false</code> if it contains other operators
+     * than joins, filters and extensions whose results would depend on the time segments.
+     */
+    static boolean collectFetches(TupleExpr expr, List<KvinFetch> fetches) {
+        if (expr instanceof KvinFetch) {
+            fetches.add((KvinFetch) expr);
+            return true;
+        }
+        if (!(expr instanceof Join || expr instanceof Filter || expr instanceof Extension ||
+                expr instanceof StatementPattern || expr instanceof SingletonSet ||
+                expr instanceof BindingSetAssignment)) {
+            return false;
+        }
+        for (TupleExpr child : TupleExprs.getChildren(expr)) {
+            if (!collectFetches(child, fetches)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public TupleExpr getLeftArg() {
+        return leftArg;
+    }
+
+    public TupleExpr getRightArg() {
+        return rightArg;
+    }
+
+    /**
+     * Creates the bindings for at most the given number of segments from the newest to the oldest segment.
+     */
+    public List<BindingSet> createSegments(BindingSet bindings, int count) {
+        long length = Math.max(1, (end - begin) / count + 1);
+        List<BindingSet> segments = new ArrayList<>(count);
+        for (long segmentEnd = end; segmentEnd >= begin; segmentEnd -= length) {
+            QueryBindingSet segment = new QueryBindingSet(bindings);
+            segment.setBinding(SEGMENT_BEGIN, vf.createLiteral(Math.max(begin, segmentEnd - length + 1)));
+            segment.setBinding(SEGMENT_END, vf.createLiteral(segmentEnd));
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    /**
+     * Removes the segment bindings from a result.
+     */
+    public static BindingSet removeSegmentBindings(BindingSet bs) {
+        if (!bs.hasBinding(SEGMENT_BEGIN)) {
+            return bs;
+        }
+        QueryBindingSet result = new QueryBindingSet(bs.size());
+        for (Binding binding : bs) {
+            if (!SEGMENT_BEGIN.equals(binding.getName()) && !SEGMENT_END.equals(binding.getName())) {
+                result.addBinding(binding);
+            }
+        }
+        return result;
+    }
+}
@@ -373,6 +373,64 @@ class KvinLevelDb(path: File) extends KvinLevelDbBase with Kvin {
     }
   }
 
+  /**
+   * Counts up to a fixed number of keys per series and extrapolates larger series by using the approximate size of
+   * the key range within the database files.
+   */
+  override def estimateCount(item: URI, property: URI, context: URI, end: Long, begin: Long): Long = {
+    val SCAN_LIMIT = 1000
+    val propertiesIt: IExtendedIterator[URI] = if (property == null) {
+      properties(item, context)
+    } else {
+      WrappedIterator.create(List(property).asJava.iterator())
+    }
+    val it = values.iterator
+    try {
+      var estimate = 0L
+      while (propertiesIt.hasNext) {
+        val id = toId(item, propertiesIt.next, context, false, null)
+        if (id != null) {
+          def timeKey(time: Long): Array[Byte] = {
+            val key = new Array[Byte](id.length + Varint.MAX_BYTES)
+            val bb = ByteBuffer.wrap(key).order(BYTE_ORDER)
+            bb.put(id)
+            writeVarint(bb, time)
+            util.Arrays.copyOf(key, bb.position)
+          }
+          val startKey = timeKey(end)
+          it.seek(startKey)
+          var count = 0L
+          var bytes = 0L
+          var done = false
+          while (!done && count < SCAN_LIMIT && it.hasNext) {
+            val entry = it.next
+            val key = entry.getKey
+            if (key.startsWith(id) &&
+              readVarint(ByteBuffer.wrap(key, id.length, key.length - id.length).order(BYTE_ORDER)) >= begin) {
+              count += 1
+              bytes += key.length + entry.getValue.length
+            } else done = true
+          }
+          if (!done && count == SCAN_LIMIT) {
+            // the range is sorted from newest to oldest value
+            val limitKey = if (begin > 0) timeKey(begin - 1) else {
+              val key = util.Arrays.copyOf(id, id.length + 1)
+              key(id.length) = 0xff.toByte
+              key
+            }
+            val size = values.getApproximateSizes(new Range(startKey, limitKey))(0)
+            count = Math.max(count, size * count / bytes)
+          }
+          estimate += count
+        }
+      }
+      estimate
+    } finally {
+      it.close()
+      propertiesIt.close()
+    }
+  }
+
   override def descendants(uri: URI, context: URI): IExtendedIterator[URI] = descendants(uri, context, Long.MaxValue)
 
   override def descendants(uri: URI, context: URI, limit: Long): IExtendedIterator[URI] = entries(EntryType.SubjectToId, uri, context, limit)
@@ -1,16 +1,73 @@
 package io.github.linkedfactory.core.kvin.leveldb
 
 import io.github.linkedfactory.core.kvin.KvinTuple
-import io.github.linkedfactory.core.kvin.parquet.KvinParquet
-import net.enilink.commons.iterator.IExtendedIterator
+import io.github.linkedfactory.core.kvin.parquet.{KvinParquet, KvinRollups}
+import net.enilink.commons.iterator.{IExtendedIterator, NiceIterator}
+
+class KvinLevelDbArchiver(var databaseStore: KvinLevelDb, var archiveStore: KvinParquet, var rollups: KvinRollups) extends KvinLevelDbBase {
+  def this(databaseStore: KvinLevelDb, archiveStore: KvinParquet) = this(databaseStore, archiveStore, null)
+
+  // time range of the archived values
+  private var archivedBegin = Long.MaxValue
+  private var archivedEnd = Long.MinValue
 
-class KvinLevelDbArchiver(var databaseStore: KvinLevelDb, var archiveStore: KvinParquet) extends KvinLevelDbBase {
   def archive(): Unit = {
+    archiveValues()
+    archiveRollups()
+  }
+
+  /**
+   * Writes the values of the database store to the archive.
+   */
+  def archiveValues(): Unit = {
     val dbIterator: IExtendedIterator[KvinTuple] = databaseStore.fetchAll()
     try {
-      archiveStore.put(dbIterator)
+      archiveStore.put(new NiceIterator[KvinTuple] {
+        override def hasNext: Boolean = dbIterator.hasNext
+
+        override def next(): KvinTuple = {
+          val tuple = dbIterator.next()
+          archivedBegin = Math.min(archivedBegin, tuple.time)
+          archivedEnd = Math.max(archivedEnd, tuple.time)
+          tuple
+        }
+      })
     } finally {
       dbIterator.close()
     }
   }
+
+  /**
+   * Computes the rollups for the values of the database store.
+   *
+   * This has to be called after the values have been written to the archive as completed buckets are
+   * already flushed to the tiers while the values are added. If computing the rollups fails then the
+   * time range of the archived values is marked as not covered by the rollups.
+   */
+  def archiveRollups(): Unit = {
+    if (rollups != null) {
+      try {
+        val builder = rollups.builder()
+        val dbIterator: IExtendedIterator[KvinTuple] = databaseStore.fetchAll()
+        try {
+          while (dbIterator.hasNext) {
+            builder.add(dbIterator.next())
+          }
+        } finally {
+          dbIterator.close()
+        }
+        builder.finish()
+      } catch {
+        case e: Throwable =>
+          if (archivedBegin <= archivedEnd) {
+            try {
+              rollups.markUncovered(archivedBegin, archivedEnd)
+            } catch {
+              case markFailure: Throwable => e.addSuppressed(markFailure)
+            }
+          }
+          throw e
+      }
+    }
+  }
 }
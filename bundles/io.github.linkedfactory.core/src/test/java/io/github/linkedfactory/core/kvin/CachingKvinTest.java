@@ -0,0 +1,158 @@
+package io.github.linkedfactory.core.kvin;
+
+import io.github.linkedfactory.core.kvin.leveldb.KvinLevelDb;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.komma.core.URI;
+import net.enilink.komma.core.URIs;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class CachingKvinTest {
+	final URI item = URIs.createURI("http://example.org/item1");
+	final URI property = URIs.createURI("http://example.org/value");
+	final AtomicInteger fetches = new AtomicInteger();
+	// called while values are loaded from the store
+	Runnable onFetch = () -> {};
+	File tempDir;
+	KvinLevelDb store;
+	CachingKvin kvin;
+
+	@Before
+	public void setup() throws IOException {
+		tempDir = Files.createTempDirectory("caching-kvin").toFile();
+		store = new KvinLevelDb(tempDir);
+		kvin = new CachingKvin(new DelegatingKvin(() -> store) {
+			@Override
+			public IExtendedIterator<KvinTuple> fetch(URI item, URI property, URI context, long end, long begin,
+			                                          long limit, long interval, String op) {
+				fetches.incrementAndGet();
+				onFetch.run();
+				return super.fetch(item, property, context, end, begin, limit, interval, op);
+			}
+		}, CachingKvin.DEFAULT_MAX_WEIGHT, 1000);
+		List<KvinTuple> tuples = new ArrayList<>();
+		for (long time = 0; time < 10000; time += 100) {
+			tuples.add(new KvinTuple(item, property, Kvin.DEFAULT_CONTEXT, time, time));
+		}
+		kvin.put(tuples);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		kvin.close();
+		FileUtils.deleteDirectory(tempDir);
+	}
+
+	List<KvinTuple> fetch(long end, long begin, long interval, String op) {
+		IExtendedIterator<KvinTuple> it = kvin.fetch(item, property, null, end, begin, 0, interval, op);
+		try {
+			return it.toList();
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void shouldCacheChunks() {
+		List<KvinTuple> values = fetch(4550, 1250, 0, null);
+		assertEquals(33, values.size());
+		assertEquals(4500L, values.get(0).time);
+		assertEquals(1300L, values.get(values.size() - 1).time);
+		assertEquals(1, fetches.get());
+
+		// only the missing chunks before and after the cached range are loaded
+		values = fetch(7999, 0, 0, null);
+		assertEquals(80, values.size());
+		assertEquals(7900L, values.get(0).time);
+		assertEquals(0L, values.get(values.size() - 1).time);
+		assertEquals(3, fetches.get());
+
+		fetch(7999, 0, 0, null);
+		assertEquals(3, fetches.get());
+
+		List<KvinTuple> max = fetch(7999, 0, 0, "max");
+		assertEquals(1, max.size());
+		assertEquals(7900L, ((Number) max.get(0).value).longValue());
+		assertEquals(3, fetches.get());
+	}
+
+	@Test
+	public void shouldInvalidateChunks() {
+		fetch(9999, 0, 0, null);
+		assertEquals(1, fetches.get());
+
+		// writes through the cache invalidate the affected chunk
+		kvin.put(new KvinTuple(item, property, null, 5050, 1L));
+		List<KvinTuple> values = fetch(5999, 5000, 0, null);
+		assertEquals(11, values.size());
+		assertEquals(2, fetches.get());
+
+		// writes to the underlying store are propagated by its listeners
+		store.put(Collections.singletonList(new KvinTuple(item, property, null, 5075, 2L)));
+		assertEquals(12, fetch(5999, 5000, 0, null).size());
+		assertEquals(3, fetches.get());
+
+		kvin.delete(item, property, null, 5999, 5000);
+		assertEquals(0, fetch(5999, 5000, 0, null).size());
+		assertEquals(90, fetch(9999, 0, 0, null).size());
+	}
+
+	@Test
+	public void shouldCacheChunksIfOtherSeriesChange() {
+		URI otherItem = URIs.createURI("http://example.org/item2");
+		onFetch = () -> kvin.invalidate(otherItem, property, null, 500);
+		fetch(999, 0, 0, null);
+		assertEquals(1, fetches.get());
+		fetch(999, 0, 0, null);
+		assertEquals(1, fetches.get());
+
+		// chunks of a series that is changed while being loaded are not cached
+		onFetch = () -> kvin.invalidate(item, property, null, 1500);
+		fetch(1999, 1000, 0, null);
+		assertEquals(2, fetches.get());
+		onFetch = () -> {};
+		fetch(1999, 1000, 0, null);
+		assertEquals(3, fetches.get());
+		fetch(1999, 1000, 0, null);
+		assertEquals(3, fetches.get());
+	}
+
+	@Test
+	public void shouldExpireChunksWithoutListeners() throws InterruptedException {
+		// the store is closed by the new decorator
+		kvin = new CachingKvin(new DelegatingKvin(() -> store) {
+			@Override
+			public boolean addListener(KvinListener listener) {
+				return false;
+			}
+
+			@Override
+			public IExtendedIterator<KvinTuple> fetch(URI item, URI property, URI context, long end, long begin,
+			                                          long limit, long interval, String op) {
+				fetches.incrementAndGet();
+				return super.fetch(item, property, context, end, begin, limit, interval, op);
+			}
+		}, CachingKvin.DEFAULT_MAX_WEIGHT, 1000, 500);
+		assertEquals(10, fetch(999, 0, 0, null).size());
+		assertEquals(10, fetch(999, 0, 0, null).size());
+		assertEquals(1, fetches.get());
+
+		// changes of the store are visible after the expiry
+		store.put(Collections.singletonList(new KvinTuple(item, property, null, 550, 1L)));
+		Thread.sleep(600);
+		assertEquals(11, fetch(999, 0, 0, null).size());
+		assertEquals(2, fetches.get());
+	}
+}
@@ -0,0 +1,87 @@
+package io.github.linkedfactory.core.kvin.memory;
+
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.komma.core.URI;
+import net.enilink.komma.core.URIs;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests for the features that are specific to {@link KvinMemory}, the common behavior is tested by
+ * KvinMemoryBaseTest.
+ */
+public class KvinMemoryTest {
+	static <T> List<T> toList(IExtendedIterator<T> it) {
+		try {
+			return it.toList();
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void shouldEstimateCount() {
+		KvinMemory kvin = new KvinMemory();
+		URI item = URIs.createURI("http://example.org/item");
+		URI property = URIs.createURI("http://example.org/value");
+		URI otherProperty = URIs.createURI("http://example.org/other");
+		for (long time = 0; time < 100; time++) {
+			kvin.put(new KvinTuple(item, property, null, time, (double) time));
+			if (time % 10 == 0) {
+				kvin.put(new KvinTuple(item, otherProperty, null, time, (double) time));
+			}
+		}
+
+		assertEquals(100, kvin.estimateCount(item, property, null, KvinTuple.TIME_MAX_VALUE, 0));
+		assertEquals(11, kvin.estimateCount(item, property, null, 20, 10));
+		assertEquals(1, kvin.estimateCount(item, property, null, 50, 50));
+		assertEquals(110, kvin.estimateCount(item, null, null, KvinTuple.TIME_MAX_VALUE, 0));
+		assertEquals(0, kvin.estimateCount(URIs.createURI("http://example.org/other"), property, null,
+				KvinTuple.TIME_MAX_VALUE, 0));
+	}
+
+	@Test
+	public void shouldKeepMostRecentValues() {
+		KvinMemory kvin = new KvinMemory(100);
+		URI item = URIs.createURI("http://example.org/item");
+		URI property = URIs.createURI("http://example.org/value");
+		List<KvinTuple> tuples = new ArrayList<>();
+		for (long time = 0; time < 1000; time += 2) {
+			tuples.add(new KvinTuple(item, property, null, time, time));
+		}
+		// odd times are inserted out of order between the existing values
+		for (long time = 999; time > 0; time -= 2) {
+			tuples.add(new KvinTuple(item, property, null, time, (double) time));
+		}
+		kvin.put(tuples);
+
+		List<KvinTuple> values = toList(kvin.fetch(item, property, null, 0));
+		assertEquals(100, values.size());
+		for (int i = 0; i < values.size(); i++) {
+			assertEquals(999L - i, values.get(i).time);
+			Object expected = values.get(i).time % 2 == 0 ? (Object) values.get(i).time : (Object) (double) values.get(i).time;
+			assertEquals(expected, values.get(i).value);
+		}
+
+		// interval without operator returns the latest value of each interval
+		values = toList(kvin.fetch(item, property, null, 999, 900, 0, 10, null));
+		assertEquals(10, values.size());
+		assertEquals(990L, values.get(0).time);
+		assertEquals(999.0, values.get(0).value);
+
+		values = toList(kvin.fetch(item, property, null, 999, 900, 0, 50, "max"));
+		assertEquals(2, values.size());
+		assertEquals(999.0, ((Number) values.get(0).value).doubleValue(), 0);
+		assertEquals(949.0, ((Number) values.get(1).value).doubleValue(), 0);
+
+		assertEquals(10, kvin.delete(item, property, null, 999, 990));
+		assertEquals(989L, toList(kvin.fetch(item, property, null, 1)).get(0).time);
+		assertTrue(kvin.delete(item, null));
+		assertTrue(toList(kvin.fetch(item, property, null, 0)).isEmpty());
+		assertTrue(toList(kvin.descendants(item, null)).isEmpty());
+	}
+}
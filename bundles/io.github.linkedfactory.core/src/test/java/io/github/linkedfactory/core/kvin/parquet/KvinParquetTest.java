@@ -3,17 +3,43 @@ package io.github.linkedfactory.core.kvin.parquet;
 import io.github.linkedfactory.core.kvin.Kvin;
 import io.github.linkedfactory.core.kvin.KvinTuple;
 import io.github.linkedfactory.core.kvin.Record;
+import io.github.linkedfactory.core.kvin.RetentionPolicy;
+import io.github.linkedfactory.core.kvin.leveldb.KvinLevelDb;
+import io.github.linkedfactory.core.kvin.parquet.records.KvinRecord;
 import io.github.linkedfactory.core.kvin.util.KvinTupleGenerator;
 import net.enilink.commons.iterator.IExtendedIterator;
 import net.enilink.komma.core.URI;
 import net.enilink.komma.core.URIs;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
 import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.column.Encoding;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.ColumnChunkMetaData;
+import org.apache.parquet.hadoop.metadata.ColumnPath;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.hadoop.util.HadoopInputFile;
+import org.eclipse.rdf4j.common.concurrent.locks.Lock;
 import org.junit.*;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
 
@@ -102,6 +128,31 @@ public class KvinParquetTest {
 		tuples.close();
 	}
 
+	@Test
+	public void shouldDoBatchedFetch() {
+		List<URI> items = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			items.add(URIs.createURI("http://localhost:8080/linkedfactory/demofactory/" + (i * 7 + 1)));
+		}
+		// unknown items are ignored
+		items.add(URIs.createURI("http://localhost:8080/linkedfactory/demofactory/unknown"));
+		List<URI> properties = List.of(URIs.createURI("http://example.org/1"),
+				URIs.createURI("http://example.org/4"), URIs.createURI("http://example.org/9"));
+
+		List<KvinTuple> tuples = kvinParquet.fetch(items, properties, Kvin.DEFAULT_CONTEXT,
+				KvinTuple.TIME_MAX_VALUE, 0, 0, 0, null).toList();
+		assertEquals(20 * 3 * 10, tuples.size());
+		assertTrue(tuples.stream().allMatch(t -> items.contains(t.item) && properties.contains(t.property)));
+
+		LongSetPredicate ids = new LongSetPredicate(new long[]{9, 0, 3, 3, 20});
+		assertEquals(3, ids.size());
+		assertTrue(ids.keep(20L));
+		assertFalse(ids.keep(4L));
+		assertTrue(ids.canDrop(new org.apache.parquet.filter2.predicate.Statistics<>(10L, 19L)));
+		assertFalse(ids.canDrop(new org.apache.parquet.filter2.predicate.Statistics<>(10L, 20L)));
+		assertTrue(ids.canDrop(new org.apache.parquet.filter2.predicate.Statistics<>(21L, 30L)));
+	}
+
 	@Test
 	public void shouldDoFetchWithLimit() {
 		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/3");
@@ -139,6 +190,371 @@ public class KvinParquetTest {
 		assertEquals(1, dataFiles.length);
 	}
 
+	@Test
+	public void parallelCompactionTest() throws IOException {
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/existing-week/1");
+		List<KvinTuple> before = kvinParquet.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList();
+
+		new Compactor(kvinParquet, 1, 1, 4).execute();
+
+		assertFalse(new File(kvinParquet.archiveLocation, ".compaction").exists());
+		File[] dataFiles = getNonSeqInsertFolder().listFiles((file, s) -> s.endsWith(".parquet"));
+		assertEquals(1, dataFiles.length);
+		File newWeekFolder = new File(new File(tempDir, "2023"), "42");
+		assertEquals(1, newWeekFolder.listFiles((file, s) -> s.endsWith(".parquet")).length);
+
+		List<KvinTuple> after = kvinParquet.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList();
+		assertEquals(before.size(), after.size());
+		// compare keys as array values do not implement equals
+		Function<KvinTuple, String> key = t -> t.property + "@" + t.time + "/" + t.seqNr;
+		assertEquals(before.stream().map(key).collect(Collectors.toSet()),
+				after.stream().map(key).collect(Collectors.toSet()));
+	}
+
+	@Test
+	public void shouldRemovePartialFilesOfFailedCompaction() throws IOException {
+		File[] dataFiles = getNonSeqInsertFolder().listFiles((file, s) -> s.startsWith("data__"));
+		assertEquals(2, dataFiles.length);
+		// a corrupt data file lets its merge fail while the other merges are running
+		File corruptFile = new File(getNonSeqInsertFolder(), "data__2.parquet");
+		byte[] bytes = Files.readAllBytes(corruptFile.toPath());
+		Arrays.fill(bytes, 4, bytes.length / 2, (byte) 0xFF);
+		Files.write(corruptFile.toPath(), bytes);
+
+		try {
+			new Compactor(kvinParquet, 1, 1, 4).execute();
+			fail("Compaction should fail for corrupt data files");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(new File(kvinParquet.archiveLocation, ".compaction").exists());
+		assertEquals(2, getNonSeqInsertFolder().listFiles((file, s) -> s.startsWith("data__")).length);
+	}
+
+	@Test
+	public void tieredCompactionTest() throws IOException {
+		File nonSeqFolder = getNonSeqInsertFolder();
+		File largeFile = new File(nonSeqFolder, "data__1.parquet");
+		long largeFileSize = largeFile.length();
+
+		// the large and the small file are in different tiers
+		new Compactor(kvinParquet, 2, 3).setSmallFileSize(0).execute();
+		assertEquals(2, nonSeqFolder.listFiles((file, s) -> s.endsWith(".parquet")).length);
+
+		kvinParquet.put(tupleGenerator.setStartTime(startTime)
+				.setItems(10)
+				.setPropertiesPerItem(10)
+				.setValuesPerProperty(10)
+				.setItemPattern("http://localhost:8080/linkedfactory/demofactory/existing-week-2/{}")
+				.setPropertyPattern("http://example.org/{}")
+				.generate());
+		assertEquals(3, nonSeqFolder.listFiles((file, s) -> s.endsWith(".parquet")).length);
+
+		// only the two small files are merged
+		new Compactor(kvinParquet, 2, 3).setSmallFileSize(0).execute();
+		assertEquals(2, nonSeqFolder.listFiles((file, s) -> s.endsWith(".parquet")).length);
+		assertEquals(largeFileSize, largeFile.length());
+
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/existing-week-2/1");
+		assertEquals(100, kvinParquet.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+		item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/existing-week/1");
+		assertEquals(100, kvinParquet.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+	}
+
+	@Test
+	public void shouldWriteWithEncodingProfile() throws IOException {
+		KvinParquet sensorArchive = new KvinParquet(new File(tempDir, "sensor").toString(), EncodingProfile.SENSOR_DATA);
+		sensorArchive.put(tupleGenerator.setStartTime(startTime)
+				.setItems(10)
+				.setPropertiesPerItem(10)
+				.setValuesPerProperty(10)
+				.setItemPattern("http://localhost:8080/linkedfactory/demofactory/{}")
+				.setPropertyPattern("http://example.org/{}")
+				.generate());
+
+		File dataFile = new File(new File(new File(new File(tempDir, "sensor"), "2023"), "40"), "data__1.parquet");
+		try (ParquetFileReader reader = ParquetFileReader.open(
+				HadoopInputFile.fromPath(new Path(dataFile.toString()), new Configuration()))) {
+			for (ColumnChunkMetaData column : reader.getFooter().getBlocks().get(0).getColumns()) {
+				assertEquals(CompressionCodecName.ZSTD, column.getCodec());
+				if (column.getPath().equals(ColumnPath.get("time"))) {
+					assertTrue(column.getEncodings().contains(Encoding.DELTA_BINARY_PACKED));
+				} else if (column.getPath().equals(ColumnPath.get("valueDouble"))) {
+					assertTrue(column.getEncodings().contains(Encoding.BYTE_STREAM_SPLIT));
+				}
+			}
+		}
+
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/1");
+		assertEquals(100, sensorArchive.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+	}
+
+	@Test
+	public void shouldSortRecordsOnWrite() {
+		File archiveDir = new File(tempDir, "sorted");
+		KvinParquet sortedArchive = new KvinParquet(archiveDir.toString());
+		// force multiple spilled runs
+		sortedArchive.setSortBufferSize(100);
+		List<KvinTuple> tuples = tupleGenerator.setStartTime(startTime)
+				.setItems(20)
+				.setPropertiesPerItem(5)
+				.setValuesPerProperty(10)
+				.setItemPattern("http://localhost:8080/linkedfactory/demofactory/{}")
+				.setPropertyPattern("http://example.org/{}")
+				.generate().toList();
+		Collections.shuffle(tuples, new Random(42));
+		sortedArchive.put(tuples);
+
+		Path dataFile = new Path(new File(new File(new File(archiveDir, "2023"), "40"), "data__1.parquet").toString());
+		List<KvinRecord> records = ParquetHelpers.createKvinRecordReader(dataFile, null).toList();
+		assertEquals(tuples.size(), records.size());
+		for (int i = 1; i < records.size(); i++) {
+			assertTrue(records.get(i - 1).compareTo(records.get(i)) <= 0);
+		}
+		assertFalse(new File(archiveDir, ".tmp").exists());
+
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/7");
+		assertEquals(50, sortedArchive.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+	}
+
+	@Test
+	public void shouldKeepCachesAfterPut() throws IOException {
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/1");
+		assertEquals(100, kvinParquet.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+		assertTrue(kvinParquet.inputFileCache.size() > 0);
+
+		// the ids of new items are looked up while writing
+		kvinParquet.put(tupleGenerator.setStartTime(startTime)
+				.setItems(5)
+				.setPropertiesPerItem(2)
+				.setValuesPerProperty(3)
+				.setItemPattern("http://localhost:8080/linkedfactory/demofactory/added/{}")
+				.setPropertyPattern("http://example.org/{}")
+				.generate());
+		// footers of unchanged files are still cached
+		assertTrue(kvinParquet.inputFileCache.size() > 0);
+
+		URI addedItem = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/added/2");
+		assertEquals(6, kvinParquet.fetch(addedItem, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+		assertEquals(100, kvinParquet.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+
+		new Compactor(kvinParquet, 1, 1).execute();
+		assertEquals(6, kvinParquet.fetch(addedItem, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+		assertEquals(100, kvinParquet.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+	}
+
+	@Test
+	public void shouldUseItemCatalog() throws IOException {
+		URI parent = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/new-week/");
+		assertEquals(10, kvinParquet.descendants(parent, Kvin.DEFAULT_CONTEXT).toList().size());
+		assertEquals(3, kvinParquet.descendants(parent, Kvin.DEFAULT_CONTEXT, 3).toList().size());
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/new-week/1");
+		assertEquals(10, kvinParquet.properties(item, Kvin.DEFAULT_CONTEXT).toList().size());
+
+		// each write adds a catalog file
+		File catalogFolder = new File(new File(tempDir, "metadata"), ItemCatalog.CATALOG_FOLDER);
+		assertEquals(3, catalogFolder.listFiles((file, s) -> s.endsWith(".parquet")).length);
+		new Compactor(kvinParquet, 1, 1).execute();
+		assertEquals(1, catalogFolder.listFiles((file, s) -> s.endsWith(".parquet")).length);
+		assertEquals(10, kvinParquet.descendants(parent, Kvin.DEFAULT_CONTEXT).toList().size());
+
+		// the catalog is created in the background for archives without catalog
+		FileUtils.deleteDirectory(catalogFolder);
+		KvinParquet reopened = new KvinParquet(tempDir.toString());
+		// properties are determined by scanning the data files until the catalog is ready
+		assertEquals(10, reopened.properties(item, Kvin.DEFAULT_CONTEXT).toList().size());
+		reopened.catalogCreation.join();
+		assertTrue(reopened.isCatalogReady());
+		assertEquals(1, catalogFolder.listFiles((file, s) -> s.endsWith(".parquet")).length);
+		assertEquals(10, reopened.descendants(parent, Kvin.DEFAULT_CONTEXT).toList().size());
+		assertEquals(10, reopened.properties(item, Kvin.DEFAULT_CONTEXT).toList().size());
+		CatalogEntry entry = reopened.getCatalog().get(item.toString(), 1L);
+		assertEquals(1697407200000L, entry.getMinTime());
+
+		// an interrupted creation is restarted even if catalog files have been written in the meantime
+		File markerFile = new File(new File(tempDir, "metadata"), ".catalog-incomplete");
+		assertFalse(markerFile.exists());
+		assertTrue(markerFile.createNewFile());
+		reopened = new KvinParquet(tempDir.toString());
+		reopened.catalogCreation.join();
+		assertFalse(markerFile.exists());
+		assertEquals(2, catalogFolder.listFiles((file, s) -> s.endsWith(".parquet")).length);
+		assertEquals(10, reopened.descendants(parent, Kvin.DEFAULT_CONTEXT).toList().size());
+	}
+
+	@Test
+	public void shouldEstimateCount() throws IOException {
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/new-week/1");
+		URI property = URIs.createURI("http://example.org/1");
+		long end = KvinTuple.TIME_MAX_VALUE;
+		assertEquals(100, kvinParquet.estimateCount(item, null, Kvin.DEFAULT_CONTEXT, end, 0));
+		assertEquals(10, kvinParquet.estimateCount(item, property, Kvin.DEFAULT_CONTEXT, end, 0));
+		assertEquals(0, kvinParquet.estimateCount(item, null, Kvin.DEFAULT_CONTEXT, 1697407200000L - 1, 0));
+		assertEquals(0, kvinParquet.estimateCount(item, URIs.createURI("http://example.org/unknown"),
+				Kvin.DEFAULT_CONTEXT, end, 0));
+		assertEquals(0, kvinParquet.estimateCount(URIs.createURI("http://localhost:8080/unknown"), null,
+				Kvin.DEFAULT_CONTEXT, end, 0));
+
+		// catalogs that were written without value counts do not provide estimates
+		File catalogFolder = new File(new File(tempDir, "metadata"), ItemCatalog.CATALOG_FOLDER);
+		FileUtils.deleteDirectory(catalogFolder);
+		Schema legacySchema = Schema.createRecord(ItemCatalog.catalogSchema.getName(), null,
+				ItemCatalog.catalogSchema.getNamespace(), false, ItemCatalog.catalogSchema.getFields().stream()
+						.filter(f -> !f.name().equals("valueCount"))
+						.map(f -> new Schema.Field(f.name(), f.schema(), f.doc(), f.defaultVal()))
+						.collect(Collectors.toList()));
+		try (ParquetWriter<GenericRecord> writer = AvroParquetWriter.<GenericRecord>builder(
+				new Path(new File(catalogFolder, ItemCatalog.CATALOG_TYPE + "__1.parquet").toString()))
+				.withSchema(legacySchema).build()) {
+			GenericRecord entry = new GenericData.Record(legacySchema);
+			entry.put("item", item.toString());
+			entry.put("contextId", 1L);
+			entry.put("propertyIds", List.of(1L));
+			entry.put("minTime", 1697407200000L);
+			entry.put("maxTime", 1697407200000L);
+			writer.write(entry);
+		}
+		KvinParquet reopened = new KvinParquet(tempDir.toString());
+		assertEquals(-1, reopened.estimateCount(item, null, Kvin.DEFAULT_CONTEXT, end, 0));
+		assertEquals(1, reopened.properties(item, Kvin.DEFAULT_CONTEXT).toList().size());
+	}
+
+	@Test
+	public void shouldApplyRetentionPolicy() throws IOException {
+		long now = 1697407200000L + Duration.ofDays(7).toMillis();
+		String existingWeek = "http://localhost:8080/linkedfactory/demofactory/existing-week/";
+		RetentionPolicy policy = new RetentionPolicy()
+				.addRule(null, null, Duration.ofDays(7))
+				.addRule(Kvin.DEFAULT_CONTEXT, existingWeek, Duration.ofDays(30));
+		// week 40 is only partially expired, the file with the values of the first write is completely removed
+		assertEquals(1, kvinParquet.applyRetention(policy, now));
+		assertEquals(1, getNonSeqInsertFolder().listFiles((file, s) -> s.startsWith("data__")).length);
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/1");
+		assertEquals(0, kvinParquet.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+		assertEquals(100, kvinParquet.fetch(URIs.createURI(existingWeek + "1"), null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+
+		// the catalog reflects the removed values and a repeated run does not rewrite any files
+		assertNull(kvinParquet.getCatalog().get(item.toString(), 1L));
+		assertNull(new KvinParquet(tempDir.toString()).getCatalog().get(item.toString(), 1L));
+		File dataFile = getNonSeqInsertFolder().listFiles((file, s) -> s.startsWith("data__"))[0];
+		long lastModified = dataFile.lastModified();
+		assertEquals(0, kvinParquet.applyRetention(policy, now));
+		assertEquals(lastModified, dataFile.lastModified());
+
+		// week 40 is dropped as a whole
+		assertEquals(1, kvinParquet.applyRetention(new RetentionPolicy().addRule(null, "", Duration.ofDays(7)), now));
+		assertFalse(getNonSeqInsertFolder().exists());
+		assertEquals(0, kvinParquet.fetch(URIs.createURI(existingWeek + "1"), null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+		URI newWeekItem = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/new-week/1");
+		assertEquals(100, kvinParquet.fetch(newWeekItem, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+
+		// range deletes within the hot store
+		KvinLevelDb levelDb = new KvinLevelDb(new File(tempDir, "leveldb"));
+		try {
+			levelDb.put(tupleGenerator.setStartTime(startTime)
+					.setItems(2)
+					.setPropertiesPerItem(2)
+					.setValuesPerProperty(10)
+					.setItemPattern("http://localhost:8080/linkedfactory/demofactory/{}")
+					.setPropertyPattern("http://example.org/{}")
+					.generate());
+			// the values of the first item are written before the values of the second item
+			assertEquals(20, new RetentionPolicy().addRule(null, null, Duration.ofMillis(50))
+					.apply(levelDb, startTime + 250));
+			assertEquals(0, levelDb.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+			URI secondItem = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/2");
+			assertEquals(20, levelDb.fetch(secondItem, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+		} finally {
+			levelDb.close();
+		}
+	}
+
+	@Test
+	public void shouldSkipRetentionForChangedFiles() throws IOException {
+		long now = 1697407200000L + Duration.ofDays(7).toMillis();
+		boolean[] changeFiles = {true};
+		// the data files are replaced between determining and applying the changes
+		KvinParquet changingParquet = new KvinParquet(tempDir.toString()) {
+			@Override
+			Lock writeLock() throws IOException {
+				if (changeFiles[0]) {
+					for (File dataFile : getNonSeqInsertFolder().listFiles((file, s) -> s.startsWith("data__"))) {
+						assertTrue(dataFile.setLastModified(dataFile.lastModified() + 10000));
+					}
+				}
+				return super.writeLock();
+			}
+		};
+		RetentionPolicy policy = new RetentionPolicy()
+				.addRule(null, null, Duration.ofDays(7))
+				.addRule(Kvin.DEFAULT_CONTEXT, "http://localhost:8080/linkedfactory/demofactory/existing-week/",
+						Duration.ofDays(30));
+		RetentionPolicy dropPolicy = new RetentionPolicy().addRule(null, "", Duration.ofDays(7));
+		int dataFiles = getNonSeqInsertFolder().listFiles((file, s) -> s.startsWith("data__")).length;
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/1");
+		assertEquals(0, changingParquet.applyRetention(policy, now));
+		assertEquals(0, changingParquet.applyRetention(dropPolicy, now));
+		assertEquals(dataFiles, getNonSeqInsertFolder().listFiles((file, s) -> s.startsWith("data__")).length);
+		assertNotNull(changingParquet.getCatalog().get(item.toString(), 1L));
+
+		// the skipped changes are applied by the next run
+		changeFiles[0] = false;
+		assertEquals(1, changingParquet.applyRetention(policy, now));
+		assertNull(changingParquet.getCatalog().get(item.toString(), 1L));
+	}
+
+	@Test
+	public void shouldReadLocalFilesWithNio() throws IOException {
+		Path dataFile = new Path(new File(new File(new File(tempDir, "2023"), "40"), "data__1.parquet").toString());
+		assertTrue(ParquetHelpers.getInputFile(dataFile) instanceof NioInputFile);
+		try (ParquetFileReader nioReader = ParquetFileReader.open(ParquetHelpers.getInputFile(dataFile));
+		     ParquetFileReader hadoopReader = ParquetFileReader.open(
+				     HadoopInputFile.fromPath(dataFile, new Configuration()))) {
+			assertEquals(hadoopReader.getRecordCount(), nioReader.getRecordCount());
+			assertEquals(hadoopReader.getFooter().getBlocks().size(), nioReader.getFooter().getBlocks().size());
+		}
+		assertEquals(500 * 10 * 10, ParquetHelpers.createKvinRecordReader(dataFile, null).toList().size());
+
+		DirectBufferPool pool = new DirectBufferPool(1024 * 1024);
+		java.nio.ByteBuffer buffer = pool.allocate(5000);
+		assertEquals(5000, buffer.remaining());
+		pool.release(buffer);
+		assertSame(buffer, pool.allocate(8000));
+	}
+
+	@Test
+	public void shouldUseRecordedPartitioning() {
+		File archiveDir = new File(tempDir, "daily");
+		KvinParquet dailyArchive = new KvinParquet(archiveDir.toString(), EncodingProfile.DEFAULT, Partitioning.DAY);
+		dailyArchive.put(tupleGenerator.setStartTime(startTime)
+				.setItems(10)
+				.setPropertiesPerItem(10)
+				.setValuesPerProperty(10)
+				.setItemPattern("http://localhost:8080/linkedfactory/demofactory/{}")
+				.setPropertyPattern("http://example.org/{}")
+				.generate());
+		String day = String.format("%03d", Instant.ofEpochMilli(startTime).atZone(ZoneId.systemDefault()).getDayOfYear());
+		assertTrue(new File(new File(archiveDir, "2023"), day).isDirectory());
+
+		KvinParquet reopened = new KvinParquet(archiveDir.toString(), EncodingProfile.DEFAULT, Partitioning.MONTH);
+		assertSame(Partitioning.DAY, reopened.getPartitioning());
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/1");
+		assertEquals(100, reopened.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList().size());
+	}
+
+	@Test
+	public void shouldSkipPartitionsOutsideOfTimeRange() {
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/new-week/1");
+		URI property = URIs.createURI("http://example.org/1");
+		assertEquals(10, kvinParquet.fetch(item, property, Kvin.DEFAULT_CONTEXT,
+				KvinTuple.TIME_MAX_VALUE, 0, 0, 0, null).toList().size());
+		// the week of 16.10.2023 is not part of the time range
+		assertEquals(0, kvinParquet.fetch(item, property, Kvin.DEFAULT_CONTEXT,
+				1697407200000L - 1, startTime, 0, 0, null).toList().size());
+		assertEquals(10, kvinParquet.fetch(item, property, Kvin.DEFAULT_CONTEXT,
+				1697407200000L + 1000, 1697407200000L, 0, 0, null).toList().size());
+	}
+
 	@Test
 	public void shouldFetchProperties() {
 		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/1");
@@ -163,4 +579,42 @@ public class KvinParquetTest {
 		assertEquals(record, list.get(0).value);
 	}
 
+	@Test
+	public void shouldEncodeRecordPropertiesWithIds() throws IOException {
+		File archiveDir = new File(tempDir, "records");
+		KvinParquet recordArchive = new KvinParquet(archiveDir.toString());
+		URI item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/1");
+		URI property = URIs.createURI("some:property");
+		URI p1 = URIs.createURI("property:p1");
+		List<KvinTuple> tuples = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			var record = new Record(p1, i % 3)
+					.append(new Record(URIs.createURI("property:p2"), new Record(p1, "nested" + i)))
+					.append(new Record(property, URIs.createURI("some:uri")));
+			tuples.add(new KvinTuple(item, property, Kvin.DEFAULT_CONTEXT, startTime + i, record));
+		}
+		recordArchive.put(tuples);
+
+		List<KvinTuple> fetched = recordArchive.fetch(item, property, Kvin.DEFAULT_CONTEXT, 0).toList();
+		assertEquals(100, fetched.size());
+		// values are returned in descending order of time
+		assertEquals(tuples.get(99).value, fetched.get(0).value);
+		assertEquals(tuples.get(0).value, fetched.get(99).value);
+
+		// the property URIs are not contained within the encoded records
+		Path dataFile = new Path(new File(new File(new File(archiveDir, "2023"), "40"), "data__1.parquet").toString());
+		byte[] uriBytes = p1.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
+		for (KvinRecord record : ParquetHelpers.createKvinRecordReader(dataFile, null).toList()) {
+			java.nio.ByteBuffer value = (java.nio.ByteBuffer) record.value;
+			assertEquals('P', value.get(value.position()));
+			byte[] bytes = new byte[value.remaining()];
+			value.duplicate().get(bytes);
+			assertFalse(new String(bytes, java.nio.charset.StandardCharsets.ISO_8859_1)
+					.contains(new String(uriBytes, java.nio.charset.StandardCharsets.ISO_8859_1)));
+		}
+
+		// records with property URIs can still be decoded
+		Object legacy = Records.decodeRecord(java.nio.ByteBuffer.wrap(Records.encodeRecord(tuples.get(0).value)));
+		assertEquals(tuples.get(0).value, legacy);
+	}
 }
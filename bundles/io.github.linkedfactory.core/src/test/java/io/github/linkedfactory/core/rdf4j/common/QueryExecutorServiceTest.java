@@ -0,0 +1,96 @@
+package io.github.linkedfactory.core.rdf4j.common;
+
+import io.github.linkedfactory.core.rdf4j.common.query.AsyncIterator;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class QueryExecutorServiceTest {
+	ThreadPoolExecutor sharedExecutor;
+
+	@Before
+	public void setup() {
+		sharedExecutor = QueryExecutorService.createSharedExecutor(4);
+	}
+
+	@After
+	public void tearDown() {
+		sharedExecutor.shutdownNow();
+	}
+
+	@Test
+	public void shouldLimitParallelTasks() throws Exception {
+		QueryExecutorService executor = new QueryExecutorService(sharedExecutor, 2);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			futures.add(executor.submit(() -> {
+				maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+				running.decrementAndGet();
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+		assertEquals(2, maxRunning.get());
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void shouldOnlySubmitRunnableTasks() throws Exception {
+		AtomicInteger submitted = new AtomicInteger();
+		QueryExecutorService executor = new QueryExecutorService(command -> {
+			submitted.incrementAndGet();
+			sharedExecutor.execute(command);
+		}, 2);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(executor.submit(() -> {
+			}));
+		}
+		for (Future<?> future : futures) {
+			future.get(10, TimeUnit.SECONDS);
+		}
+		// each submission to the shared executor runs exactly one task
+		assertEquals(100, submitted.get());
+		assertEquals(100, executor.getExecutedTasks());
+	}
+
+	@Test
+	public void shouldNotDeadlockWithNestedTasks() {
+		// a budget of one task requires nested iterators to be evaluated by their consumers
+		QueryExecutorService executor = new QueryExecutorService(sharedExecutor, 1);
+		AsyncIterator<Integer> outer = new AsyncIterator<>(() -> {
+			List<Integer> values = new ArrayList<>();
+			AsyncIterator<Integer> inner = new AsyncIterator<>(() -> new CloseableIteratorIteration<>(
+					IntStream.range(0, 500).boxed().collect(Collectors.toList()).iterator()), () -> executor);
+			while (inner.hasNext()) {
+				values.add(inner.next());
+			}
+			inner.close();
+			return new CloseableIteratorIteration<>(values.iterator());
+		}, () -> executor);
+		int count = 0;
+		while (outer.hasNext()) {
+			assertEquals(count++, outer.next().intValue());
+		}
+		assertEquals(500, count);
+	}
+}
@@ -0,0 +1,136 @@
+package io.github.linkedfactory.core.rdf4j.common.query;
+
+import io.github.linkedfactory.core.kvin.Kvin;
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import io.github.linkedfactory.core.kvin.Record;
+import io.github.linkedfactory.core.rdf4j.common.BNodeWithValue;
+import io.github.linkedfactory.core.rdf4j.common.HasValue;
+import net.enilink.komma.core.URI;
+import net.enilink.komma.core.URIs;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class GraceHashJoinIterationTest {
+	static final ValueFactory vf = SimpleValueFactory.getInstance();
+
+	List<BindingSet> series(String valueName, int count, int step) {
+		List<BindingSet> result = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			long time = (long) i * step;
+			QueryBindingSet bs = new QueryBindingSet();
+			bs.addBinding("time", vf.createLiteral(time));
+			bs.addBinding(valueName, vf.createLiteral("value " + i, "en"));
+			bs.addBinding("item", vf.createIRI("http://example.org/item-" + (time % 5)));
+			bs.addBinding("data", time % 4 == 0 ? vf.createBNode("b" + time) : BNodeWithValue.create(time, true));
+			result.add(bs);
+		}
+		return result;
+	}
+
+	List<BindingSet> join(List<BindingSet> left, List<BindingSet> right, long maxMemory, int[] spilledPartitions) {
+		GraceHashJoinIteration join = new GraceHashJoinIteration(new CloseableIteratorIteration<>(left.iterator()),
+				new CloseableIteratorIteration<>(right.iterator()), new String[]{"time"}, maxMemory);
+		List<BindingSet> results = new ArrayList<>();
+		while (join.hasNext()) {
+			results.add(join.next());
+		}
+		join.close();
+		spilledPartitions[0] = join.spilledPartitions;
+		return results;
+	}
+
+	@Test
+	public void shouldJoinWithinMemoryLimit() {
+		List<BindingSet> left = series("a", 5000, 2);
+		List<BindingSet> right = series("b", 5000, 3);
+		// every sixth time stamp is joined
+		Set<BindingSet> expected = new HashSet<>();
+		for (BindingSet l : left) {
+			for (BindingSet r : right) {
+				if (l.getValue("time").equals(r.getValue("time")) && l.getValue("item").equals(r.getValue("item")) &&
+						l.getValue("data").equals(r.getValue("data"))) {
+					QueryBindingSet bs = new QueryBindingSet(l);
+					bs.addBinding("b", r.getValue("b"));
+					expected.add(bs);
+				}
+			}
+		}
+
+		int[] spilledPartitions = new int[1];
+		List<BindingSet> inMemory = join(left, right, GraceHashJoinIteration.DEFAULT_MAX_MEMORY, spilledPartitions);
+		assertEquals(0, spilledPartitions[0]);
+		assertEquals(1667, expected.size());
+		assertEquals(expected, new HashSet<>(inMemory));
+
+		List<BindingSet> spilled = join(left, right, 10000, spilledPartitions);
+		assertTrue(spilledPartitions[0] > GraceHashJoinIteration.PARTITIONS);
+		assertEquals(inMemory.size(), spilled.size());
+		assertEquals(expected, new HashSet<>(spilled));
+	}
+
+	@Test
+	public void shouldSerializeKvinValues() {
+		URI property = URIs.createURI("http://example.org/value");
+		List<BindingSet> left = new ArrayList<>();
+		List<BindingSet> right = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			URI item = URIs.createURI("http://example.org/item-" + (i % 3));
+			Object value = i % 3 == 0 ? (Object) (i * 1.5) : i % 3 == 1 ? "value " + i :
+					new Record(property, (long) i).append(new Record(URIs.createURI("http://example.org/list"),
+							new Object[]{i, "x", null}));
+			for (List<BindingSet> side : List.of(left, right)) {
+				QueryBindingSet bs = new QueryBindingSet();
+				bs.addBinding("time", vf.createLiteral((long) i));
+				Value data = BNodeWithValue.create(new KvinTuple(item, property, Kvin.DEFAULT_CONTEXT, i, i % 7, value),
+						false);
+				bs.addBinding(side == left ? "a" : "b", data);
+				side.add(bs);
+			}
+		}
+
+		GraceHashJoinIteration join = new GraceHashJoinIteration(new CloseableIteratorIteration<>(left.iterator()),
+				new CloseableIteratorIteration<>(right.iterator()), new String[]{"time"}, 10000);
+		Map<Value, BindingSet> results = new HashMap<>();
+		while (join.hasNext()) {
+			BindingSet bs = join.next();
+			results.put(bs.getValue("time"), bs);
+		}
+		join.close();
+		assertTrue(join.spilledPartitions > 0);
+		// the tuples are written to the partition files and not kept on the heap
+		assertTrue(join.references.isEmpty());
+
+		assertEquals(left.size(), results.size());
+		for (int i = 0; i < left.size(); i++) {
+			BindingSet result = results.get(left.get(i).getValue("time"));
+			for (String name : List.of("a", "b")) {
+				BindingSet original = name.equals("a") ? left.get(i) : right.get(i);
+				Value restored = result.getValue(name);
+				assertEquals(original.getValue(name), restored);
+				KvinTuple tuple = (KvinTuple) ((HasValue) original.getValue(name)).getValue();
+				KvinTuple restoredTuple = (KvinTuple) ((HasValue) restored).getValue();
+				assertEquals(Arrays.asList(tuple.item, tuple.property, tuple.context, tuple.time, tuple.seqNr),
+						Arrays.asList(restoredTuple.item, restoredTuple.property, restoredTuple.context,
+								restoredTuple.time, restoredTuple.seqNr));
+				if (tuple.value instanceof Record) {
+					Record record = (Record) tuple.value, restoredRecord = (Record) restoredTuple.value;
+					assertEquals(record.first(property).getValue(), restoredRecord.first(property).getValue());
+					URI list = URIs.createURI("http://example.org/list");
+					assertArrayEquals((Object[]) record.first(list).getValue(),
+							(Object[]) restoredRecord.first(list).getValue());
+				} else {
+					assertEquals(tuple.value, restoredTuple.value);
+				}
+			}
+		}
+	}
+}
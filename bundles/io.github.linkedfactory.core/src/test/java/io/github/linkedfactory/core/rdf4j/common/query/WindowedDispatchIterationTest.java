@@ -0,0 +1,68 @@
+package io.github.linkedfactory.core.rdf4j.common.query;
+
+import io.github.linkedfactory.core.rdf4j.common.QueryExecutorService;
+import org.eclipse.rdf4j.common.iteration.CloseableIteratorIteration;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class WindowedDispatchIterationTest {
+	static final ValueFactory vf = SimpleValueFactory.getInstance();
+	final ThreadPoolExecutor sharedExecutor = QueryExecutorService.createSharedExecutor(4);
+
+	@After
+	public void tearDown() {
+		sharedExecutor.shutdownNow();
+	}
+
+	@Test
+	public void shouldDispatchLazily() {
+		List<BindingSet> input = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			QueryBindingSet bs = new QueryBindingSet();
+			// each binding set is contained twice
+			bs.addBinding("x", vf.createLiteral(i / 2));
+			input.add(bs);
+		}
+		AtomicInteger consumed = new AtomicInteger();
+		AtomicInteger evaluated = new AtomicInteger();
+		CloseableIteratorIteration<BindingSet, QueryEvaluationException> bindings =
+				new CloseableIteratorIteration<>(input.stream().peek(bs -> consumed.incrementAndGet()).iterator());
+		QueryExecutorService executor = new QueryExecutorService(sharedExecutor, 2);
+		WindowedDispatchIteration results = new WindowedDispatchIteration(bindings, 10, 4, batch -> {
+			evaluated.addAndGet(batch.size());
+			List<BindingSet> batchResults = new ArrayList<>();
+			for (BindingSet bs : batch) {
+				QueryBindingSet result = new QueryBindingSet(bs);
+				result.addBinding("y", vf.createLiteral(true));
+				batchResults.add(result);
+			}
+			return new CloseableIteratorIteration<>(batchResults.iterator());
+		}, () -> executor);
+
+		assertTrue(results.hasNext());
+		// only the bindings for the window have been consumed
+		assertTrue(consumed.get() <= 4 * 20);
+
+		int count = 0;
+		while (results.hasNext()) {
+			BindingSet bs = results.next();
+			assertEquals(vf.createLiteral(count++ / 2), bs.getValue("x"));
+		}
+		results.close();
+		// duplicates within a batch are only evaluated once but their results are returned for each of them
+		assertEquals(1000, count);
+		assertEquals(500, evaluated.get());
+	}
+}
@@ -0,0 +1,85 @@
+package io.github.linkedfactory.core.rdf4j.kvin;
+
+import io.github.linkedfactory.core.kvin.DelegatingKvin;
+import io.github.linkedfactory.core.kvin.Kvin;
+import io.github.linkedfactory.core.kvin.KvinTuple;
+import io.github.linkedfactory.core.kvin.memory.KvinMemory;
+import io.github.linkedfactory.core.rdf4j.kvin.query.KvinFetch;
+import io.github.linkedfactory.core.rdf4j.kvin.query.Parameters;
+import net.enilink.commons.iterator.IExtendedIterator;
+import net.enilink.komma.core.URI;
+import net.enilink.komma.core.URIs;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.algebra.Join;
+import org.eclipse.rdf4j.query.algebra.StatementPattern;
+import org.eclipse.rdf4j.query.algebra.Var;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class KvinFetchMemoTest {
+	final URI item = URIs.createURI("http://example.org/machine");
+	final URI property = URIs.createURI("http://example.org/temperature");
+
+	@Test
+	public void shouldMemoizeFetches() {
+		KvinMemory store = new KvinMemory();
+		for (long time = 0; time < 100; time++) {
+			store.put(new KvinTuple(item, property, null, time, (double) time));
+		}
+		AtomicInteger fetches = new AtomicInteger();
+		Kvin kvin = new DelegatingKvin(() -> store) {
+			@Override
+			public IExtendedIterator<KvinTuple> fetch(URI item, URI property, URI context, long end, long begin,
+			                                          long limit, long interval, String op) {
+				fetches.incrementAndGet();
+				return super.fetch(item, property, context, end, begin, limit, interval, op);
+			}
+		};
+
+		KvinFetchMemo memo = new KvinFetchMemo(kvin);
+		for (int i = 0; i < 3; i++) {
+			IExtendedIterator<KvinTuple> it = memo.fetch(List.of(item), List.of(property), Kvin.DEFAULT_CONTEXT,
+					KvinTuple.TIME_MAX_VALUE, 0, 10, 0, null);
+			assertEquals(10, it.toList().size());
+		}
+		assertEquals(1, fetches.get());
+
+		// partially consumed results are not memoized
+		IExtendedIterator<KvinTuple> partial = memo.fetch(List.of(item), List.of(property), Kvin.DEFAULT_CONTEXT,
+				50, 0, 0, 0, null);
+		partial.next();
+		partial.close();
+		assertEquals(51, memo.fetch(List.of(item), List.of(property), Kvin.DEFAULT_CONTEXT, 50, 0, 0, 0, null)
+				.toList().size());
+		assertEquals(3, fetches.get());
+
+		// large results are not memoized
+		KvinFetchMemo smallMemo = new KvinFetchMemo(kvin, 1000);
+		for (int i = 0; i < 2; i++) {
+			assertEquals(100, smallMemo.fetch(List.of(item), List.of(property), Kvin.DEFAULT_CONTEXT,
+					KvinTuple.TIME_MAX_VALUE, 0, 0, 0, null).toList().size());
+		}
+		assertEquals(5, fetches.get());
+	}
+
+	@Test
+	public void shouldFindRepeatedFetches() {
+		Var valueProperty = new Var("p", SimpleValueFactory.getInstance().createIRI(property.toString()));
+		KvinFetch first = new KvinFetch(new StatementPattern(new Var("item"), valueProperty, new Var("v1")),
+				new Parameters());
+		// the same request with another variable for the values
+		KvinFetch second = new KvinFetch(new StatementPattern(new Var("item"), valueProperty.clone(), new Var("v2")),
+				new Parameters());
+		KvinFetch other = new KvinFetch(new StatementPattern(new Var("otherItem"), valueProperty.clone(),
+				new Var("v3")), new Parameters());
+
+		Set<List<Object>> repeated = KvinEvaluationStrategy.findRepeatedFetches(new Join(new Join(first, second), other));
+		assertEquals(Set.of(first.getRequestKey()), repeated);
+		assertEquals(first.getRequestKey(), second.getRequestKey());
+	}
+}
@@ -1,15 +1,18 @@
 package io.github.linkedfactory.core.kvin
 
 import io.github.linkedfactory.core.kvin.leveldb.{KvinLevelDb, KvinLevelDbArchiver}
-import io.github.linkedfactory.core.kvin.parquet.KvinParquet
-import io.github.linkedfactory.core.kvin.util.KvinTupleGenerator
-import net.enilink.commons.iterator.NiceIterator
+import io.github.linkedfactory.core.kvin.parquet.{KvinParquet, KvinRollups}
+import io.github.linkedfactory.core.kvin.util.{AggregatingIterator, KvinTupleGenerator}
+import net.enilink.commons.iterator.{IExtendedIterator, NiceIterator}
+import net.enilink.komma.core.{URI, URIs}
 import org.apache.commons.io.FileUtils
-import org.junit.Assert.assertTrue
+import org.junit.Assert.{assertEquals, assertTrue, fail}
 import org.junit.{After, Before, Test}
 
-import java.io.File
+import java.io.{File, IOException}
 import java.nio.file.Files
+import java.util
+import scala.jdk.CollectionConverters._
 
 class KvinLevelDbArchiverTest {
 
@@ -50,4 +53,107 @@ class KvinLevelDbArchiverTest {
     dbArchiver.archive()
     assertTrue(new File(archiveTempDir.getPath).listFiles.length > 0)
   }
+
+  @Test
+  def testNoRollupsForFailedArchival(): Unit = {
+    val rollupsTempDir = Files.createTempDirectory("rollups").toFile
+    try {
+      val failingArchive = new KvinParquet(archiveTempDir.getAbsolutePath) {
+        override def put(tuples: java.lang.Iterable[KvinTuple]): Unit = {
+          // the values are read before writing fails
+          tuples.forEach(_ => ())
+          throw new RuntimeException("Writing failed")
+        }
+      }
+      val rollups = new KvinRollups(rollupsTempDir.getAbsolutePath, failingArchive, 60000L)
+      try {
+        new KvinLevelDbArchiver(databaseStore, failingArchive, rollups).archive()
+        fail("The failure of the archive should be propagated")
+      } catch {
+        case _: RuntimeException => // expected
+      }
+      val item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/new-week/1")
+      assertTrue(rollups.fetch(util.List.of(item), util.List.of(), Kvin.DEFAULT_CONTEXT,
+        KvinTuple.TIME_MAX_VALUE, 0, 60000L).toList.isEmpty)
+    } finally {
+      FileUtils.deleteDirectory(rollupsTempDir)
+    }
+  }
+
+  @Test
+  def testUncoveredRangeForFailedRollups(): Unit = {
+    val rollupsTempDir = Files.createTempDirectory("rollups").toFile
+    try {
+      val rollups = new KvinRollups(rollupsTempDir.getAbsolutePath, archiveStore, 60000L) {
+        override def builder(): Builder = throw new IOException("Computing rollups failed")
+      }
+      val times = databaseStore.fetchAll().toList.asScala.map(_.time)
+      try {
+        new KvinLevelDbArchiver(databaseStore, archiveStore, rollups).archive()
+        fail("The failure of the rollups should be propagated")
+      } catch {
+        case _: IOException => // expected
+      }
+      // the values have been archived but the rollups are not used for their time range
+      val item = URIs.createURI("http://localhost:8080/linkedfactory/demofactory/new-week/1")
+      assertEquals(100, archiveStore.fetch(item, null, Kvin.DEFAULT_CONTEXT, 0).toList.size)
+      val range = rollups.coveredRange(60000L, KvinTuple.TIME_MAX_VALUE, times.min)
+      assertTrue(range(0) > times.max)
+      // the uncovered range is persisted
+      val reopened = new KvinRollups(rollupsTempDir.getAbsolutePath, archiveStore, 60000L)
+      assertEquals(range.toList, reopened.coveredRange(60000L, KvinTuple.TIME_MAX_VALUE, times.min).toList)
+    } finally {
+      FileUtils.deleteDirectory(rollupsTempDir)
+    }
+  }
+
+  @Test
+  def testArchivalWithRollups(): Unit = {
+    val rollupsTempDir = Files.createTempDirectory("rollups").toFile
+    val numericDir = Files.createTempDirectory("level0db-numeric").toFile
+    val numericArchiveDir = Files.createTempDirectory("archive-numeric").toFile
+    val numericStore = new KvinLevelDb(numericDir)
+    try {
+      val startTime = 1697407200000L
+      val items = (1 to 2).map(i => URIs.createURI("http://example.org/item" + i))
+      val properties = (1 to 2).map(i => URIs.createURI("http://example.org/p" + i))
+      val tuples = new util.ArrayList[KvinTuple]
+      for (item <- items; property <- properties; i <- 0 until 5000) {
+        tuples.add(new KvinTuple(item, property, Kvin.DEFAULT_CONTEXT, startTime + i * 2500L, 0, (i * 37L) % 1001))
+      }
+      numericStore.put(tuples)
+
+      val numericArchive = new KvinParquet(numericArchiveDir.getAbsolutePath)
+      val rollups = new KvinRollups(rollupsTempDir.getAbsolutePath, numericArchive, 60000L, 3600000L)
+      new KvinLevelDbArchiver(numericStore, numericArchive, rollups).archive()
+
+      val interval = 3600000L
+      val begin = startTime + 1234
+      val end = startTime + 5000 * 2500L - 777
+      for (op <- Seq("min", "max", "sum", "avg")) {
+        val tierInterval = rollups.selectInterval(interval, op)
+        assertEquals(3600000L, tierInterval)
+        val range = rollups.coveredRange(tierInterval, end, begin)
+        val raw = new util.ArrayList[IExtendedIterator[KvinTuple]]
+        raw.add(numericArchive.fetch(items.asJava, properties.asJava, Kvin.DEFAULT_CONTEXT, range(0) - 1, begin, 0, 0, null))
+        raw.add(numericArchive.fetch(items.asJava, properties.asJava, Kvin.DEFAULT_CONTEXT, end, range(1), 0, 0, null))
+        val combined = KvinRollups.combine(raw,
+          util.List.of(rollups.fetch(items.asJava, properties.asJava, Kvin.DEFAULT_CONTEXT, range(1) - 1, range(0), tierInterval)),
+          interval, op).toList.asScala.map(t => (t.item, t.property, t.time, t.value)).toSet
+
+        val expected = new AggregatingIterator[KvinTuple](
+          numericArchive.fetch(items.asJava, properties.asJava, Kvin.DEFAULT_CONTEXT, end, begin, 0, 0, null), interval, op, 0) {
+          override protected def createElement(item: URI, property: URI, context: URI, time: Long, seqNr: Int, value: Any): KvinTuple =
+            new KvinTuple(item, property, context, time, seqNr, value)
+        }.toList.asScala.map(t => (t.item, t.property, t.time, t.value)).toSet
+        assertTrue(expected.nonEmpty)
+        assertEquals(op, expected, combined)
+      }
+    } finally {
+      numericStore.close()
+      FileUtils.deleteDirectory(rollupsTempDir)
+      FileUtils.deleteDirectory(numericDir)
+      FileUtils.deleteDirectory(numericArchiveDir)
+    }
+  }
 }
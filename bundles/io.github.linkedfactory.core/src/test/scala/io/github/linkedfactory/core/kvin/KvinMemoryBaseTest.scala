@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2022 Fraunhofer IWU.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.linkedfactory.core.kvin
+
+import io.github.linkedfactory.core.kvin.memory.KvinMemory
+import org.junit.{After, Before}
+
+/**
+ * Tests for the in-memory time series store.
+ */
+class KvinMemoryBaseTest extends KvinTestBase {
+  @Before
+  def createStore {
+    store = new KvinMemory()
+  }
+
+  @After
+  def closeStore {
+    store.close
+    store = null
+  }
+}
@@ -131,6 +131,15 @@ abstract class KvinTestBase {
         .toList.asScala.sortBy(_.time))
   }
 
+  @Test
+  def testDescendants {
+    addData(5, 2)
+    val parent = URIs.createURI("http://example.org/l1/")
+    assertEquals(5, store.descendants(parent, null).toList.size)
+    assertEquals(3, store.descendants(parent, null, 3).toList.size)
+    assertTrue(store.descendants(parent, URIs.createURI("urn:other")).toList.isEmpty)
+  }
+
   //@Test
   def testDelete {
     val valueCount = 5
@@ -16,11 +16,17 @@
 package io.github.linkedfactory.core.rdf4j.kvin
 
 import io.github.linkedfactory.core.kvin.leveldb.KvinLevelDb
+import io.github.linkedfactory.core.kvin.memory.KvinMemory
 import io.github.linkedfactory.core.kvin.{Kvin, KvinTuple, Record}
+import io.github.linkedfactory.core.rdf4j.common.query.Helpers
+import io.github.linkedfactory.core.rdf4j.kvin.query.{KvinFetch, SegmentedMergeJoin}
 import net.enilink.komma.core.URIs
 import net.enilink.vocab.rdf.RDF
 import org.eclipse.rdf4j.model.Literal
-import org.eclipse.rdf4j.query.QueryLanguage
+import org.eclipse.rdf4j.query.{BindingSet, QueryLanguage}
+import org.eclipse.rdf4j.query.algebra.{Join, TupleExpr, Var}
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory
+import org.eclipse.rdf4j.query.algebra.evaluation.QueryBindingSet
 import org.eclipse.rdf4j.query.algebra.evaluation.federation.AbstractFederatedServiceResolver
 import org.eclipse.rdf4j.repository.Repository
 import org.eclipse.rdf4j.repository.sail.SailRepository
@@ -32,6 +38,7 @@ import java.nio.charset.StandardCharsets
 import java.nio.file.attribute.BasicFileAttributes
 import java.nio.file.{FileVisitResult, Files, Path, SimpleFileVisitor}
 import java.util.concurrent.Executors
+import scala.jdk.CollectionConverters._
 import scala.util.Random
 
 class ServiceTest {
@@ -42,6 +49,7 @@ class ServiceTest {
   var storeDirectory: File = _
   var store: Kvin = _
   var repository: Repository = _
+  var service: KvinFederatedService = _
 
   @Test
   def basicTest {
@@ -246,6 +254,297 @@ class ServiceTest {
     }
   }
 
+  @Test
+  def testPlanCache {
+    addData(10, 10)
+
+    val conn = repository.getConnection
+    try {
+      val queryStr =
+        s"""select * where { values ?item { <item-1> <item-2> <item-3> } service <kvin:> {
+           |?item <property:value> ?v . ?v <kvin:limit> 2 ; <kvin:value> ?value } }""".stripMargin
+      val results = 1.to(3).map { _ =>
+        val r = conn.prepareTupleQuery(QueryLanguage.SPARQL, queryStr, "http://example.org/").evaluate
+        try {
+          var count = 0
+          while (r.hasNext) {
+            r.next
+            count += 1
+          }
+          count
+        } finally {
+          r.close
+        }
+      }
+      Assert.assertEquals(List(6, 6, 6), results.toList)
+      // the query has been optimized only once
+      Assert.assertEquals(1, service.planCache.size)
+    } finally {
+      conn.close
+    }
+  }
+
+  @Test
+  def testParameterizedPlanCache {
+    val data = addData(1, 100)
+
+    val conn = repository.getConnection
+    try {
+      // queries with a moving time range
+      val ranges = List((20, 50), (30, 60), (45, 95))
+      val results = ranges.map { case (from, to) =>
+        val queryStr =
+          s"""select ?time where { service <kvin:> {
+             |<item-1> <property:value> [ <kvin:time> ?time ; <kvin:value> ?value ;
+             |<kvin:from> ${START_TIME + from} ; <kvin:to> ${START_TIME + to} ] } }""".stripMargin
+        val r = conn.prepareTupleQuery(QueryLanguage.SPARQL, queryStr, "http://example.org/").evaluate
+        try {
+          var times = List.empty[Long]
+          while (r.hasNext) {
+            val bs = r.next
+            Assert.assertFalse(bs.getBindingNames.toString, bs.getBindingNames.asScala.exists(_.startsWith("_param_")))
+            times ::= bs.getValue("time").asInstanceOf[Literal].longValue
+          }
+          times.sorted
+        } finally {
+          r.close
+        }
+      }
+      Assert.assertEquals(ranges.map { case (from, to) =>
+        data.map(_.time).filter(t => t >= START_TIME + from && t <= START_TIME + to).sorted
+      }, results)
+      // all queries share the same plan
+      Assert.assertEquals(1, service.planCache.size)
+      Assert.assertTrue(service.planCache.asMap.values.iterator.next.parameterized)
+
+      // literals within filters are bound to the shared plan
+      service.planCache.invalidateAll()
+      for (threshold <- List(10.0, 50.0)) {
+        val queryStr =
+          s"""select ?value where { service <kvin:> {
+             |<item-1> <property:value> [ <kvin:time> ?time ; <kvin:value> ?value ] filter (?value < $threshold) } }""".stripMargin
+        val r = conn.prepareTupleQuery(QueryLanguage.SPARQL, queryStr, "http://example.org/").evaluate
+        val values = try {
+          var values = List.empty[Double]
+          while (r.hasNext) {
+            values ::= r.next.getValue("value").asInstanceOf[Literal].doubleValue
+          }
+          values.sorted
+        } finally {
+          r.close
+        }
+        Assert.assertEquals(data.map(_.value.asInstanceOf[Double]).filter(_ < threshold).sorted, values)
+      }
+      Assert.assertEquals(1, service.planCache.size)
+    } finally {
+      conn.close
+    }
+  }
+
+  @Test
+  def testFilterPushDown {
+    val data = addData(10, 10)
+
+    def paramValue(v: Var) = v.getValue.asInstanceOf[Literal].longValue
+
+    val times = data.filter(_.item == itemUri(1)).map(_.time).sorted.reverse
+    val from = START_TIME + 20
+    val to = START_TIME + 60
+    val (rangeResults, rangePlan) = evaluateWithPlan(
+      s"""select * where { service <kvin:> {
+         |<item-1> <property:value> ?v . ?v <kvin:value> ?value ; <kvin:time> ?time .
+         |filter (?time >= $from && $to > ?time) } }""".stripMargin)
+    Assert.assertEquals(times.filter(t => t >= from && t < to), rangeResults.map(longValue(_, "time")))
+    // the range is passed to the store
+    val rangeParams = firstFetch(rangePlan).getParams
+    Assert.assertEquals(from, paramValue(rangeParams.from))
+    Assert.assertEquals(to - 1, paramValue(rangeParams.to))
+
+    val (indexResults, indexPlan) = evaluateWithPlan(
+      s"""select * where { service <kvin:> {
+         |<item-1> <property:value> ?v . ?v <kvin:value> ?value ; <kvin:time> ?time ; <kvin:index> ?index .
+         |filter (?index <= 2 && ?time >= $from) } }""".stripMargin)
+    Assert.assertEquals(times.take(3), indexResults.map(longValue(_, "time")))
+    // the limit is passed to the store, the range is not as it would change the index
+    val indexParams = firstFetch(indexPlan).getParams
+    Assert.assertEquals(3, paramValue(indexParams.limit))
+    Assert.assertNull(indexParams.from)
+  }
+
+  @Test
+  def testAggregationPushDown {
+    val data = addData(10, 10)
+
+    val interval = 30
+    val values = data.filter(_.item == itemUri(1)).groupBy(_.time / interval).view
+      .mapValues(_.map(_.value.asInstanceOf[Double])).toMap
+    val expected = Map[String, List[Double] => Double](
+      "avg" -> (v => v.sum / v.size), "min" -> (_.min), "max" -> (_.max), "sum" -> (_.sum),
+      "count" -> (_.size.toDouble))
+    for ((op, aggregate) <- expected) {
+      val (bindings, plan) = evaluateWithPlan(
+        s"""select ?bucket ?agg where { service <kvin:> {
+           |select ?bucket ($op(?value) as ?agg) where {
+           |<item-1> <property:value> [ <kvin:value> ?value ; <kvin:time> ?time ] .
+           |} group by (floor(?time / $interval) as ?bucket) } }""".stripMargin)
+      val results = bindings.map(bs => longValue(bs, "bucket") -> doubleValue(bs, "agg")).toMap
+      Assert.assertEquals(values.keySet, results.keySet)
+      for ((bucket, bucketValues) <- values) {
+        Assert.assertEquals(aggregate(bucketValues), results(bucket), 0.001)
+      }
+
+      // the values are aggregated by the store
+      val fetch = firstFetch(plan)
+      Assert.assertEquals(interval, fetch.getParams.interval.getValue.asInstanceOf[Literal].longValue)
+      Assert.assertEquals(op, fetch.getParams.aggregationFunction.getValue.stringValue)
+    }
+  }
+
+  @Test
+  def testAggregationWithSameItemAndProperty {
+    addData(1, 10)
+    val item = itemUri(1)
+    // the item is also used as property
+    store.put(new KvinTuple(item, item, Kvin.DEFAULT_CONTEXT, START_TIME, 0, 2.0),
+      new KvinTuple(item, item, Kvin.DEFAULT_CONTEXT, START_TIME + 10, 0, 4.0))
+
+    val (results, plan) = evaluateWithPlan(
+      s"""select ?agg where { service <kvin:> {
+         |select ?bucket (avg(?value) as ?agg) where {
+         |<$item> <$item> [ <kvin:value> ?value ; <kvin:time> ?time ] .
+         |} group by (floor(?time / 100) as ?bucket) } }""".stripMargin)
+    Assert.assertEquals(List(3.0), results.map(doubleValue(_, "agg")))
+    // the values are aggregated by the store
+    Assert.assertEquals("avg", firstFetch(plan).getParams.aggregationFunction.getValue.stringValue)
+  }
+
+  @Test
+  def testLimitPushDown {
+    // two series for the same item with interleaved time stamps
+    val data = addData(1, 20) ++ addData(1, 20).map { tuple =>
+      val shifted = new KvinTuple(tuple.item, URIs.createURI("property:other"), tuple.context, tuple.time + 5,
+        tuple.seqNr, tuple.value)
+      store.put(shifted)
+      shifted
+    }
+
+    val times = data.map(_.time).sorted.reverse
+    for ((order, offset, limit) <- List(("desc(?time)", 0, 4), ("desc(?time)", 2, 5), ("?index", 0, 3))) {
+      val (bindings, plan) = evaluateWithPlan(
+        s"""select ?time where { service <kvin:> { select * where {
+           |<item-1> ?p [ <kvin:value> ?value ; <kvin:time> ?time ; <kvin:index> ?index ] .
+           |} order by $order offset $offset limit $limit } }""".stripMargin)
+      val results = bindings.map(longValue(_, "time"))
+      if (order == "?index") {
+        // the newest values of each series
+        Assert.assertEquals(limit, results.size)
+        Assert.assertTrue(results.forall(times.take(2 * limit).contains))
+      } else {
+        Assert.assertEquals(times.slice(offset, offset + limit), results)
+      }
+
+      // only the required values are fetched for each series
+      val fetch = firstFetch(plan)
+      Assert.assertEquals(offset + limit, fetch.getParams.limit.getValue.asInstanceOf[Literal].longValue)
+    }
+  }
+
+  @Test
+  def testJoinOrder {
+    val data = addData(1, 200)
+    // a few values of item-2 at the times of item-1
+    val few = data.take(3).map { tuple =>
+      val other = new KvinTuple(itemUri(2), valueProperty, tuple.context, tuple.time, tuple.seqNr, tuple.value)
+      store.put(other)
+      other
+    }
+
+    val (results, plan) = evaluateWithPlan(s"""select * where {
+  service <kvin:> {
+    <item-2> <property:value> [ <kvin:time> ?time ; <kvin:value> ?v2_value ] .
+    <item-1> <property:value> [ <kvin:time> ?time ; <kvin:value> ?v1_value ] .
+  }
+}""")
+    for (bs <- results) {
+      Assert.assertEquals(bs.getValue("v1_value"), bs.getValue("v2_value"))
+    }
+    Assert.assertEquals(few.map(_.time).sorted, results.map(longValue(_, "time")).sorted)
+
+    // the fetch with the fewest values is evaluated first
+    val fetch = firstFetch(plan)
+    Assert.assertEquals(itemUri(2).toString, fetch.getStatement.getSubjectVar.getValue.stringValue)
+    Assert.assertEquals(3.0, fetch.getResultSizeEstimate, 0.0)
+  }
+
+  @Test
+  def testProfile {
+    val data = addData(2, 100)
+
+    val profile = new QueryProfile
+    profile.activate()
+    try {
+      val (results, plan) = evaluateWithPlan(s"""select * where {
+  service <kvin:> {
+    <item-1> <property:value> [ <kvin:time> ?time ; <kvin:value> ?v1_value ] .
+    <item-2> <property:value> [ <kvin:time> ?time ; <kvin:value> ?v2_value ] .
+  }
+}""")
+      val valuesByItemAndTime = data.map(t => (t.item, t.time) -> t.value.asInstanceOf[Double]).toMap
+      Assert.assertEquals(100, results.size)
+      for (bs <- results) {
+        val time = longValue(bs, "time")
+        Assert.assertEquals(valuesByItemAndTime((itemUri(1), time)), doubleValue(bs, "v1_value"), 0.001)
+        Assert.assertEquals(valuesByItemAndTime((itemUri(2), time)), doubleValue(bs, "v2_value"), 0.001)
+      }
+
+      Assert.assertEquals(results.size, profile.getStats(plan).getRows)
+      val fetch = firstFetch(plan)
+      Assert.assertTrue(profile.getStats(fetch).getFetches > 0)
+      Assert.assertTrue(profile.getStats(fetch).getFetchedValues >= 100)
+      Assert.assertTrue(profile.getStats(fetch).getFetchedBytes > 0)
+      Assert.assertTrue(profile.toString.contains("KvinFetch [evaluations="))
+    } finally {
+      profile.deactivate()
+    }
+    Assert.assertNull(QueryProfile.current)
+  }
+
+  @Test
+  def testSegmentedMergeJoin {
+    // use a store with exact estimates of the number of values
+    store.close
+    store = new KvinMemory
+    val data = addData(2, 10000)
+    val (from, to) = (START_TIME + 5000, START_TIME + 95000)
+
+    val (bindings, plan) = evaluateWithPlan(s"""select * where {
+  service <kvin:> {
+    <item-1> <property:value> [ <kvin:time> ?time ; <kvin:from> $from ; <kvin:to> $to ; <kvin:value> ?v1_value ] .
+    <item-2> <property:value> [ <kvin:time> ?time ; <kvin:value> ?v2_value ] .
+  }
+}""")
+    val results = bindings.map { bs =>
+      Assert.assertFalse(bs.hasBinding(SegmentedMergeJoin.SEGMENT_BEGIN))
+      (longValue(bs, "time"), doubleValue(bs, "v1_value"), doubleValue(bs, "v2_value"))
+    }
+
+    // the results of all segments are returned from the newest to the oldest value
+    val expected = data.filter(t => t.item == itemUri(1) && t.time >= from && t.time <= to)
+      .map(t => (t.time, t.value.asInstanceOf[Double])).sortBy(-_._1)
+    Assert.assertEquals(expected.map(_._1), results.map(_._1))
+    Assert.assertEquals(expected.map(_._2), results.map(_._2))
+    val item2Values = data.filter(_.item == itemUri(2)).map(t => (t.time, t.value.asInstanceOf[Double])).toMap
+    Assert.assertEquals(results.map(r => item2Values(r._1)), results.map(_._3))
+
+    val join = plan.asInstanceOf[Join]
+    // the time range is passed as parameters to the plan
+    val parameters = new QueryBindingSet
+    parameters.addBinding("_param_0", SimpleValueFactory.getInstance.createLiteral(from))
+    parameters.addBinding("_param_1", SimpleValueFactory.getInstance.createLiteral(to))
+    Assert.assertNull(SegmentedMergeJoin.create(join, "time", new QueryBindingSet))
+    Assert.assertNotNull(SegmentedMergeJoin.create(join, "time", parameters))
+  }
+
   @Test
   def testJoin {
     val data = addData(10, 10)
@@ -327,6 +626,41 @@ class ServiceTest {
     }
   }
 
+  /**
+   * Evaluates a query and returns its results together with the optimized plan of its service expression.
+   */
+  def evaluateWithPlan(queryStr: String): (List[BindingSet], TupleExpr) = {
+    // the service is created with the first query
+    if (service != null) {
+      service.planCache.invalidateAll()
+    }
+    val conn = repository.getConnection
+    try {
+      val r = conn.prepareTupleQuery(QueryLanguage.SPARQL, queryStr, "http://example.org/").evaluate
+      val results = try {
+        var results = List.empty[BindingSet]
+        while (r.hasNext) {
+          results ::= r.next
+        }
+        results.reverse
+      } finally {
+        r.close
+      }
+      // plans that are not parameterized are additionally cached for their literal values
+      val plans = service.planCache.asMap.values.asScala.toSet
+      Assert.assertEquals(1, plans.size)
+      (results, plans.head.expr)
+    } finally {
+      conn.close
+    }
+  }
+
+  def firstFetch(plan: TupleExpr): KvinFetch = Helpers.findFirstFetch(plan).asInstanceOf[KvinFetch]
+
+  def longValue(bs: BindingSet, name: String): Long = bs.getValue(name).asInstanceOf[Literal].longValue
+
+  def doubleValue(bs: BindingSet, name: String): Double = bs.getValue(name).asInstanceOf[Literal].doubleValue
+
   def itemUri(nr: Int) = URIs.createURI("http://example.org/item-" + nr)
 
   def addData(items: Int, values: Int): List[KvinTuple] = {
@@ -399,7 +733,7 @@ class ServiceTest {
       val executorService = Executors.newCachedThreadPool()
 
       override def createService(url: String) = {
-        val service = new KvinFederatedService(store, () => executorService, null, false)
+        service = new KvinFederatedService(store, () => executorService, null, false)
         service
       }
 
@@ -1,5 +1,6 @@
 package io.github.linkedfactory.service
 
+import io.github.linkedfactory.core.rdf4j.kvin.QueryProfile
 import net.enilink.komma.core._
 import net.enilink.komma.model.{IModelSet, ModelUtil}
 import net.enilink.komma.rdf4j.RDF4JValueConverter
@@ -52,11 +53,48 @@ object SparqlService extends RestHelper with CorsHelper {
     }
   }
 
+  /**
+   * Evaluate a query against a model and return the profile of its KVIN service invocations as plain text.
+   */
+  def explainModel(queryStr: String, modelUri: URI): Box[LiftResponse] = {
+    getModel(modelUri).dmap(Full(NotFoundResponse("Model " + modelUri + " not found.")): Box[LiftResponse])(model =>
+      model match {
+        case NotAllowedModel(_) => Full(ForbiddenResponse("You don't have permissions to access " + model.getURI + "."))
+        case _ =>
+          val profile = new QueryProfile
+          val start = System.nanoTime
+          var rows = 0L
+          // the results are consumed within this thread to attribute all service invocations to the profile
+          profile.activate()
+          try {
+            val query = model.getManager.createQuery(queryStr)
+            query.restrictResultType(null.asInstanceOf[String], classOf[IValue])
+            val r = query.evaluate
+            try {
+              while (r.hasNext) {
+                r.next
+                rows += 1
+              }
+            } finally {
+              r.close
+            }
+          } finally {
+            profile.deactivate()
+          }
+
+          val report = "rows=%d, time=%.3f ms%n%s".format(rows, (System.nanoTime - start) / 1e6, profile)
+          val data = report.getBytes("UTF-8")
+          Full(InMemoryResponse(data, ("Content-Length", data.length.toString) ::
+            ("Content-Type", "text/plain; charset=utf-8") :: responseHeaders, responseCookies, 200))
+      })
+  }
+
   /**
    * Handle SPARQL queries against a model.
    */
   def queryModel(queryStr: String, modelUri: URI, resultMimeType: String): Box[LiftResponse] = {
-    getModel(modelUri).dmap(Full(NotFoundResponse("Model " + modelUri + " not found.")): Box[LiftResponse])(model =>
+    if (S.param("explain").exists(_ == "true")) explainModel(queryStr, modelUri)
+    else getModel(modelUri).dmap(Full(NotFoundResponse("Model " + modelUri + " not found.")): Box[LiftResponse])(model =>
       model match {
         case NotAllowedModel(_) => Full(ForbiddenResponse("You don't have permissions to access " + model.getURI + "."))
         case _ =>